@@ -19,6 +19,7 @@
  */
 package com.xwiki.azureoauth.configuration;
 
+import java.util.List;
 import java.util.Map;
 
 import org.xwiki.component.annotation.Role;
@@ -115,4 +116,121 @@ public interface EntraIDConfiguration
      */
     @Unstable
     String getTokenEndpoint();
+
+    /**
+     * Get the root URL of the Microsoft Graph API, including the API version.
+     *
+     * @return the configured Graph endpoint, {@code https://graph.microsoft.com/v1.0} by default.
+     * @since 2.2.4
+     */
+    @Unstable
+    String getGraphEndpoint();
+
+    /**
+     * Get the number of users requested from Graph with each page.
+     *
+     * @return the configured page size, between 1 and 999.
+     * @since 2.2.4
+     */
+    @Unstable
+    int getUsersPageSize();
+
+    /**
+     * Get the user attributes requested from Graph in addition to the user ID and account status.
+     *
+     * @return the names of the additional user attributes.
+     * @since 2.2.4
+     */
+    @Unstable
+    List<String> getUsersSelectedAttributes();
+
+    /**
+     * Get the OData filter restricting the users listed from Graph. The filter only narrows the full listing of the
+     * directory, since the delta queries and the users resolved by ID can't be filtered. The users sync gives the same
+     * result in every mode: the XWiki users left out by the filter are resolved by ID, so they are still disabled or
+     * removed according to their actual state, and are never removed only because the filter excluded them.
+     *
+     * @return the configured filter, or an empty string if all the users are retrieved.
+     * @since 2.2.4
+     */
+    @Unstable
+    String getUsersFilter();
+
+    /**
+     * Get the number of user changes handed over at once to a writer thread of the users sync. The changes are not
+     * written in a shared database transaction: each user is saved on its own. The value only matters when several
+     * threads are configured, see {@link #getUsersSyncThreads()}.
+     *
+     * @return the configured number of changes per write task, at least 1.
+     * @since 2.2.4
+     */
+    @Unstable
+    int getUsersSyncBatchSize();
+
+    /**
+     * Get the maximum number of batches of user changes written at the same time by a users sync. A farm sync uses the
+     * value configured on the wiki starting it for all the wikis.
+     *
+     * @return the configured number of threads, between 1 and 16. With 1, the changes are written by the sync
+     *     thread.
+     * @since 2.2.4
+     */
+    @Unstable
+    int getUsersSyncThreads();
+
+    /**
+     * Get the executor writing the batches of user changes when several threads are configured.
+     *
+     * @return {@code virtual} to use a virtual thread per batch when the runtime supports it, or {@code default} to
+     *     use a pool of platform threads.
+     * @since 2.2.4
+     */
+    @Unstable
+    String getUsersSyncExecutor();
+
+    /**
+     * Get the time allowed to establish a connection with the Entra ID endpoints.
+     *
+     * @return the connect timeout in seconds, or {@code 0} to wait indefinitely.
+     * @since 2.2.4
+     */
+    @Unstable
+    int getHttpConnectTimeout();
+
+    /**
+     * Get the time allowed to receive the response of a request sent to the Entra ID endpoints.
+     *
+     * @return the request timeout in seconds, or {@code 0} to wait indefinitely.
+     * @since 2.2.4
+     */
+    @Unstable
+    int getHttpRequestTimeout();
+
+    /**
+     * Get the preferred HTTP protocol version used to call the Entra ID endpoints.
+     *
+     * @return {@code HTTP_2} or {@code HTTP_1_1}.
+     * @since 2.2.4
+     */
+    @Unstable
+    String getHttpVersion();
+
+    /**
+     * Get the executor handling the asynchronous HTTP exchanges.
+     *
+     * @return {@code virtual} to use a virtual thread per task when the runtime supports it, or {@code default} to use
+     *     the default executor of the HTTP client.
+     * @since 2.2.4
+     */
+    @Unstable
+    String getHttpExecutor();
+
+    /**
+     * Get the proxy used to call the Entra ID endpoints.
+     *
+     * @return the proxy as {@code host:port}, or an empty string to use the system proxy settings.
+     * @since 2.2.4
+     */
+    @Unstable
+    String getHttpProxy();
 }
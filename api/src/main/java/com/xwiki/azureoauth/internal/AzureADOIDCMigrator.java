@@ -20,6 +20,7 @@
 package com.xwiki.azureoauth.internal;
 
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -43,7 +44,9 @@ import com.xpn.xwiki.objects.BaseObject;
 import com.xwiki.azureoauth.configuration.AzureOldConfiguration;
 import com.xwiki.azureoauth.configuration.EntraIDConfiguration;
 import com.xwiki.azureoauth.internal.oldConfiguration.OldAzureOAuthConfiguration;
+import com.xwiki.azureoauth.internal.user.DefaultEntraIDUsersManager;
 import com.xwiki.azureoauth.user.EntraIDUsersManager;
+import com.xwiki.azureoauth.user.XWikiEntraUser;
 
 import static com.xwiki.azureoauth.internal.configuration.DefaultEntraIDConfiguration.OIDC_USER_CLASS;
 
@@ -125,21 +128,32 @@ public class AzureADOIDCMigrator
 
         // XWiki might not be fully initialized yet, in which case it means we are not attempting to update the users.
         if (wiki != null) {
-            List<XWikiDocument> users = usersManager.getXWikiUsers();
-            for (XWikiDocument userDoc : users) {
-                BaseObject oidcObj = userDoc.getXObject(documentReferenceResolver.resolve(OIDC_USER_CLASS));
-                String issuer = oidcObj.getField(ISSUER).toFormString();
-                if (issuer.endsWith(INVALID_VERSION)) {
-                    int index = issuer.lastIndexOf(INVALID_VERSION);
-                    String fixedIssuer = issuer.substring(0, index) + VALID_VERSION;
-                    oidcObj.set(ISSUER, fixedIssuer, xcontextProvider.get());
-                    wiki.saveDocument(userDoc, "Refactored OIDC issuer to the right format used by Entra ID.",
-                        xcontextProvider.get());
+            // The users are processed one page at a time, to avoid keeping all of them in memory.
+            Iterator<List<XWikiEntraUser>> pages =
+                usersManager.getXWikiEntraUsersPages(DefaultEntraIDUsersManager.DEFAULT_PAGE_SIZE);
+            while (pages.hasNext()) {
+                for (XWikiEntraUser user : pages.next()) {
+                    refactorOIDCIssuer(wiki, user);
                 }
             }
         }
     }
 
+    private void refactorOIDCIssuer(XWiki wiki, XWikiEntraUser user) throws XWikiException
+    {
+        String issuer = user.getIssuer();
+        if (issuer.endsWith(INVALID_VERSION)) {
+            // Only the documents of the users having an invalid issuer are loaded.
+            XWikiDocument userDoc = wiki.getDocument(user.getReference(), xcontextProvider.get());
+            BaseObject oidcObj = userDoc.getXObject(documentReferenceResolver.resolve(OIDC_USER_CLASS));
+            int index = issuer.lastIndexOf(INVALID_VERSION);
+            String fixedIssuer = issuer.substring(0, index) + VALID_VERSION;
+            oidcObj.set(ISSUER, fixedIssuer, xcontextProvider.get());
+            wiki.saveDocument(userDoc, "Refactored OIDC issuer to the right format used by Entra ID.",
+                xcontextProvider.get());
+        }
+    }
+
     /**
      * Generates the endpoints that are required by OIDC configuration.
      *
@@ -19,87 +19,633 @@
  */
 package com.xwiki.azureoauth.internal;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URLEncoder;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
+import org.apache.commons.lang3.StringUtils;
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
+import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
 
 import com.xwiki.azureoauth.configuration.EntraIDConfiguration;
+import com.xwiki.azureoauth.user.ExternalUser;
 
 /**
  * Client for interacting with Microsoft Entra ID, including access token acquisition and retrieval of identity data via
- * Entra ID APIs.
+ * Entra ID APIs. The requests go through the {@link EntraIDCircuitBreaker}, so that they fail fast while Graph is
+ * unavailable. Concurrent callers fetching the same users page with the same application and tenant share a single
+ * request, e.g. a script listing the users while a sync runs. The sync jobs themselves never overlap, since they belong
+ * to the same job group. The responses are read and parsed on a small pool of threads owned by the client, so that
+ * neither the HTTP client threads nor the common pool are blocked while the bodies are received.
  *
  * @version $Id$
  * @since 2.1
  */
 @Component(roles = EntraIDApiClient.class)
 @Singleton
-public class EntraIDApiClient
+public class EntraIDApiClient implements Disposable
 {
-    private static final String USERS_API = "https://graph.microsoft.com/v1.0/users?$select=id,accountEnabled";
+    /**
+     * The maximum number of IDs that can be resolved by a single {@code getByIds} request.
+     */
+    public static final int MAX_IDS_PER_REQUEST = 1000;
+
+    /**
+     * The maximum number of requests that Graph accepts in a single JSON batch.
+     */
+    public static final int MAX_BATCH_SIZE = 20;
+
+    /**
+     * The maximum number of IDs that are resolved with a single HTTP round trip, by batching {@code getByIds}
+     * requests.
+     */
+    public static final int MAX_IDS_PER_BATCH = MAX_IDS_PER_REQUEST * MAX_BATCH_SIZE;
+
+    private static final String USERS_PATH = "/users";
+
+    private static final String USERS_DELTA_PATH = "/users/delta";
+
+    private static final String USERS_COUNT_PATH = "/users/$count";
+
+    private static final String GET_BY_IDS_PATH = "/directoryObjects/getByIds";
+
+    private static final List<String> DEFAULT_SELECT = List.of("id", "accountEnabled");
+
+    private static final String BATCH_PATH = "/$batch";
+
+    private static final String ID = "id";
+
+    private static final String BODY = "body";
+
+    private static final String HEADERS = "headers";
+
+    private static final String VALUE = "value";
+
+    private static final String POST = "POST";
+
+    private static final int GONE = 410;
+
+    private static final String CONTENT_TYPE = "Content-Type";
+
+    private static final String APPLICATION_JSON = "application/json";
+
+    private static final String INVALID_RESPONSE = "Graph request did not return a valid response.";
+
+    private static final List<String> EXPIRED_SYNC_STATE_CODES =
+        List.of("syncStateNotFound", "syncStateInvalid", "resyncRequired");
+
+    private static final int PARSER_THREADS = 4;
+
+    private static final long PARSER_KEEP_ALIVE = 60;
+
+    private final Map<String, CompletableFuture<EntraIDUsersPage>> inFlightPages = new ConcurrentHashMap<>();
+
+    private final ExecutorService parser = newParser();
 
     @Inject
     private HttpClientBuilderFactory httpClientBuilderFactory;
 
+    @Inject
+    private EntraIDTokenManager tokenManager;
+
+    @Inject
+    private EntraIDRetryPolicy retryPolicy;
+
+    @Inject
+    private EntraIDCircuitBreaker circuitBreaker;
+
+    @Inject
+    private EntraIDRequestMetrics requestMetrics;
+
     @Inject
     private EntraIDConfiguration configuration;
 
+    @Inject
+    private EntraIDTransferMetrics transferMetrics;
+
+    @Inject
+    private Logger logger;
+
     /**
-     * Get the users from the Entra ID application as a {@link Map} formed of the user ID as a key and whether the
-     * account is enabled or not as a value.
+     * Get the users from the Entra ID application, one Graph page at a time. Each page holds the user IDs, whether
+     * the accounts are enabled or not and the additional attributes selected in the configuration. The page size and
+     * the filter restricting the users are configurable as well. The first page is fetched right away, and each next
+     * page is requested in the background as soon as the previous one is fetched, by following its
+     * {@code @odata.nextLink}, so that it downloads while the previous page is processed. Throttled requests are sent
+     * again according to the {@link EntraIDRetryPolicy}, and a page that still fails can be requested again by
+     * calling {@link Iterator#next()} once more, which resumes the enumeration from the link of that page.
      *
-     * @return a {@link JSONArray} consisting of the user ID and whether the account is enabled or not.
+     * @return an {@link Iterator} over the pages of users
+     * @throws Exception if any error occurs while getting the first page
+     */
+    public Iterator<List<ExternalUser>> getUsers() throws Exception
+    {
+        return new EntraIDPageIterator(getUsersURL(), this::getPage, this::getPageAsync);
+    }
+
+    /**
+     * Get the first page of users from the Entra ID application, without blocking the calling thread. The next pages
+     * are requested with {@link #getNextPageAsync(EntraIDUsersPage)}.
+     *
+     * @return a future completed with the first page of users
+     */
+    public CompletableFuture<EntraIDUsersPage> getUsersAsync()
+    {
+        return getPageAsync(getUsersURL());
+    }
+
+    /**
+     * Get the users that changed since the given delta link, one Graph page at a time. Users removed from the
+     * directory are marked with the {@code @removed} property. The configured filter is not applied, since delta
+     * queries only support filtering on the user IDs. Once all the pages are consumed, the link to the next
+     * changes is available through {@link EntraIDPageIterator#getDeltaLink()}. As with {@link #getUsers()}, each next
+     * page is requested in the background as soon as the previous one is fetched.
+     *
+     * @param deltaLink the delta link returned by a previous delta query, or {@code null} to start a new delta query
+     *     that returns all the users
+     * @return an {@link EntraIDPageIterator} over the pages of changed users
+     * @throws EntraIDDeltaLinkExpiredException if the delta link is no longer accepted by Graph
+     * @throws Exception if any other error occurs while getting the first page
+     */
+    public EntraIDPageIterator getUsersDelta(String deltaLink) throws Exception
+    {
+        return new EntraIDPageIterator(getDeltaURL(deltaLink), this::getPage, this::getPageAsync);
+    }
+
+    /**
+     * Get the first page of users that changed since the given delta link, without blocking the calling thread. The
+     * next pages are requested with {@link #getNextPageAsync(EntraIDUsersPage)}, and the last page holds the link to
+     * the next changes.
+     *
+     * @param deltaLink the delta link returned by a previous delta query, or {@code null} to start a new delta query
+     *     that returns all the users
+     * @return a future completed with the first page of changed users, or completed exceptionally with an
+     *     {@link EntraIDDeltaLinkExpiredException} if the delta link is no longer accepted by Graph
+     */
+    public CompletableFuture<EntraIDUsersPage> getUsersDeltaAsync(String deltaLink)
+    {
+        return getPageAsync(getDeltaURL(deltaLink));
+    }
+
+    /**
+     * Get the page following the given one, without blocking the calling thread.
+     *
+     * @param page a page of users
+     * @return a future completed with the next page, or with {@code null} if the given page is the last one
+     */
+    public CompletableFuture<EntraIDUsersPage> getNextPageAsync(EntraIDUsersPage page)
+    {
+        if (page.getNextLink() == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return getPageAsync(page.getNextLink());
+    }
+
+    /**
+     * Resolve the given user IDs. The IDs that don't belong to an existing user are missing from the result. The IDs
+     * are resolved in chunks of {@link #MAX_IDS_PER_REQUEST}, which are sent together in a JSON batch when there are
+     * several of them.
+     *
+     * @param ids the IDs of the users to resolve, at most {@link #MAX_IDS_PER_BATCH}
+     * @return the resolved users
      * @throws Exception if any error occurs
      */
-    public JSONArray getUsers() throws Exception
+    public List<ExternalUser> getUsersByIds(List<String> ids) throws Exception
     {
-        String accessToken = getAccessToken();
-        HttpRequest request =
-            HttpRequest.newBuilder().uri(URI.create(USERS_API)).header("Authorization", "Bearer " + accessToken).GET()
-                .build();
+        return EntraIDFutures.await(getUsersByIdsAsync(ids));
+    }
 
-        HttpClient client = httpClientBuilderFactory.getHttpClient();
-        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
-        if (response.statusCode() != 200) {
-            throw new RuntimeException("Graph request did not return a valid response.");
+    /**
+     * Resolve the given user IDs, without blocking the calling thread.
+     *
+     * @param ids the IDs of the users to resolve, at most {@link #MAX_IDS_PER_BATCH}
+     * @return a future completed with the resolved users
+     * @see #getUsersByIds(List)
+     */
+    public CompletableFuture<List<ExternalUser>> getUsersByIdsAsync(List<String> ids)
+    {
+        if (ids.size() > MAX_IDS_PER_BATCH) {
+            throw new IllegalArgumentException(
+                String.format("At most [%d] IDs can be resolved at once.", MAX_IDS_PER_BATCH));
+        }
+        Set<String> attributes = getSelectedAttributes();
+        String getByIdsPath = GET_BY_IDS_PATH + getSelect(attributes);
+        List<EntraIDBatchRequest> requests = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i += MAX_IDS_PER_REQUEST) {
+            List<String> chunk = ids.subList(i, Math.min(i + MAX_IDS_PER_REQUEST, ids.size()));
+            JSONObject body =
+                new JSONObject().put("ids", new JSONArray(chunk)).put("types", new JSONArray().put("user"));
+            requests.add(new EntraIDBatchRequest(String.valueOf(requests.size()), POST, getByIdsPath, body));
         }
-        JSONObject json = new JSONObject(response.body());
+        if (requests.size() == 1) {
+            EntraIDBatchRequest request = requests.get(0);
+            HttpRequest.Builder httpRequest = HttpRequest.newBuilder()
+                .uri(URI.create(getGraphRoot() + request.getUrl())).header(CONTENT_TYPE, APPLICATION_JSON)
+                .POST(HttpRequest.BodyPublishers.ofString(request.getBody().toString()));
+            return sendAsync(httpRequest)
+                .thenApplyAsync(response -> new ArrayList<>(parse(response, attributes).getUsers()), parser);
+        }
+        return batchAsync(requests).thenApply(responses -> {
+            List<ExternalUser> users = new ArrayList<>(ids.size());
+            for (EntraIDBatchResponse response : responses.values()) {
+                if (!response.isSuccessful() || response.getBody() == null) {
+                    throw new RuntimeException(INVALID_RESPONSE);
+                }
+                JSONArray values = response.getBody().optJSONArray(VALUE);
+                if (values != null) {
+                    for (int i = 0; i < values.length(); i++) {
+                        users.add(EntraIDUsersPageParser.toExternalUser(values.getJSONObject(i), attributes));
+                    }
+                }
+            }
+            return users;
+        });
+    }
 
-        return json.getJSONArray("value");
+    /**
+     * Send the given requests as JSON batches of at most {@link #MAX_BATCH_SIZE} requests, reducing the number of
+     * HTTP round trips. The requests that fail because of throttling or of a server error are sent again in a new
+     * batch, according to the {@link EntraIDRetryPolicy}. The responses of the requests that keep failing are returned
+     * as is.
+     *
+     * @param requests the requests to send, with unique IDs
+     * @return the responses, mapped by the ID of their request
+     * @throws IOException if a batch could not be sent
+     * @throws InterruptedException if the thread is interrupted while sending a batch
+     */
+    public Map<String, EntraIDBatchResponse> batch(List<EntraIDBatchRequest> requests)
+        throws IOException, InterruptedException
+    {
+        return EntraIDFutures.await(batchAsync(requests));
     }
 
-    private String getAccessToken() throws Exception
+    /**
+     * Send the given requests as JSON batches, without blocking the calling thread. The batches are sent concurrently.
+     *
+     * @param requests the requests to send, with unique IDs
+     * @return a future completed with the responses, mapped by the ID of their request
+     * @see #batch(List)
+     */
+    public CompletableFuture<Map<String, EntraIDBatchResponse>> batchAsync(List<EntraIDBatchRequest> requests)
     {
-        String url = configuration.getTokenEndpoint();
+        return batchAsync(requests, new HashMap<>(), 1, retryPolicy.now());
+    }
 
-        StringBuilder sb = new StringBuilder();
-        sb.append("client_id=").append(URLEncoder.encode(configuration.getClientID(), StandardCharsets.UTF_8));
-        sb.append("&scope=").append(URLEncoder.encode("https://graph.microsoft.com/.default", StandardCharsets.UTF_8));
-        sb.append("&client_secret=").append(URLEncoder.encode(configuration.getSecret(), StandardCharsets.UTF_8));
-        sb.append("&grant_type=client_credentials");
+    /**
+     * Get the number of users of the Entra ID tenant. The count is eventually consistent, so it might not reflect the
+     * latest changes.
+     *
+     * @return the number of users
+     * @throws Exception if any error occurs
+     */
+    public long getUsersCount() throws Exception
+    {
+        return EntraIDFutures.await(getUsersCountAsync());
+    }
+
+    /**
+     * Get the number of users of the Entra ID tenant, without blocking the calling thread.
+     *
+     * @return a future completed with the number of users
+     * @see #getUsersCount()
+     */
+    public CompletableFuture<Long> getUsersCountAsync()
+    {
+        // Counting requires the advanced query capabilities, enabled by the eventual consistency level.
+        HttpRequest.Builder request = HttpRequest.newBuilder().uri(URI.create(getGraphRoot() + USERS_COUNT_PATH))
+            .header("ConsistencyLevel", "eventual").GET();
+        return sendAsync(request).thenApplyAsync(response -> Long.parseLong(readString(response).trim()), parser);
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        parser.shutdownNow();
+    }
+
+    private CompletableFuture<Map<String, EntraIDBatchResponse>> batchAsync(List<EntraIDBatchRequest> pending,
+        Map<String, EntraIDBatchResponse> responses, int attempt, Instant start)
+    {
+        List<CompletableFuture<List<EntraIDBatchResponse>>> batches = new ArrayList<>();
+        for (int i = 0; i < pending.size(); i += MAX_BATCH_SIZE) {
+            batches.add(sendBatchAsync(pending.subList(i, Math.min(i + MAX_BATCH_SIZE, pending.size()))));
+        }
+        return CompletableFuture.allOf(batches.toArray(new CompletableFuture[0])).thenCompose(ignored -> {
+            Map<String, EntraIDBatchRequest> requestsById = new HashMap<>();
+            pending.forEach(request -> requestsById.put(request.getId(), request));
+            List<EntraIDBatchRequest> failed = new ArrayList<>();
+            Duration delay = Duration.ZERO;
+            for (CompletableFuture<List<EntraIDBatchResponse>> batch : batches) {
+                for (EntraIDBatchResponse response : batch.join()) {
+                    responses.put(response.getId(), response);
+                    Duration retryDelay = getRetryDelay(response, attempt, start);
+                    if (retryDelay != null) {
+                        failed.add(requestsById.get(response.getId()));
+                        requestMetrics.recordRetry(EntraIDRequestMetrics.BATCH);
+                        delay = retryDelay.compareTo(delay) > 0 ? retryDelay : delay;
+                    }
+                }
+            }
+            if (failed.isEmpty()) {
+                return CompletableFuture.completedFuture(responses);
+            }
+            logger.debug("Retrying [{}] throttled Graph batch requests in [{}].", failed.size(), delay);
+            Executor delayedExecutor =
+                CompletableFuture.delayedExecutor(delay.toMillis(), TimeUnit.MILLISECONDS, parser);
+            return CompletableFuture.supplyAsync(() -> failed, delayedExecutor)
+                .thenCompose(retry -> batchAsync(retry, responses, attempt + 1, start));
+        });
+    }
+
+    private CompletableFuture<List<EntraIDBatchResponse>> sendBatchAsync(List<EntraIDBatchRequest> requests)
+    {
+        JSONArray jsonRequests = new JSONArray();
+        for (EntraIDBatchRequest request : requests) {
+            JSONObject jsonRequest = new JSONObject().put(ID, request.getId()).put("method", request.getMethod())
+                .put("url", request.getUrl());
+            if (request.getBody() != null) {
+                jsonRequest.put(BODY, request.getBody())
+                    .put(HEADERS, new JSONObject().put(CONTENT_TYPE, APPLICATION_JSON));
+            }
+            jsonRequests.put(jsonRequest);
+        }
+        String body = new JSONObject().put("requests", jsonRequests).toString();
+        HttpRequest.Builder request = HttpRequest.newBuilder().uri(URI.create(getGraphRoot() + BATCH_PATH))
+            .header(CONTENT_TYPE, APPLICATION_JSON).POST(HttpRequest.BodyPublishers.ofString(body));
+
+        return sendAsync(request).thenApplyAsync(response -> {
+            JSONArray jsonResponses = new JSONObject(readString(response)).getJSONArray("responses");
+            List<EntraIDBatchResponse> responses = new ArrayList<>(jsonResponses.length());
+            for (int i = 0; i < jsonResponses.length(); i++) {
+                JSONObject jsonResponse = jsonResponses.getJSONObject(i);
+                JSONObject headers = jsonResponse.optJSONObject(HEADERS);
+                responses.add(new EntraIDBatchResponse(jsonResponse.getString(ID), jsonResponse.getInt("status"),
+                    headers != null ? headers : new JSONObject(), jsonResponse.optJSONObject(BODY)));
+            }
+            return responses;
+        }, parser);
+    }
+
+    private Duration getRetryDelay(EntraIDBatchResponse response, int attempt, Instant start)
+    {
+        if (!retryPolicy.isRetryable(response.getStatus())) {
+            return null;
+        }
+        return retryPolicy.getRetryDelay(attempt,
+            response.getHeaders().optString(EntraIDRetryPolicy.RETRY_AFTER, null), start);
+    }
+
+    private String getGraphRoot()
+    {
+        return StringUtils.removeEnd(configuration.getGraphEndpoint(), "/");
+    }
+
+    private String getUsersURL()
+    {
+        StringBuilder url = new StringBuilder(getGraphRoot()).append(USERS_PATH);
+        url.append(getSelect(getSelectedAttributes()));
+        url.append("&$top=").append(configuration.getUsersPageSize());
+        String filter = configuration.getUsersFilter();
+        if (!filter.isEmpty()) {
+            url.append("&$filter=").append(URLEncoder.encode(filter, StandardCharsets.UTF_8).replace("+", "%20"));
+        }
+        return url.toString();
+    }
+
+    private String getDeltaURL(String deltaLink)
+    {
+        return deltaLink != null ? deltaLink : getGraphRoot() + USERS_DELTA_PATH + getSelect(getSelectedAttributes());
+    }
+
+    private Set<String> getSelectedAttributes()
+    {
+        Set<String> attributes = new LinkedHashSet<>(configuration.getUsersSelectedAttributes());
+        attributes.removeAll(DEFAULT_SELECT);
+        return attributes;
+    }
+
+    private String getSelect(Set<String> attributes)
+    {
+        List<String> select = new ArrayList<>(DEFAULT_SELECT);
+        select.addAll(attributes);
+        return "?$select=" + String.join(",", select);
+    }
+
+    private HttpRequest.Builder newPageRequest(String url)
+    {
+        // Delta queries don't support $top, so the page size is also requested through the preference header.
+        return HttpRequest.newBuilder().uri(URI.create(url))
+            .header("Prefer", "odata.maxpagesize=" + configuration.getUsersPageSize()).GET();
+    }
+
+    private EntraIDUsersPage getPage(String url) throws IOException, InterruptedException
+    {
+        return EntraIDFutures.await(shareInFlightPage(url, () -> {
+            try {
+                return CompletableFuture.completedFuture(fetchPage(url));
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return CompletableFuture.failedFuture(e);
+            }
+        }));
+    }
+
+    private EntraIDUsersPage fetchPage(String url) throws IOException, InterruptedException
+    {
+        // The page is parsed by the calling thread while it is received, instead of being buffered as a string first.
+        HttpRequest.Builder request = newPageRequest(url);
+        EntraIDUsersPage page = EntraIDUsersPageParser.parse(decode(EntraIDFutures.await(sendAsync(request))),
+            getSelectedAttributes());
+        requestMetrics.recordPage(getEndpoint(URI.create(url)));
+        return page;
+    }
+
+    private CompletableFuture<EntraIDUsersPage> getPageAsync(String url)
+    {
+        return shareInFlightPage(url, () -> {
+            HttpRequest.Builder request = newPageRequest(url);
+            Set<String> attributes = getSelectedAttributes();
+            // Reading the body blocks until it is received, so it is parsed outside of the HTTP client threads.
+            return sendAsync(request).thenApplyAsync(response -> {
+                EntraIDUsersPage page = parse(response, attributes);
+                requestMetrics.recordPage(getEndpoint(URI.create(url)));
+                return page;
+            }, parser);
+        });
+    }
+
+    private CompletableFuture<EntraIDUsersPage> shareInFlightPage(String url,
+        Supplier<CompletableFuture<EntraIDUsersPage>> fetch)
+    {
+        // The first page URL doesn't depend on the tenant, so the application and the tenant, identified by the token
+        // endpoint, are part of the key.
+        String key = String.join(" ", configuration.getTokenEndpoint(), configuration.getClientID(), url);
+        CompletableFuture<EntraIDUsersPage> page = new CompletableFuture<>();
+        CompletableFuture<EntraIDUsersPage> inFlightPage = inFlightPages.putIfAbsent(key, page);
+        if (inFlightPage != null) {
+            // The same page is already being fetched: share its result. Each caller gets its own copy of the users,
+            // since they can be modified.
+            return inFlightPage.thenApply(EntraIDUsersPage::copy);
+        }
+        CompletableFuture<EntraIDUsersPage> fetchedPage;
+        try {
+            fetchedPage = fetch.get();
+        } catch (RuntimeException e) {
+            fetchedPage = CompletableFuture.failedFuture(e);
+        }
+        fetchedPage.whenComplete((result, error) -> {
+            // Only the requests in flight are shared, the pages are not cached.
+            inFlightPages.remove(key, page);
+            if (error == null) {
+                page.complete(result);
+            } else {
+                page.completeExceptionally(error);
+            }
+        });
+        return page;
+    }
+
+    private EntraIDUsersPage parse(HttpResponse<InputStream> response, Set<String> attributes)
+    {
+        try {
+            return EntraIDUsersPageParser.parse(decode(response), attributes);
+        } catch (IOException e) {
+            throw EntraIDFutures.wrap(e);
+        }
+    }
+
+    private String readString(HttpResponse<InputStream> response)
+    {
+        try (InputStream body = decode(response)) {
+            return body != null ? new String(body.readAllBytes(), StandardCharsets.UTF_8) : null;
+        } catch (IOException e) {
+            throw EntraIDFutures.wrap(e);
+        }
+    }
+
+    private InputStream decode(HttpResponse<InputStream> response) throws IOException
+    {
+        if (response.body() == null) {
+            return null;
+        }
+        return transferMetrics.decode(response.body(),
+            response.headers().firstValue("Content-Encoding").orElse(null));
+    }
 
-        HttpRequest request =
-            HttpRequest.newBuilder().uri(URI.create(url)).header("Content-Type", "application/x-www-form-urlencoded")
-                .POST(HttpRequest.BodyPublishers.ofString(sb.toString())).build();
-        HttpClient client = httpClientBuilderFactory.getHttpClient();
-        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+    private CompletableFuture<HttpResponse<InputStream>> sendAsync(HttpRequest.Builder requestBuilder)
+    {
+        // The responses are always streamed, so that compressed responses can be decoded while they are read.
+        requestBuilder.header("Accept-Encoding", EntraIDTransferMetrics.ACCEPT_ENCODING);
+        Duration timeout = httpClientBuilderFactory.getRequestTimeout();
+        if (timeout != null) {
+            requestBuilder.timeout(timeout);
+        }
+        // The token is requested for each call since it might expire while iterating over a large directory.
+        return tokenManager.getAccessTokenAsync(EntraIDTokenManager.GRAPH_SCOPE).thenCompose(accessToken -> {
+            HttpRequest request = requestBuilder.header("Authorization", "Bearer " + accessToken).build();
+            HttpClient client = httpClientBuilderFactory.getHttpClient();
+            String endpoint = getEndpoint(request.uri());
+            // The received bytes are counted before the body is decoded.
+            HttpResponse.BodyHandler<InputStream> bodyHandler = responseInfo -> HttpResponse.BodySubscribers
+                .mapping(HttpResponse.BodySubscribers.ofInputStream(),
+                    body -> requestMetrics.countReceivedBytes(endpoint, body));
+            Supplier<CompletableFuture<HttpResponse<InputStream>>> attempt =
+                requestMetrics.track(endpoint, () -> client.sendAsync(request, bodyHandler));
+            // Each attempt goes through the circuit breaker, so that pending retries stop once the circuit opens.
+            String circuit = EntraIDCircuitBreaker.getCircuit(EntraIDCircuitBreaker.GRAPH, request.uri());
+            return retryPolicy.withRetries(() -> circuitBreaker.execute(circuit, attempt));
+        }).thenApply(this::checkStatus);
+    }
+
+    private String getEndpoint(URI uri)
+    {
+        String path = uri.getPath();
+        if (path.endsWith(USERS_DELTA_PATH)) {
+            return EntraIDRequestMetrics.DELTA;
+        } else if (path.endsWith(USERS_COUNT_PATH)) {
+            return EntraIDRequestMetrics.COUNT;
+        } else if (path.endsWith(GET_BY_IDS_PATH)) {
+            return EntraIDRequestMetrics.GET_BY_IDS;
+        } else if (path.endsWith(BATCH_PATH)) {
+            return EntraIDRequestMetrics.BATCH;
+        }
+        return EntraIDRequestMetrics.USERS;
+    }
 
+    private HttpResponse<InputStream> checkStatus(HttpResponse<InputStream> response)
+    {
         if (response.statusCode() != 200) {
-            throw new RuntimeException("Failed to get token");
+            // Error responses are small, so reading them here doesn't hold the HTTP client threads for long.
+            String body = readString(response);
+            if (isSyncStateExpired(response.statusCode(), body)) {
+                throw EntraIDFutures.wrap(
+                    new EntraIDDeltaLinkExpiredException("The Graph delta link is no longer valid."));
+            }
+            throw new RuntimeException(INVALID_RESPONSE);
         }
+        return response;
+    }
 
-        JSONObject json = new JSONObject(response.body());
-        return json.getString("access_token");
+    private boolean isSyncStateExpired(int status, String body)
+    {
+        if (status == GONE) {
+            return true;
+        }
+        if (body == null) {
+            return false;
+        }
+        try {
+            JSONObject error = new JSONObject(body).optJSONObject("error");
+            return error != null && EXPIRED_SYNC_STATE_CODES.contains(error.optString("code"));
+        } catch (JSONException e) {
+            return false;
+        }
+    }
+
+    private static ExecutorService newParser()
+    {
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(PARSER_THREADS, PARSER_THREADS, PARSER_KEEP_ALIVE,
+            TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "Entra ID response parser " + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        // The threads are only kept while requests are being sent.
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
     }
 }
@@ -0,0 +1,99 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.azureoauth.internal;
+
+import org.json.JSONObject;
+
+/**
+ * A Graph request sent as part of a JSON batch.
+ *
+ * @version $Id$
+ * @since 2.2.4
+ */
+public class EntraIDBatchRequest
+{
+    private final String id;
+
+    private final String method;
+
+    private final String url;
+
+    private final JSONObject body;
+
+    /**
+     * Creates a request without body.
+     *
+     * @param id identifies the request inside the batch
+     * @param method the HTTP method
+     * @param url the URL of the request, relative to the Graph version root (e.g. {@code /users/{id}})
+     */
+    public EntraIDBatchRequest(String id, String method, String url)
+    {
+        this(id, method, url, null);
+    }
+
+    /**
+     * Creates a request with a JSON body.
+     *
+     * @param id identifies the request inside the batch
+     * @param method the HTTP method
+     * @param url the URL of the request, relative to the Graph version root (e.g. {@code /users/{id}})
+     * @param body the JSON body of the request, or {@code null} if there is none
+     */
+    public EntraIDBatchRequest(String id, String method, String url, JSONObject body)
+    {
+        this.id = id;
+        this.method = method;
+        this.url = url;
+        this.body = body;
+    }
+
+    /**
+     * @return the identifier of the request inside the batch
+     */
+    public String getId()
+    {
+        return id;
+    }
+
+    /**
+     * @return the HTTP method
+     */
+    public String getMethod()
+    {
+        return method;
+    }
+
+    /**
+     * @return the URL of the request, relative to the Graph version root
+     */
+    public String getUrl()
+    {
+        return url;
+    }
+
+    /**
+     * @return the JSON body of the request, or {@code null} if there is none
+     */
+    public JSONObject getBody()
+    {
+        return body;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.azureoauth.internal;
+
+import org.json.JSONObject;
+
+/**
+ * The response to a Graph request sent as part of a JSON batch.
+ *
+ * @version $Id$
+ * @since 2.2.4
+ */
+public class EntraIDBatchResponse
+{
+    private final String id;
+
+    private final int status;
+
+    private final JSONObject headers;
+
+    private final JSONObject body;
+
+    /**
+     * Parameters constructor.
+     *
+     * @param id the identifier of the request this response belongs to
+     * @param status the HTTP status code
+     * @param headers the response headers
+     * @param body the JSON body of the response, or {@code null} if there is none
+     */
+    public EntraIDBatchResponse(String id, int status, JSONObject headers, JSONObject body)
+    {
+        this.id = id;
+        this.status = status;
+        this.headers = headers;
+        this.body = body;
+    }
+
+    /**
+     * @return the identifier of the request this response belongs to
+     */
+    public String getId()
+    {
+        return id;
+    }
+
+    /**
+     * @return the HTTP status code
+     */
+    public int getStatus()
+    {
+        return status;
+    }
+
+    /**
+     * @return the response headers
+     */
+    public JSONObject getHeaders()
+    {
+        return headers;
+    }
+
+    /**
+     * @return the JSON body of the response, or {@code null} if there is none
+     */
+    public JSONObject getBody()
+    {
+        return body;
+    }
+
+    /**
+     * @return {@code true} if the request succeeded, or {@code false} otherwise
+     */
+    public boolean isSuccessful()
+    {
+        return status >= 200 && status < 300;
+    }
+}
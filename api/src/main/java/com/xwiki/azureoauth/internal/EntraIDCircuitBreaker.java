@@ -0,0 +1,224 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.azureoauth.internal;
+
+import java.net.URI;
+import java.net.http.HttpResponse;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+
+/**
+ * Stops sending requests to an Entra ID endpoint that keeps failing, so that the callers fail fast instead of each
+ * waiting for a network timeout during an outage. Each endpoint has its own circuit for each host it is reached on, see
+ * {@link #getCircuit(String, URI)}, so that an unavailable host, e.g. of a national cloud, doesn't block the requests
+ * of the wikis using another one. A circuit opens after a number of consecutive failures, and once the open period is
+ * over a single probe request is let through. The circuit closes again if the probe succeeds and stays open for
+ * another period otherwise.
+ *
+ * @version $Id$
+ * @since 2.2.4
+ */
+@Component(roles = EntraIDCircuitBreaker.class)
+@Singleton
+public class EntraIDCircuitBreaker
+{
+    /**
+     * The Microsoft Graph API endpoint.
+     */
+    public static final String GRAPH = "graph";
+
+    /**
+     * The Microsoft identity platform token endpoint.
+     */
+    public static final String TOKEN = "token";
+
+    private static final int FAILURE_THRESHOLD = 5;
+
+    private static final Duration OPEN_DURATION = Duration.ofSeconds(30);
+
+    private static final int SERVER_ERROR = 500;
+
+    private final Map<String, Circuit> circuits = new ConcurrentHashMap<>();
+
+    private Clock clock = Clock.systemUTC();
+
+    @Inject
+    private Logger logger;
+
+    /**
+     * The state of a circuit.
+     *
+     * @version $Id$
+     */
+    public enum State
+    {
+        /**
+         * The requests are sent normally.
+         */
+        CLOSED,
+
+        /**
+         * The requests fail without being sent.
+         */
+        OPEN,
+
+        /**
+         * A single probe request is being sent to check if the endpoint is available again.
+         */
+        HALF_OPEN
+    }
+
+    /**
+     * Get the name of the circuit of an endpoint reached on the host of the given URI. Only server errors and requests
+     * failing without a response open a circuit, and these don't depend on the tenant, so the tenants sharing a host
+     * share its circuit.
+     *
+     * @param endpoint the endpoint, e.g. {@link #GRAPH} or {@link #TOKEN}
+     * @param uri the URI the request is sent to
+     * @return the name of the circuit to use for the request
+     */
+    public static String getCircuit(String endpoint, URI uri)
+    {
+        return uri.getAuthority() != null ? endpoint + ':' + uri.getAuthority() : endpoint;
+    }
+
+    /**
+     * Send a request through the circuit of the given endpoint. The request fails with an
+     * {@link EntraIDCircuitOpenException}, without being sent, while the circuit is open. Server errors count as
+     * failures, like the requests that fail without a response. Throttled requests don't, since the server is available
+     * and tells when to send them again.
+     *
+     * @param endpoint the circuit of the endpoint the request is sent to, see {@link #getCircuit(String, URI)}
+     * @param call sends the request
+     * @param <T> the type of the response body
+     * @return a future completed with the response
+     */
+    public <T> CompletableFuture<HttpResponse<T>> execute(String endpoint,
+        Supplier<CompletableFuture<HttpResponse<T>>> call)
+    {
+        Circuit circuit = this.circuits.computeIfAbsent(endpoint, Circuit::new);
+        if (!circuit.tryAcquire(this.clock.instant())) {
+            return CompletableFuture.failedFuture(new EntraIDCircuitOpenException(
+                String.format("The Entra ID [%s] endpoint is unavailable, the request was not sent.", endpoint)));
+        }
+        CompletableFuture<HttpResponse<T>> response;
+        try {
+            response = call.get();
+        } catch (RuntimeException e) {
+            response = CompletableFuture.failedFuture(e);
+        }
+        return response.whenComplete((result, error) -> {
+            if (error != null || result.statusCode() >= SERVER_ERROR) {
+                circuit.onFailure(this.clock.instant());
+            } else {
+                circuit.onSuccess();
+            }
+        });
+    }
+
+    /**
+     * @param endpoint the circuit of an endpoint, see {@link #getCircuit(String, URI)}
+     * @return the current state of the circuit of the given endpoint
+     */
+    public State getState(String endpoint)
+    {
+        Circuit circuit = this.circuits.get(endpoint);
+        return circuit != null ? circuit.getState() : State.CLOSED;
+    }
+
+    /**
+     * @return the current state of the circuit of each endpoint that was called so far, by circuit name
+     */
+    public Map<String, State> getStates()
+    {
+        Map<String, State> states = new TreeMap<>();
+        this.circuits.forEach((endpoint, circuit) -> states.put(endpoint, circuit.getState()));
+        return states;
+    }
+
+    private final class Circuit
+    {
+        private final String endpoint;
+
+        private State state = State.CLOSED;
+
+        private int failures;
+
+        private Instant openedAt;
+
+        Circuit(String endpoint)
+        {
+            this.endpoint = endpoint;
+        }
+
+        synchronized boolean tryAcquire(Instant now)
+        {
+            if (this.state == State.CLOSED) {
+                return true;
+            }
+            if (this.state == State.OPEN && !now.isBefore(this.openedAt.plus(OPEN_DURATION))) {
+                // Let a single probe through, the other callers keep failing fast until it completes.
+                this.state = State.HALF_OPEN;
+                return true;
+            }
+            return false;
+        }
+
+        synchronized void onSuccess()
+        {
+            if (this.state != State.CLOSED) {
+                logger.info("The Entra ID [{}] endpoint is available again.", this.endpoint);
+            }
+            this.state = State.CLOSED;
+            this.failures = 0;
+        }
+
+        synchronized void onFailure(Instant now)
+        {
+            // Failures of requests sent before the circuit opened don't extend the open period.
+            if (this.state == State.HALF_OPEN
+                || (this.state == State.CLOSED && ++this.failures >= FAILURE_THRESHOLD))
+            {
+                logger.warn("The Entra ID [{}] endpoint is unavailable, the requests will fail for [{}].",
+                    this.endpoint, OPEN_DURATION);
+                this.state = State.OPEN;
+                this.openedAt = now;
+                this.failures = 0;
+            }
+        }
+
+        synchronized State getState()
+        {
+            return this.state;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.azureoauth.internal;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the bytes read from the wrapped stream.
+ *
+ * @version $Id$
+ * @since 2.2.4
+ */
+final class EntraIDCountingInputStream extends FilterInputStream
+{
+    private final LongAdder counter;
+
+    EntraIDCountingInputStream(InputStream in, LongAdder counter)
+    {
+        super(in);
+        this.counter = counter;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        int b = super.read();
+        if (b >= 0) {
+            counter.increment();
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        int count = super.read(b, off, len);
+        if (count > 0) {
+            counter.add(count);
+        }
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException
+    {
+        long count = super.skip(n);
+        counter.add(count);
+        return count;
+    }
+}
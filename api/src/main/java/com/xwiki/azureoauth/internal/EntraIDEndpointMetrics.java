@@ -0,0 +1,196 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.azureoauth.internal;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The metrics of the requests sent to a single Entra ID endpoint. All the counters can be updated concurrently.
+ *
+ * @version $Id$
+ * @since 2.2.4
+ */
+public class EntraIDEndpointMetrics implements EntraIDEndpointMetricsMXBean
+{
+    /**
+     * The upper bounds, in milliseconds, of the latency histogram buckets. The last bucket has no upper bound.
+     */
+    private static final long[] LATENCY_BUCKETS = { 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000 };
+
+    private static final String UNBOUNDED_BUCKET = "+Inf";
+
+    private final String endpoint;
+
+    private final LongAdder requests = new LongAdder();
+
+    private final LongAdder failures = new LongAdder();
+
+    private final LongAdder retries = new LongAdder();
+
+    private final LongAdder pages = new LongAdder();
+
+    private final LongAdder receivedBytes = new LongAdder();
+
+    private final Map<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+
+    private final LongAdder[] latencyBuckets = new LongAdder[LATENCY_BUCKETS.length + 1];
+
+    private final LongAdder totalLatency = new LongAdder();
+
+    private final LongAccumulator maxLatency = new LongAccumulator(Math::max, 0);
+
+    EntraIDEndpointMetrics(String endpoint)
+    {
+        this.endpoint = endpoint;
+        for (int i = 0; i < this.latencyBuckets.length; i++) {
+            this.latencyBuckets[i] = new LongAdder();
+        }
+    }
+
+    void recordResponse(int status, long latencyNanos)
+    {
+        this.statuses.computeIfAbsent(status, key -> new LongAdder()).increment();
+        recordLatency(latencyNanos);
+    }
+
+    void recordFailure(long latencyNanos)
+    {
+        this.failures.increment();
+        recordLatency(latencyNanos);
+    }
+
+    void recordRetry()
+    {
+        this.retries.increment();
+    }
+
+    void recordPage()
+    {
+        this.pages.increment();
+    }
+
+    LongAdder getReceivedBytesCounter()
+    {
+        return this.receivedBytes;
+    }
+
+    private void recordLatency(long latencyNanos)
+    {
+        long latency = TimeUnit.NANOSECONDS.toMillis(latencyNanos);
+        this.requests.increment();
+        this.totalLatency.add(latency);
+        this.maxLatency.accumulate(latency);
+        int bucket = 0;
+        while (bucket < LATENCY_BUCKETS.length && latency > LATENCY_BUCKETS[bucket]) {
+            bucket++;
+        }
+        this.latencyBuckets[bucket].increment();
+    }
+
+    @Override
+    public String getEndpoint()
+    {
+        return this.endpoint;
+    }
+
+    @Override
+    public long getRequestCount()
+    {
+        return this.requests.sum();
+    }
+
+    @Override
+    public long getFailureCount()
+    {
+        return this.failures.sum();
+    }
+
+    @Override
+    public long getRetryCount()
+    {
+        return this.retries.sum();
+    }
+
+    @Override
+    public long getPageCount()
+    {
+        return this.pages.sum();
+    }
+
+    @Override
+    public long getReceivedBytes()
+    {
+        return this.receivedBytes.sum();
+    }
+
+    @Override
+    public Map<String, Long> getStatusCounts()
+    {
+        Map<String, Long> counts = new TreeMap<>();
+        this.statuses.forEach((status, count) -> counts.put(String.valueOf(status), count.sum()));
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getLatencyHistogram()
+    {
+        Map<String, Long> histogram = new LinkedHashMap<>();
+        for (int i = 0; i < this.latencyBuckets.length; i++) {
+            String bucket = i < LATENCY_BUCKETS.length ? String.valueOf(LATENCY_BUCKETS[i]) : UNBOUNDED_BUCKET;
+            histogram.put(bucket, this.latencyBuckets[i].sum());
+        }
+        return histogram;
+    }
+
+    @Override
+    public double getAverageLatency()
+    {
+        long count = this.requests.sum();
+        return count > 0 ? (double) this.totalLatency.sum() / count : 0;
+    }
+
+    @Override
+    public long getMaxLatency()
+    {
+        return this.maxLatency.get();
+    }
+
+    @Override
+    public void reset()
+    {
+        this.requests.reset();
+        this.failures.reset();
+        this.retries.reset();
+        this.pages.reset();
+        this.receivedBytes.reset();
+        this.statuses.clear();
+        for (LongAdder bucket : this.latencyBuckets) {
+            bucket.reset();
+        }
+        this.totalLatency.reset();
+        this.maxLatency.reset();
+    }
+}
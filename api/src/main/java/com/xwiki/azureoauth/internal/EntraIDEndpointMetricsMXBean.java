@@ -0,0 +1,86 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.azureoauth.internal;
+
+import java.util.Map;
+
+/**
+ * Management interface exposing the metrics of the requests sent to an Entra ID endpoint.
+ *
+ * @version $Id$
+ * @since 2.2.4
+ */
+public interface EntraIDEndpointMetricsMXBean
+{
+    /**
+     * @return the name of the endpoint
+     */
+    String getEndpoint();
+
+    /**
+     * @return the number of requests sent, retries included
+     */
+    long getRequestCount();
+
+    /**
+     * @return the number of requests that failed without a response, e.g. because of a timeout
+     */
+    long getFailureCount();
+
+    /**
+     * @return the number of requests that were sent again after being throttled or after a server error
+     */
+    long getRetryCount();
+
+    /**
+     * @return the number of users pages fetched
+     */
+    long getPageCount();
+
+    /**
+     * @return the number of response bytes received, before decompression
+     */
+    long getReceivedBytes();
+
+    /**
+     * @return the number of responses by HTTP status code
+     */
+    Map<String, Long> getStatusCounts();
+
+    /**
+     * @return the number of requests by latency bucket, each bucket being named after its upper bound in milliseconds
+     */
+    Map<String, Long> getLatencyHistogram();
+
+    /**
+     * @return the average time, in milliseconds, between sending a request and receiving the response headers
+     */
+    double getAverageLatency();
+
+    /**
+     * @return the longest time, in milliseconds, between sending a request and receiving the response headers
+     */
+    long getMaxLatency();
+
+    /**
+     * Reset all the metrics of the endpoint.
+     */
+    void reset();
+}
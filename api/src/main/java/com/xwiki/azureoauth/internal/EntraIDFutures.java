@@ -0,0 +1,87 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.azureoauth.internal;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Helpers for the blocking Entra ID APIs that are built on top of the asynchronous ones.
+ *
+ * @version $Id$
+ * @since 2.2.4
+ */
+public final class EntraIDFutures
+{
+    private EntraIDFutures()
+    {
+    }
+
+    /**
+     * Wait for the given future to complete and return its result, rethrowing the exception that made it fail, if any.
+     *
+     * @param future the future to wait for
+     * @param <T> the type of the result
+     * @return the result of the future
+     * @throws IOException if the future failed with an {@link IOException}
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public static <T> T await(CompletableFuture<T> future) throws IOException, InterruptedException
+    {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw unwrap(e.getCause());
+        }
+    }
+
+    /**
+     * Wrap a checked exception so that it can be thrown from a completion stage, while keeping it as the cause
+     * returned by {@link #await(CompletableFuture)}.
+     *
+     * @param e the exception to wrap
+     * @return the exception to throw from a completion stage
+     */
+    public static CompletionException wrap(IOException e)
+    {
+        return new CompletionException(e);
+    }
+
+    private static IOException unwrap(Throwable cause)
+    {
+        Throwable actualCause = cause;
+        while (actualCause instanceof CompletionException && actualCause.getCause() != null) {
+            actualCause = actualCause.getCause();
+        }
+        if (actualCause instanceof UncheckedIOException) {
+            return ((UncheckedIOException) actualCause).getCause();
+        } else if (actualCause instanceof IOException) {
+            return (IOException) actualCause;
+        } else if (actualCause instanceof RuntimeException) {
+            throw (RuntimeException) actualCause;
+        } else if (actualCause instanceof Error) {
+            throw (Error) actualCause;
+        }
+        return new IOException(actualCause);
+    }
+}
@@ -97,6 +97,9 @@ public class EntraIDObjectUpdateListener extends AbstractEventListener implement
     @Inject
     private Provider<XWikiContext> xcontextProvider;
 
+    @Inject
+    private Provider<HttpClientBuilderFactory> httpClientBuilderFactoryProvider;
+
     /**
      * Default constructor.
      */
@@ -111,6 +114,10 @@ public class EntraIDObjectUpdateListener extends AbstractEventListener implement
         if (event instanceof XObjectUpdatedEvent) {
             XWikiDocument document = (XWikiDocument) source;
             if (document != null && isEntraIDConfigObject(document)) {
+                // The HTTP client is shared by the whole farm, so only the main wiki configuration affects it.
+                if (wikiManager.isMainWiki(wikiManager.getCurrentWikiId())) {
+                    httpClientBuilderFactoryProvider.get().refresh();
+                }
                 try {
                     EntraIDConfiguration entraIDConfiguration = entraIDConfigurationProvider.get();
                     String oldTenantID = entraIDConfiguration.getOIDCTenantID();
@@ -0,0 +1,165 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.azureoauth.internal;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+import com.xwiki.azureoauth.user.ExternalUser;
+
+/**
+ * Lazily iterates over the pages of a Graph users collection, following the {@code @odata.nextLink} of each page. Only
+ * the page that is currently handed out is kept in memory. When a prefetcher is provided, the page following the one
+ * that was just fetched is requested in the background, so that it downloads while the caller processes the current
+ * page. At most one page is fetched ahead, so a slow consumer holds back the enumeration.
+ *
+ * @version $Id$
+ * @since 2.2.4
+ */
+public class EntraIDPageIterator implements Iterator<List<ExternalUser>>
+{
+    private final PageFetcher fetcher;
+
+    private final Function<String, CompletableFuture<EntraIDUsersPage>> prefetcher;
+
+    private CompletableFuture<EntraIDUsersPage> prefetchedPage;
+
+    private List<ExternalUser> pendingPage;
+
+    private String nextLink;
+
+    private String deltaLink;
+
+    /**
+     * Fetches a single Graph page.
+     *
+     * @version $Id$
+     */
+    @FunctionalInterface
+    public interface PageFetcher
+    {
+        /**
+         * Fetch the page found at the given URL.
+         *
+         * @param url the page URL
+         * @return the parsed page
+         * @throws IOException if the request fails
+         * @throws InterruptedException if the request is interrupted
+         */
+        EntraIDUsersPage fetch(String url) throws IOException, InterruptedException;
+    }
+
+    /**
+     * Creates an iterator and eagerly fetches the first page, so that configuration or authentication errors are
+     * reported to the caller right away.
+     *
+     * @param firstPageURL the URL of the first page
+     * @param fetcher used to fetch each page
+     * @throws IOException if the first page could not be fetched
+     * @throws InterruptedException if the request is interrupted
+     */
+    public EntraIDPageIterator(String firstPageURL, PageFetcher fetcher) throws IOException, InterruptedException
+    {
+        this(firstPageURL, fetcher, null);
+    }
+
+    /**
+     * Creates an iterator that eagerly fetches the first page and requests each next page in the background as soon
+     * as the previous one is fetched. A page whose background request failed is fetched again with the given
+     * fetcher when it is requested.
+     *
+     * @param firstPageURL the URL of the first page
+     * @param fetcher used to fetch the first page, and the pages whose background request failed
+     * @param prefetcher used to request the next page in the background, or {@code null} to fetch each page only
+     *     when it is requested
+     * @throws IOException if the first page could not be fetched
+     * @throws InterruptedException if the request is interrupted
+     */
+    public EntraIDPageIterator(String firstPageURL, PageFetcher fetcher,
+        Function<String, CompletableFuture<EntraIDUsersPage>> prefetcher) throws IOException, InterruptedException
+    {
+        this.fetcher = fetcher;
+        this.prefetcher = prefetcher;
+        load(fetcher.fetch(firstPageURL));
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        return pendingPage != null || nextLink != null;
+    }
+
+    @Override
+    public List<ExternalUser> next()
+    {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        if (pendingPage == null) {
+            try {
+                load(fetchNextPage());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+        List<ExternalUser> page = pendingPage;
+        pendingPage = null;
+        return page;
+    }
+
+    /**
+     * Get the delta link returned with the last page of a delta query.
+     *
+     * @return the delta link, or {@code null} if the last page was not reached yet or if the query is not a delta query
+     */
+    public String getDeltaLink()
+    {
+        return deltaLink;
+    }
+
+    private EntraIDUsersPage fetchNextPage() throws IOException, InterruptedException
+    {
+        CompletableFuture<EntraIDUsersPage> page = prefetchedPage;
+        // A failed background request is not kept, so that calling next() again fetches the page once more.
+        prefetchedPage = null;
+        if (page != null) {
+            return EntraIDFutures.await(page);
+        }
+        return fetcher.fetch(nextLink);
+    }
+
+    private void load(EntraIDUsersPage page)
+    {
+        pendingPage = page.getUsers();
+        nextLink = page.getNextLink();
+        deltaLink = page.getDeltaLink();
+        if (prefetcher != null && nextLink != null) {
+            prefetchedPage = prefetcher.apply(nextLink);
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.azureoauth.internal;
+
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.http.HttpResponse;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+
+/**
+ * Records the latency, the response status codes, the retries, the received bytes and the fetched pages of the
+ * requests sent to each Entra ID endpoint, and exposes them as JMX MBeans named
+ * {@code com.xwiki.azureoauth:type=EntraIDEndpointMetrics,name=<endpoint>}.
+ *
+ * @version $Id$
+ * @since 2.2.4
+ */
+@Component(roles = EntraIDRequestMetrics.class)
+@Singleton
+public class EntraIDRequestMetrics implements Initializable, Disposable
+{
+    /**
+     * The token endpoint.
+     */
+    public static final String TOKEN = "token";
+
+    /**
+     * The Graph users collection.
+     */
+    public static final String USERS = "users";
+
+    /**
+     * The Graph users delta query.
+     */
+    public static final String DELTA = "delta";
+
+    /**
+     * The Graph {@code getByIds} action.
+     */
+    public static final String GET_BY_IDS = "getByIds";
+
+    /**
+     * The Graph {@code $batch} endpoint.
+     */
+    public static final String BATCH = "batch";
+
+    /**
+     * The count of the Graph users.
+     */
+    public static final String COUNT = "count";
+
+    /**
+     * The Graph endpoints, i.e. all the endpoints except the token endpoint.
+     */
+    public static final List<String> GRAPH_ENDPOINTS = List.of(USERS, DELTA, GET_BY_IDS, BATCH, COUNT);
+
+    private static final String OBJECT_NAME = "com.xwiki.azureoauth:type=EntraIDEndpointMetrics,name=";
+
+    private final Map<String, EntraIDEndpointMetrics> metrics = new ConcurrentHashMap<>();
+
+    @Inject
+    private Logger logger;
+
+    @Override
+    public void initialize()
+    {
+        getMetrics(TOKEN);
+        for (String endpoint : GRAPH_ENDPOINTS) {
+            getMetrics(endpoint);
+        }
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (String endpoint : this.metrics.keySet()) {
+            try {
+                ObjectName name = new ObjectName(OBJECT_NAME + endpoint);
+                if (server.isRegistered(name)) {
+                    server.unregisterMBean(name);
+                }
+            } catch (JMException e) {
+                this.logger.warn("Failed to unregister the metrics MBean of the Entra ID [{}] endpoint. Root cause is: "
+                    + "[{}]", endpoint, ExceptionUtils.getRootCauseMessage(e));
+            }
+        }
+    }
+
+    /**
+     * Wrap a request so that each of its attempts is measured. Every attempt after the first one is counted as a
+     * retry.
+     *
+     * @param endpoint the endpoint the request is sent to
+     * @param call sends the request, called once for each attempt
+     * @param <T> the type of the response body
+     * @return the measured call
+     */
+    public <T> Supplier<CompletableFuture<HttpResponse<T>>> track(String endpoint,
+        Supplier<CompletableFuture<HttpResponse<T>>> call)
+    {
+        EntraIDEndpointMetrics endpointMetrics = getMetrics(endpoint);
+        AtomicBoolean firstAttempt = new AtomicBoolean(true);
+        return () -> {
+            if (!firstAttempt.compareAndSet(true, false)) {
+                endpointMetrics.recordRetry();
+            }
+            long start = System.nanoTime();
+            CompletableFuture<HttpResponse<T>> response;
+            try {
+                response = call.get();
+            } catch (RuntimeException e) {
+                response = CompletableFuture.failedFuture(e);
+            }
+            return response.whenComplete((result, error) -> {
+                if (error == null) {
+                    endpointMetrics.recordResponse(result.statusCode(), System.nanoTime() - start);
+                } else {
+                    endpointMetrics.recordFailure(System.nanoTime() - start);
+                }
+            });
+        };
+    }
+
+    /**
+     * Wrap a response body so that the bytes read from it are counted for the given endpoint.
+     *
+     * @param endpoint the endpoint that sent the response
+     * @param body the response body, as received
+     * @return the counted response body
+     */
+    public InputStream countReceivedBytes(String endpoint, InputStream body)
+    {
+        return new EntraIDCountingInputStream(body, getMetrics(endpoint).getReceivedBytesCounter());
+    }
+
+    /**
+     * @param endpoint the endpoint that sent the response
+     * @param bytes the number of bytes of a response body that was received at once
+     */
+    public void addReceivedBytes(String endpoint, long bytes)
+    {
+        getMetrics(endpoint).getReceivedBytesCounter().add(bytes);
+    }
+
+    /**
+     * @param endpoint the endpoint a failed sub-request of a batch is sent again to
+     */
+    public void recordRetry(String endpoint)
+    {
+        getMetrics(endpoint).recordRetry();
+    }
+
+    /**
+     * @param endpoint the endpoint a users page was fetched from
+     */
+    public void recordPage(String endpoint)
+    {
+        getMetrics(endpoint).recordPage();
+    }
+
+    /**
+     * @param endpoint an endpoint
+     * @return the metrics of the requests sent to the given endpoint
+     */
+    public EntraIDEndpointMetricsMXBean get(String endpoint)
+    {
+        return getMetrics(endpoint);
+    }
+
+    private EntraIDEndpointMetrics getMetrics(String endpoint)
+    {
+        return this.metrics.computeIfAbsent(endpoint, this::register);
+    }
+
+    private EntraIDEndpointMetrics register(String endpoint)
+    {
+        EntraIDEndpointMetrics endpointMetrics = new EntraIDEndpointMetrics(endpoint);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME + endpoint);
+            // Replace the MBean left by a previous instance of the extension, e.g. before an upgrade.
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(endpointMetrics, name);
+        } catch (JMException e) {
+            this.logger.warn("Failed to register the metrics MBean of the Entra ID [{}] endpoint. Root cause is: [{}]",
+                endpoint, ExceptionUtils.getRootCauseMessage(e));
+        }
+        return endpointMetrics;
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.azureoauth.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.http.HttpResponse;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+
+/**
+ * Decides whether and when a throttled or failed Entra ID request should be sent again. The delay requested by the
+ * server through the {@code Retry-After} header is honored in full when present, otherwise the delay grows
+ * exponentially with each attempt, with a random jitter so that concurrent clients don't retry all at once. Retries
+ * stop after a maximum number of attempts or once the total time budget of the request would be exceeded, including
+ * when the server asks to wait longer than the remaining budget.
+ *
+ * @version $Id$
+ * @since 2.2.4
+ */
+@Component(roles = EntraIDRetryPolicy.class)
+@Singleton
+public class EntraIDRetryPolicy
+{
+    /**
+     * The name of the header holding the delay requested by the server.
+     */
+    public static final String RETRY_AFTER = "Retry-After";
+
+    private static final int MAX_ATTEMPTS = 6;
+
+    private static final Duration BASE_DELAY = Duration.ofSeconds(1);
+
+    private static final Duration MAX_DELAY = Duration.ofSeconds(60);
+
+    private static final Duration TIME_BUDGET = Duration.ofMinutes(5);
+
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    private static final int SERVER_ERROR = 500;
+
+    private Clock clock = Clock.systemUTC();
+
+    @Inject
+    private Logger logger;
+
+    /**
+     * Send a request until it succeeds or until it should no longer be retried. The delays between the attempts don't
+     * block any thread.
+     *
+     * @param call sends the request, called once for each attempt
+     * @param <T> the type of the response body
+     * @return a future completed with the response of the last attempt
+     */
+    public <T> CompletableFuture<HttpResponse<T>> withRetries(Supplier<CompletableFuture<HttpResponse<T>>> call)
+    {
+        return withRetries(call, 1, now());
+    }
+
+    /**
+     * @param status the HTTP status code of a response
+     * @return {@code true} if the request failed because of throttling or of a server error, and could succeed if sent
+     *     again, {@code false} otherwise
+     */
+    public boolean isRetryable(int status)
+    {
+        return status == TOO_MANY_REQUESTS || status >= SERVER_ERROR;
+    }
+
+    /**
+     * Get the delay to wait before sending a failed request again.
+     *
+     * @param attempt the number of attempts made so far, starting with 1
+     * @param retryAfter the value of the {@code Retry-After} header of the failed response, or {@code null}
+     * @param start the moment the first attempt was made
+     * @return the delay to wait before the next attempt, or {@code null} if the request should not be sent again
+     */
+    public Duration getRetryDelay(int attempt, String retryAfter, Instant start)
+    {
+        if (attempt >= MAX_ATTEMPTS) {
+            return null;
+        }
+        Duration delay = parseRetryAfter(retryAfter);
+        if (delay == null) {
+            // Equal jitter: half the exponential backoff plus a random part of the other half.
+            long backoff = Math.min(MAX_DELAY.toMillis(), BASE_DELAY.toMillis() << Math.min(attempt - 1, 20));
+            delay = Duration.ofMillis(ThreadLocalRandom.current().nextLong(backoff / 2, backoff + 1));
+        }
+        // Retrying sooner than requested by the server would only be throttled again, so give up instead when the
+        // requested delay doesn't fit in the time budget.
+        Instant now = clock.instant();
+        return now.plus(delay).isAfter(start.plus(TIME_BUDGET)) ? null : delay;
+    }
+
+    /**
+     * @return the moment to use as the start of a request, for {@link #getRetryDelay(int, String, Instant)}
+     */
+    public Instant now()
+    {
+        return clock.instant();
+    }
+
+    private <T> CompletableFuture<HttpResponse<T>> withRetries(Supplier<CompletableFuture<HttpResponse<T>>> call,
+        int attempt, Instant start)
+    {
+        return call.get().thenCompose(response -> {
+            Duration delay = null;
+            if (isRetryable(response.statusCode())) {
+                delay = getRetryDelay(attempt, response.headers().firstValue(RETRY_AFTER).orElse(null), start);
+            }
+            if (delay == null) {
+                return CompletableFuture.completedFuture(response);
+            }
+            discard(response.body());
+            logger.debug("Request [{}] failed with status [{}], retrying in [{}].", response.uri(),
+                response.statusCode(), delay);
+            Executor delayedExecutor = CompletableFuture.delayedExecutor(delay.toMillis(), TimeUnit.MILLISECONDS);
+            return CompletableFuture.supplyAsync(() -> call, delayedExecutor)
+                .thenCompose(retry -> withRetries(retry, attempt + 1, start));
+        });
+    }
+
+    private void discard(Object body)
+    {
+        // Release the connection of a streamed response that won't be read.
+        if (body instanceof InputStream) {
+            try {
+                ((InputStream) body).close();
+            } catch (IOException e) {
+                logger.debug("Failed to close the body of a failed response.", e);
+            }
+        }
+    }
+
+    private Duration parseRetryAfter(String retryAfter)
+    {
+        if (retryAfter == null || retryAfter.isBlank()) {
+            return null;
+        }
+        String value = retryAfter.trim();
+        try {
+            return Duration.ofSeconds(Math.max(Long.parseLong(value), 0));
+        } catch (NumberFormatException e) {
+            // The header can also hold an HTTP date.
+        }
+        try {
+            Instant date = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+            Duration delay = Duration.between(clock.instant(), date);
+            return delay.isNegative() ? Duration.ZERO : delay;
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+}
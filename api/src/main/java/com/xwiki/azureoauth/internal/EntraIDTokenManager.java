@@ -0,0 +1,332 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.azureoauth.internal;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextException;
+import org.xwiki.context.ExecutionContextManager;
+
+import com.xwiki.azureoauth.configuration.EntraIDConfiguration;
+
+/**
+ * Acquires the client credentials access tokens needed to call the Entra ID APIs and caches them until they expire.
+ * Tokens are refreshed in the background shortly before they expire, as long as they were used since they were
+ * acquired, and concurrent callers share a single token request. Throttled token requests are sent again according
+ * to the {@link EntraIDRetryPolicy}, and fail fast while the {@link EntraIDCircuitBreaker} considers the token
+ * endpoint unavailable.
+ *
+ * @version $Id$
+ * @since 2.2.4
+ */
+@Component(roles = EntraIDTokenManager.class)
+@Singleton
+public class EntraIDTokenManager implements Disposable
+{
+    /**
+     * The scope needed to call the Graph API.
+     */
+    public static final String GRAPH_SCOPE = "https://graph.microsoft.com/.default";
+
+    private static final Duration REFRESH_MARGIN = Duration.ofMinutes(5);
+
+    private static final long DEFAULT_EXPIRES_IN = 3600;
+
+    private final Map<TokenKey, CachedToken> tokens = new ConcurrentHashMap<>();
+
+    private final Map<TokenKey, CompletableFuture<CachedToken>> pendingRequests = new ConcurrentHashMap<>();
+
+    private Clock clock = Clock.systemUTC();
+
+    private ScheduledExecutorService refreshScheduler = newRefreshScheduler();
+
+    @Inject
+    private HttpClientBuilderFactory httpClientBuilderFactory;
+
+    @Inject
+    private EntraIDConfiguration configuration;
+
+    @Inject
+    private EntraIDRetryPolicy retryPolicy;
+
+    @Inject
+    private EntraIDCircuitBreaker circuitBreaker;
+
+    @Inject
+    private EntraIDRequestMetrics requestMetrics;
+
+    @Inject
+    private Execution execution;
+
+    @Inject
+    private ExecutionContextManager executionContextManager;
+
+    @Inject
+    private Logger logger;
+
+    /**
+     * Get a valid access token for the given scope. A cached token is returned if available, otherwise a new token
+     * is requested from the configured token endpoint.
+     *
+     * @param scope the scope of the token
+     * @return the access token
+     * @throws IOException if the token request fails
+     * @throws InterruptedException if the thread is interrupted while waiting for the token
+     */
+    public String getAccessToken(String scope) throws IOException, InterruptedException
+    {
+        return EntraIDFutures.await(getAccessTokenAsync(scope));
+    }
+
+    /**
+     * Get a valid access token for the given scope, without blocking the calling thread. A cached token is returned if
+     * available, otherwise a new token is requested from the configured token endpoint.
+     *
+     * @param scope the scope of the token
+     * @return a future completed with the access token, or completed exceptionally if the token request fails
+     */
+    public CompletableFuture<String> getAccessTokenAsync(String scope)
+    {
+        TokenKey key = new TokenKey(configuration.getTokenEndpoint(), configuration.getClientID(), scope);
+        Instant now = clock.instant();
+        CachedToken token = tokens.get(key);
+        if (token != null && now.isBefore(token.expiresAt)) {
+            token.used = true;
+            if (!now.isBefore(token.refreshAt)) {
+                // The scheduled refresh didn't replace the token yet, e.g. because it failed. Refresh it now while the
+                // callers keep using the token that is still valid.
+                requestToken(key, configuration.getSecret());
+            }
+            return CompletableFuture.completedFuture(token.value);
+        }
+        return requestToken(key, configuration.getSecret()).thenApply(requestedToken -> {
+            requestedToken.used = true;
+            return requestedToken.value;
+        });
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        refreshScheduler.shutdownNow();
+    }
+
+    private CompletableFuture<CachedToken> requestToken(TokenKey key, String secret)
+    {
+        CompletableFuture<CachedToken> request = new CompletableFuture<>();
+        CompletableFuture<CachedToken> pendingRequest = pendingRequests.putIfAbsent(key, request);
+        if (pendingRequest != null) {
+            // A request for the same token is already in progress.
+            return pendingRequest;
+        }
+        CompletableFuture<CachedToken> response;
+        try {
+            response = sendTokenRequest(key, secret);
+        } catch (RuntimeException e) {
+            response = CompletableFuture.failedFuture(e);
+        }
+        response.whenComplete((token, error) -> {
+            if (error == null) {
+                tokens.put(key, token);
+                scheduleRefresh(key, token, secret);
+            } else {
+                logger.warn("Failed to get an Entra ID access token. Root cause is: [{}]",
+                    ExceptionUtils.getRootCauseMessage(error));
+            }
+            pendingRequests.remove(key, request);
+            if (error == null) {
+                request.complete(token);
+            } else {
+                request.completeExceptionally(error);
+            }
+        });
+        return request;
+    }
+
+    private void scheduleRefresh(TokenKey key, CachedToken token, String secret)
+    {
+        long delay = Math.max(0, Duration.between(clock.instant(), token.refreshAt).toMillis());
+        try {
+            // The secret is kept since the configuration of the wiki that requested the token can't be read from the
+            // scheduler thread.
+            refreshScheduler.schedule(() -> refreshUsedToken(key, token, secret), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // The component is disposed, the token is refreshed when a caller asks for it.
+        }
+    }
+
+    private void refreshUsedToken(TokenKey key, CachedToken token, String secret)
+    {
+        // The tokens that nobody asked for since they were acquired are left to expire, so that the tokens of a
+        // previous configuration are not refreshed forever.
+        if (tokens.get(key) != token || !token.used) {
+            return;
+        }
+        // The HTTP client settings are read from the main wiki, which needs an XWiki context on the scheduler thread.
+        ExecutionContext executionContext = new ExecutionContext();
+        try {
+            executionContextManager.initialize(executionContext);
+            requestToken(key, secret);
+        } catch (ExecutionContextException e) {
+            // The token is refreshed when a caller asks for it.
+            logger.warn("Failed to refresh an Entra ID access token. Root cause is: [{}]",
+                ExceptionUtils.getRootCauseMessage(e));
+        } finally {
+            execution.removeContext();
+        }
+    }
+
+    private CompletableFuture<CachedToken> sendTokenRequest(TokenKey key, String secret)
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("client_id=").append(URLEncoder.encode(key.clientID, StandardCharsets.UTF_8));
+        sb.append("&scope=").append(URLEncoder.encode(key.scope, StandardCharsets.UTF_8));
+        sb.append("&client_secret=").append(URLEncoder.encode(secret, StandardCharsets.UTF_8));
+        sb.append("&grant_type=client_credentials");
+
+        HttpRequest.Builder requestBuilder = HttpRequest.newBuilder().uri(URI.create(key.tokenEndpoint))
+            .header("Content-Type", "application/x-www-form-urlencoded")
+            .POST(HttpRequest.BodyPublishers.ofString(sb.toString()));
+        Duration timeout = httpClientBuilderFactory.getRequestTimeout();
+        if (timeout != null) {
+            requestBuilder.timeout(timeout);
+        }
+        HttpRequest request = requestBuilder.build();
+        HttpClient client = httpClientBuilderFactory.getHttpClient();
+        HttpResponse.BodyHandler<String> bodyHandler = responseInfo -> HttpResponse.BodySubscribers
+            .mapping(HttpResponse.BodySubscribers.ofByteArray(), body -> {
+                requestMetrics.addReceivedBytes(EntraIDRequestMetrics.TOKEN, body.length);
+                return new String(body, StandardCharsets.UTF_8);
+            });
+        Supplier<CompletableFuture<HttpResponse<String>>> attempt =
+            requestMetrics.track(EntraIDRequestMetrics.TOKEN, () -> client.sendAsync(request, bodyHandler));
+        String circuit = EntraIDCircuitBreaker.getCircuit(EntraIDCircuitBreaker.TOKEN, request.uri());
+        return retryPolicy.withRetries(() -> circuitBreaker.execute(circuit, attempt))
+            .thenApply(this::toToken);
+    }
+
+    private CachedToken toToken(HttpResponse<String> response)
+    {
+        if (response.statusCode() != 200) {
+            throw new RuntimeException("Failed to get token");
+        }
+        JSONObject json = new JSONObject(response.body());
+        Duration lifetime = Duration.ofSeconds(json.optLong("expires_in", DEFAULT_EXPIRES_IN));
+        // Short-lived tokens are refreshed halfway through their lifetime.
+        Duration margin = lifetime.dividedBy(2).compareTo(REFRESH_MARGIN) < 0 ? lifetime.dividedBy(2) : REFRESH_MARGIN;
+        Instant now = clock.instant();
+        return new CachedToken(json.getString("access_token"), now.plus(lifetime).minus(margin), now.plus(lifetime));
+    }
+
+    private static ScheduledExecutorService newRefreshScheduler()
+    {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "Entra ID token refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
+    }
+
+    private static final class TokenKey
+    {
+        private final String tokenEndpoint;
+
+        private final String clientID;
+
+        private final String scope;
+
+        TokenKey(String tokenEndpoint, String clientID, String scope)
+        {
+            // The token endpoint contains the tenant ID.
+            this.tokenEndpoint = tokenEndpoint;
+            this.clientID = clientID;
+            this.scope = scope;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            TokenKey other = (TokenKey) o;
+            return tokenEndpoint.equals(other.tokenEndpoint) && clientID.equals(other.clientID)
+                && scope.equals(other.scope);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(tokenEndpoint, clientID, scope);
+        }
+    }
+
+    private static final class CachedToken
+    {
+        private final String value;
+
+        private final Instant refreshAt;
+
+        private final Instant expiresAt;
+
+        private volatile boolean used;
+
+        CachedToken(String value, Instant refreshAt, Instant expiresAt)
+        {
+            this.value = value;
+            this.refreshAt = refreshAt;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
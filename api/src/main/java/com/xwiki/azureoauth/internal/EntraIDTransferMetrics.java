@@ -0,0 +1,117 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.azureoauth.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+
+/**
+ * Decodes the compressed responses received from Entra ID and keeps track of the number of decoded bytes, so that the
+ * savings of the compression can be measured. The received bytes are counted per endpoint by the
+ * {@link EntraIDRequestMetrics}, so resetting the metrics of an endpoint also resets its share of the received bytes.
+ *
+ * @version $Id$
+ * @since 2.2.4
+ */
+@Component(roles = EntraIDTransferMetrics.class)
+@Singleton
+public class EntraIDTransferMetrics
+{
+    /**
+     * The content encodings accepted from Entra ID, as an {@code Accept-Encoding} header value.
+     */
+    public static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final LongAdder decodedBytes = new LongAdder();
+
+    @Inject
+    private EntraIDRequestMetrics requestMetrics;
+
+    /**
+     * Wrap a response body so that it is decompressed while it is read. The decoded bytes are counted.
+     *
+     * @param body the response body, as received, with its bytes already counted by the {@link EntraIDRequestMetrics}
+     * @param contentEncoding the value of the {@code Content-Encoding} header of the response, or {@code null}
+     * @return the decoded response body
+     * @throws IOException if the content encoding is not supported or the compressed stream is invalid
+     */
+    public InputStream decode(InputStream body, String contentEncoding) throws IOException
+    {
+        String encoding = contentEncoding != null ? contentEncoding.trim().toLowerCase(Locale.ROOT) : "";
+        InputStream decoded;
+        switch (encoding) {
+            case "gzip":
+            case "x-gzip":
+                decoded = new GZIPInputStream(body, BUFFER_SIZE);
+                break;
+            case "deflate":
+                decoded = new InflaterInputStream(body);
+                break;
+            case "":
+            case "identity":
+                decoded = body;
+                break;
+            default:
+                body.close();
+                throw new IOException(String.format("Unsupported content encoding [%s].", contentEncoding));
+        }
+        return new EntraIDCountingInputStream(decoded, decodedBytes);
+    }
+
+    /**
+     * @return the number of response bytes received from the Graph endpoints, before decompression
+     */
+    public long getReceivedBytes()
+    {
+        // The token responses are not compressed, so they are left out to compare with the decoded bytes.
+        long received = 0;
+        for (String endpoint : EntraIDRequestMetrics.GRAPH_ENDPOINTS) {
+            received += requestMetrics.get(endpoint).getReceivedBytes();
+        }
+        return received;
+    }
+
+    /**
+     * @return the number of response bytes after decompression
+     */
+    public long getDecodedBytes()
+    {
+        return decodedBytes.sum();
+    }
+
+    /**
+     * @return the number of bytes that did not have to be transferred thanks to the compression
+     */
+    public long getSavedBytes()
+    {
+        return Math.max(getDecodedBytes() - getReceivedBytes(), 0);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.azureoauth.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.xwiki.azureoauth.user.ExternalUser;
+
+/**
+ * A page of users returned by Graph, along with the links to the following pages or changes.
+ *
+ * @version $Id$
+ * @since 2.2.4
+ */
+public class EntraIDUsersPage
+{
+    private final List<ExternalUser> users;
+
+    private final String nextLink;
+
+    private final String deltaLink;
+
+    /**
+     * Parameters constructor.
+     *
+     * @param users the users of the page
+     * @param nextLink the link to the next page, or {@code null} if this is the last page
+     * @param deltaLink the link to the following changes, or {@code null} if this is not the last page of a delta
+     *     query
+     */
+    public EntraIDUsersPage(List<ExternalUser> users, String nextLink, String deltaLink)
+    {
+        this.users = Collections.unmodifiableList(users);
+        this.nextLink = nextLink;
+        this.deltaLink = deltaLink;
+    }
+
+    /**
+     * @return the users of the page, as an unmodifiable list
+     */
+    public List<ExternalUser> getUsers()
+    {
+        return users;
+    }
+
+    /**
+     * @return the link to the next page, or {@code null} if this is the last page
+     */
+    public String getNextLink()
+    {
+        return nextLink;
+    }
+
+    /**
+     * @return the link to the following changes, or {@code null} if this is not the last page of a delta query
+     */
+    public String getDeltaLink()
+    {
+        return deltaLink;
+    }
+
+    /**
+     * Copy this page, along with its users, so that the copy can be handed to another caller. The users are mutable,
+     * so the changes made by a caller must not be visible to the other callers.
+     *
+     * @return a copy of this page
+     */
+    public EntraIDUsersPage copy()
+    {
+        List<ExternalUser> usersCopy = new ArrayList<>(users.size());
+        for (ExternalUser user : users) {
+            usersCopy.add(new ExternalUser(user.getId(), user.isEnabled(), user.isRemoved(), user.getAttributes()));
+        }
+        return new EntraIDUsersPage(usersCopy, nextLink, deltaLink);
+    }
+}
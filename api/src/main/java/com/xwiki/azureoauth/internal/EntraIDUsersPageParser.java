@@ -0,0 +1,178 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.azureoauth.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.JSONObject;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.xwiki.azureoauth.user.ExternalUser;
+
+/**
+ * Parses the pages of users returned by Graph token by token, straight from the response stream, without buffering
+ * the response body or building an intermediate JSON tree.
+ *
+ * @version $Id$
+ * @since 2.2.4
+ */
+public final class EntraIDUsersPageParser
+{
+    /**
+     * Graph property holding the link to the next page of a collection.
+     */
+    public static final String NEXT_LINK = "@odata.nextLink";
+
+    /**
+     * Graph property holding the link to the changes following the last page of a delta query.
+     */
+    public static final String DELTA_LINK = "@odata.deltaLink";
+
+    private static final String VALUE = "value";
+
+    private static final String ID = "id";
+
+    private static final String ACCOUNT_ENABLED = "accountEnabled";
+
+    private static final String REMOVED = "@removed";
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private EntraIDUsersPageParser()
+    {
+    }
+
+    /**
+     * Parse a page of users. The given stream is closed once the page is parsed.
+     *
+     * @param input the response body
+     * @return the parsed page
+     * @throws IOException if the response body could not be read or is not a valid Graph page
+     */
+    public static EntraIDUsersPage parse(InputStream input) throws IOException
+    {
+        return parse(input, Set.of());
+    }
+
+    /**
+     * Parse a page of users, keeping the given additional attributes. Only attributes with a scalar value are kept.
+     * The given stream is closed once the page is parsed.
+     *
+     * @param input the response body
+     * @param attributes the names of the additional attributes to keep
+     * @return the parsed page
+     * @throws IOException if the response body could not be read or is not a valid Graph page
+     */
+    public static EntraIDUsersPage parse(InputStream input, Set<String> attributes) throws IOException
+    {
+        List<ExternalUser> users = new ArrayList<>();
+        String nextLink = null;
+        String deltaLink = null;
+        try (JsonParser parser = JSON_FACTORY.createParser(input)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("The Graph response is not a JSON object.");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken token = parser.nextToken();
+                if (VALUE.equals(field) && token == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        users.add(parseUser(parser, attributes));
+                    }
+                } else if (NEXT_LINK.equals(field)) {
+                    nextLink = parser.getValueAsString();
+                } else if (DELTA_LINK.equals(field)) {
+                    deltaLink = parser.getValueAsString();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return new EntraIDUsersPage(users, nextLink, deltaLink);
+    }
+
+    /**
+     * Convert a user that was already parsed as a {@link JSONObject}.
+     *
+     * @param user the user returned by Graph
+     * @return the external user
+     */
+    public static ExternalUser toExternalUser(JSONObject user)
+    {
+        return toExternalUser(user, Set.of());
+    }
+
+    /**
+     * Convert a user that was already parsed as a {@link JSONObject}, keeping the given additional attributes.
+     *
+     * @param user the user returned by Graph
+     * @param attributes the names of the additional attributes to keep
+     * @return the external user
+     */
+    public static ExternalUser toExternalUser(JSONObject user, Set<String> attributes)
+    {
+        Map<String, String> values = new HashMap<>();
+        for (String attribute : attributes) {
+            Object value = user.opt(attribute);
+            if (value instanceof String || value instanceof Number || value instanceof Boolean) {
+                values.put(attribute, value.toString());
+            }
+        }
+        // Users from a delta query only hold the properties that changed, so only an explicit false disables them.
+        return new ExternalUser(user.optString(ID), user.optBoolean(ACCOUNT_ENABLED, true), user.has(REMOVED),
+            values);
+    }
+
+    private static ExternalUser parseUser(JsonParser parser, Set<String> attributes) throws IOException
+    {
+        String id = null;
+        boolean enabled = true;
+        boolean removed = false;
+        Map<String, String> values = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken token = parser.nextToken();
+            if (ID.equals(field)) {
+                id = parser.getValueAsString();
+            } else if (ACCOUNT_ENABLED.equals(field)) {
+                // Users from a delta query only hold the properties that changed, so only an explicit false
+                // disables them.
+                enabled = token != JsonToken.VALUE_FALSE;
+            } else if (attributes.contains(field) && token.isScalarValue() && token != JsonToken.VALUE_NULL) {
+                if (values == null) {
+                    values = new HashMap<>();
+                }
+                values.put(field, parser.getValueAsString());
+            } else {
+                removed |= REMOVED.equals(field);
+                parser.skipChildren();
+            }
+        }
+        return new ExternalUser(id, enabled, removed, values);
+    }
+}
@@ -19,14 +19,32 @@
  */
 package com.xwiki.azureoauth.internal;
 
+import java.net.InetSocketAddress;
+import java.net.ProxySelector;
 import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import javax.inject.Inject;
+import javax.inject.Provider;
 import javax.inject.Singleton;
 
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.wiki.descriptor.WikiDescriptorManager;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xwiki.azureoauth.configuration.EntraIDConfiguration;
 
 /**
- * Simple factory for creating a HttpClient to help testing.
+ * Provides the HttpClient shared by all the calls made to the Entra ID endpoints. The client is created once, from the
+ * HTTP settings of the Entra ID configuration of the main wiki, since it is shared by all the wikis of the farm, and
+ * is replaced when these settings change. The replaced client is closed once the requests it is still handling
+ * complete.
  *
  * @version $Id$
  * @since 2.1
@@ -35,19 +53,231 @@ import org.xwiki.component.annotation.Component;
 @Singleton
 public class HttpClientBuilderFactory
 {
-    private HttpClient httpClient;
+    private static final String VIRTUAL_EXECUTOR = "virtual";
+
+    private static final int MAX_PORT = 65535;
+
+    private final Object lock = new Object();
+
+    private volatile SharedClient sharedClient;
+
+    @Inject
+    private EntraIDConfiguration configuration;
+
+    @Inject
+    private WikiDescriptorManager wikiManager;
+
+    @Inject
+    private Provider<XWikiContext> wikiContextProvider;
+
+    @Inject
+    private Logger logger;
 
     /**
-     * Creates a HttpClient.
+     * Get the shared HttpClient, creating it on the first call.
      *
-     * @return a new HttpClient
+     * @return the shared HttpClient
      */
     public HttpClient getHttpClient()
     {
-        if (httpClient == null) {
-            httpClient = HttpClient.newHttpClient();
-            return httpClient;
+        return getSharedClient().client;
+    }
+
+    /**
+     * Get the timeout to set on each request sent with the shared client.
+     *
+     * @return the configured request timeout, or {@code null} if the requests don't time out
+     * @since 2.2.4
+     */
+    public Duration getRequestTimeout()
+    {
+        return getSharedClient().settings.requestTimeout;
+    }
+
+    /**
+     * Reload the HTTP settings from the Entra ID configuration of the main wiki. If they changed, the next callers get
+     * a new client built from them, while the requests already sent with the previous client complete normally.
+     *
+     * @since 2.2.4
+     */
+    public void refresh()
+    {
+        synchronized (this.lock) {
+            SharedClient current = this.sharedClient;
+            if (current != null && !current.settings.equals(getSettings())) {
+                this.logger.debug("The Entra ID HTTP settings changed, a new HTTP client will be created.");
+                this.sharedClient = null;
+                release(current);
+            }
+        }
+    }
+
+    private SharedClient getSharedClient()
+    {
+        SharedClient current = this.sharedClient;
+        if (current == null) {
+            synchronized (this.lock) {
+                current = this.sharedClient;
+                if (current == null) {
+                    current = build(getSettings());
+                    this.sharedClient = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    private ClientSettings getSettings()
+    {
+        XWikiContext wikiContext = this.wikiContextProvider.get();
+        if (wikiContext == null) {
+            return new ClientSettings(this.configuration);
+        }
+        // The client is shared by all the wikis, so a subwiki administrator must not be able to change its settings.
+        String currentWikiId = wikiContext.getWikiId();
+        try {
+            wikiContext.setWikiId(this.wikiManager.getMainWikiId());
+            return new ClientSettings(this.configuration);
+        } finally {
+            wikiContext.setWikiId(currentWikiId);
+        }
+    }
+
+    private SharedClient build(ClientSettings settings)
+    {
+        HttpClient.Builder builder = HttpClient.newBuilder().version(settings.version);
+        if (settings.connectTimeout != null) {
+            builder.connectTimeout(settings.connectTimeout);
+        }
+        ProxySelector proxy = getProxy(settings.proxy);
+        if (proxy != null) {
+            builder.proxy(proxy);
+        }
+        ExecutorService executor = null;
+        if (VIRTUAL_EXECUTOR.equalsIgnoreCase(settings.executor)) {
+            executor = newVirtualThreadExecutor();
+            if (executor != null) {
+                builder.executor(executor);
+            }
+        }
+        return new SharedClient(settings, builder.build(), executor);
+    }
+
+    private void release(SharedClient replaced)
+    {
+        if (replaced.executor == null) {
+            // The default executor belongs to the client, which releases it once it is no longer referenced.
+            return;
+        }
+        // Closing the client waits for the requests it is still handling, so it is done in the background. Clients
+        // with their own executor are only created on runtimes where HttpClient is closeable.
+        Thread closer = new Thread(() -> {
+            try {
+                if (replaced.client instanceof AutoCloseable) {
+                    ((AutoCloseable) replaced.client).close();
+                }
+            } catch (Exception e) {
+                this.logger.debug("Failed to close the replaced Entra ID HTTP client. Root cause is: [{}]",
+                    ExceptionUtils.getRootCauseMessage(e));
+            } finally {
+                replaced.executor.shutdown();
+            }
+        }, "Entra ID HTTP client release");
+        closer.setDaemon(true);
+        closer.start();
+    }
+
+    private ProxySelector getProxy(String proxy)
+    {
+        if (proxy.isEmpty()) {
+            return null;
+        }
+        int separator = proxy.lastIndexOf(':');
+        String host = separator > 0 ? proxy.substring(0, separator) : "";
+        String port = separator > 0 ? proxy.substring(separator + 1) : "";
+        if (host.isEmpty() || !StringUtils.isNumeric(port) || port.length() > 5
+            || Integer.parseInt(port) > MAX_PORT)
+        {
+            this.logger.warn("Ignoring the invalid Entra ID HTTP proxy [{}], expected [host:port].", proxy);
+            return null;
+        }
+        return ProxySelector.of(InetSocketAddress.createUnresolved(host, Integer.parseInt(port)));
+    }
+
+    private ExecutorService newVirtualThreadExecutor()
+    {
+        try {
+            // Looked up by reflection since virtual threads are only available starting with Java 21.
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            this.logger.warn("Virtual threads are not supported by the Java runtime, the default HTTP client executor "
+                + "is used instead.");
+            return null;
+        }
+    }
+
+    private static Duration toDuration(int seconds)
+    {
+        return seconds > 0 ? Duration.ofSeconds(seconds) : null;
+    }
+
+    private static final class SharedClient
+    {
+        private final ClientSettings settings;
+
+        private final HttpClient client;
+
+        private final ExecutorService executor;
+
+        SharedClient(ClientSettings settings, HttpClient client, ExecutorService executor)
+        {
+            this.settings = settings;
+            this.client = client;
+            this.executor = executor;
+        }
+    }
+
+    private static final class ClientSettings
+    {
+        private final Duration connectTimeout;
+
+        private final Duration requestTimeout;
+
+        private final HttpClient.Version version;
+
+        private final String executor;
+
+        private final String proxy;
+
+        ClientSettings(EntraIDConfiguration configuration)
+        {
+            this.connectTimeout = toDuration(configuration.getHttpConnectTimeout());
+            this.requestTimeout = toDuration(configuration.getHttpRequestTimeout());
+            this.version = "HTTP_1_1".equalsIgnoreCase(configuration.getHttpVersion()) ? HttpClient.Version.HTTP_1_1
+                : HttpClient.Version.HTTP_2;
+            this.executor = StringUtils.defaultString(configuration.getHttpExecutor());
+            this.proxy = StringUtils.defaultString(configuration.getHttpProxy());
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            ClientSettings other = (ClientSettings) o;
+            return Objects.equals(connectTimeout, other.connectTimeout)
+                && Objects.equals(requestTimeout, other.requestTimeout) && version == other.version
+                && executor.equals(other.executor) && proxy.equals(other.proxy);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(connectTimeout, requestTimeout, version, executor, proxy);
         }
-        return httpClient;
     }
 }
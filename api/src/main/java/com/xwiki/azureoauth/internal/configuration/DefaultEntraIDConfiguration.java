@@ -19,9 +19,12 @@
  */
 package com.xwiki.azureoauth.internal.configuration;
 
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -50,6 +53,30 @@ public class DefaultEntraIDConfiguration implements EntraIDConfiguration
      */
     public static final String OIDC_USER_CLASS = "XWiki.OIDC.UserClass";
 
+    /**
+     * The maximum number of users that Graph returns in a single page.
+     */
+    public static final int MAX_USERS_PAGE_SIZE = 999;
+
+    /**
+     * The maximum number of threads writing the user changes of a sync.
+     */
+    public static final int MAX_SYNC_THREADS = 16;
+
+    private static final String DEFAULT_GRAPH_ENDPOINT = "https://graph.microsoft.com/v1.0";
+
+    private static final int DEFAULT_SYNC_BATCH_SIZE = 100;
+
+    private static final int DEFAULT_SYNC_THREADS = 4;
+
+    private static final String DEFAULT_EXECUTOR = "default";
+
+    private static final int DEFAULT_CONNECT_TIMEOUT = 10;
+
+    private static final int DEFAULT_REQUEST_TIMEOUT = 60;
+
+    private static final Pattern ATTRIBUTE_NAME = Pattern.compile("[A-Za-z][A-Za-z0-9_]*");
+
     @Inject
     @Named(OIDCClientConfigurationSource.HINT)
     private ConfigurationSource oidcConfiguration;
@@ -134,4 +161,82 @@ public class DefaultEntraIDConfiguration implements EntraIDConfiguration
     {
         return this.oidcConfiguration.getProperty("tokenEndpoint", "");
     }
+
+    @Override
+    public String getGraphEndpoint()
+    {
+        String endpoint = this.entraIDConfiguration.getProperty("graphEndpoint", "").trim();
+        return endpoint.isEmpty() ? DEFAULT_GRAPH_ENDPOINT : endpoint;
+    }
+
+    @Override
+    public int getUsersPageSize()
+    {
+        int pageSize = this.entraIDConfiguration.getProperty("usersPageSize", MAX_USERS_PAGE_SIZE);
+        return pageSize > 0 ? Math.min(pageSize, MAX_USERS_PAGE_SIZE) : MAX_USERS_PAGE_SIZE;
+    }
+
+    @Override
+    public List<String> getUsersSelectedAttributes()
+    {
+        String attributes = this.entraIDConfiguration.getProperty("usersSelect", "");
+        // Only plain property names are kept, so that the configuration can't alter the rest of the query.
+        return Arrays.stream(attributes.split("[,\\s]+")).filter(ATTRIBUTE_NAME.asMatchPredicate())
+            .distinct().collect(Collectors.toList());
+    }
+
+    @Override
+    public String getUsersFilter()
+    {
+        return this.entraIDConfiguration.getProperty("usersFilter", "").trim();
+    }
+
+    @Override
+    public int getUsersSyncBatchSize()
+    {
+        return Math.max(1, this.entraIDConfiguration.getProperty("usersSyncBatchSize", DEFAULT_SYNC_BATCH_SIZE));
+    }
+
+    @Override
+    public int getUsersSyncThreads()
+    {
+        int threads = this.entraIDConfiguration.getProperty("usersSyncThreads", DEFAULT_SYNC_THREADS);
+        return Math.min(Math.max(1, threads), MAX_SYNC_THREADS);
+    }
+
+    @Override
+    public String getUsersSyncExecutor()
+    {
+        return this.entraIDConfiguration.getProperty("usersSyncExecutor", DEFAULT_EXECUTOR).trim();
+    }
+
+    @Override
+    public int getHttpConnectTimeout()
+    {
+        return Math.max(0, this.entraIDConfiguration.getProperty("httpConnectTimeout", DEFAULT_CONNECT_TIMEOUT));
+    }
+
+    @Override
+    public int getHttpRequestTimeout()
+    {
+        return Math.max(0, this.entraIDConfiguration.getProperty("httpRequestTimeout", DEFAULT_REQUEST_TIMEOUT));
+    }
+
+    @Override
+    public String getHttpVersion()
+    {
+        return this.entraIDConfiguration.getProperty("httpVersion", "HTTP_2").trim();
+    }
+
+    @Override
+    public String getHttpExecutor()
+    {
+        return this.entraIDConfiguration.getProperty("httpExecutor", DEFAULT_EXECUTOR).trim();
+    }
+
+    @Override
+    public String getHttpProxy()
+    {
+        return this.entraIDConfiguration.getProperty("httpProxy", "").trim();
+    }
 }
@@ -20,7 +20,9 @@
 package com.xwiki.azureoauth.internal.rest;
 
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 
 import javax.inject.Inject;
@@ -46,6 +48,7 @@ import com.xpn.xwiki.XWikiContext;
 import com.xwiki.azureoauth.internal.user.sync.EntraIDUsersSyncJob;
 import com.xwiki.azureoauth.rest.EntraIDResource;
 import com.xwiki.azureoauth.user.sync.EntraIDUsersSyncJobRequest;
+import com.xwiki.azureoauth.user.sync.EntraIDUsersSyncMode;
 
 /**
  * Default implementation of {@link EntraIDResource}.
@@ -100,11 +103,21 @@ public class DefaultEntraIDResource implements EntraIDResource
             String remove = parameters.get("remove")[0];
             logger.debug("Requested actions: disabled [{}]; remove [{}]", disable, remove);
 
-            List<String> jobId = List.of("entra", "users", "sync", disable, remove);
+            EntraIDUsersSyncMode mode = getMode(parameters.get("mode"));
+            // The resolved mode is always part of the ID, so that a sync without mode joins a running full sync.
+            List<String> jobId = new ArrayList<>(
+                List.of("entra", "users", "sync", disable, remove, mode.name().toLowerCase(Locale.ROOT)));
+            String[] farmParameter = parameters.get("farm");
+            boolean farm = farmParameter != null && Boolean.parseBoolean(farmParameter[0]);
+            if (farm) {
+                // Syncing all the wikis of the farm is restricted to the users having programming rights.
+                contextualAuthorizationManager.checkAccess(Right.PROGRAM);
+                jobId.add("farm");
+            }
             Job job = this.jobExecutor.getJob(jobId);
             if (job == null) {
-                EntraIDUsersSyncJobRequest entraIdUsersSyncJobRequest =
-                    new EntraIDUsersSyncJobRequest(jobId, Boolean.parseBoolean(disable), Boolean.parseBoolean(remove));
+                EntraIDUsersSyncJobRequest entraIdUsersSyncJobRequest = new EntraIDUsersSyncJobRequest(jobId,
+                    Boolean.parseBoolean(disable), Boolean.parseBoolean(remove), mode, farm);
                 this.jobExecutor.execute(EntraIDUsersSyncJob.JOB_TYPE, entraIdUsersSyncJobRequest);
                 return Response.status(201).build();
             } else {
@@ -113,6 +126,8 @@ public class DefaultEntraIDResource implements EntraIDResource
         } catch (AccessDeniedException deniedException) {
             logger.warn("Failed to synchronize users with EntraID due to restricted rights.");
             throw new WebApplicationException(Response.Status.UNAUTHORIZED);
+        } catch (WebApplicationException e) {
+            throw e;
         } catch (Exception e) {
             String errorMessage = String.format("Failed to synchronize users with EntraID. Root cause is: [%s]",
                 ExceptionUtils.getRootCauseMessage(e));
@@ -120,4 +135,18 @@ public class DefaultEntraIDResource implements EntraIDResource
             throw new WebApplicationException(Response.Status.INTERNAL_SERVER_ERROR);
         }
     }
+
+    private EntraIDUsersSyncMode getMode(String[] modeParameter)
+    {
+        if (modeParameter == null) {
+            return EntraIDUsersSyncMode.FULL;
+        }
+        try {
+            return EntraIDUsersSyncMode.valueOf(modeParameter[0].toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            logger.warn("Failed to synchronize users with EntraID due to the unknown sync mode [{}].",
+                modeParameter[0]);
+            throw new WebApplicationException(Response.Status.BAD_REQUEST);
+        }
+    }
 }
@@ -20,23 +20,29 @@
 package com.xwiki.azureoauth.internal.user;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Provider;
 import javax.inject.Singleton;
 
-import org.json.JSONArray;
-import org.json.JSONObject;
+import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
-import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.DocumentReferenceResolver;
 import org.xwiki.query.Query;
 import org.xwiki.query.QueryException;
-import org.xwiki.query.QueryFilter;
 import org.xwiki.query.QueryManager;
 import org.xwiki.wiki.descriptor.WikiDescriptorManager;
 
@@ -44,10 +50,13 @@ import com.xpn.xwiki.XWiki;
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.XWikiDocument;
-import com.xpn.xwiki.objects.BaseObject;
 import com.xwiki.azureoauth.internal.EntraIDApiClient;
+import com.xwiki.azureoauth.internal.EntraIDDeltaLinkExpiredException;
+import com.xwiki.azureoauth.internal.EntraIDPageIterator;
+import com.xwiki.azureoauth.user.EntraIDUsersDelta;
 import com.xwiki.azureoauth.user.EntraIDUsersManager;
 import com.xwiki.azureoauth.user.ExternalUser;
+import com.xwiki.azureoauth.user.XWikiEntraUser;
 
 import static com.xwiki.azureoauth.internal.configuration.DefaultEntraIDConfiguration.OIDC_USER_CLASS;
 
@@ -61,7 +70,28 @@ import static com.xwiki.azureoauth.internal.configuration.DefaultEntraIDConfigur
 @Singleton
 public class DefaultEntraIDUsersManager implements EntraIDUsersManager
 {
-    private static final String ENTRA_ISSUER = "login.microsoftonline.com";
+    /**
+     * Anchored at the start of the issuer, so that the database can use a range scan instead of reading every issuer.
+     */
+    private static final String ISSUER_PATTERN = "https://login.microsoftonline.com/%";
+
+    private static final String USER_CLASS = "XWiki.XWikiUsers";
+
+    private static final String USERS_STATEMENT = "select doc.id, doc.fullName, subject.value, issuer.value, "
+        + "(select active.value from BaseObject as userObj, IntegerProperty as active "
+        + "where userObj.name = doc.fullName and userObj.className = :userClassName and userObj.number = 0 "
+        + "and active.id.id = userObj.id and active.id.name = 'active'), doc.version "
+        + "from XWikiDocument as doc, BaseObject as obj, StringProperty as subject, StringProperty as issuer "
+        + "where doc.translation = 0 and doc.id > :lastId and obj.name = doc.fullName "
+        + "and obj.className = :className and obj.number = 0 "
+        + "and subject.id.id = obj.id and subject.id.name = 'subject' "
+        + "and issuer.id.id = obj.id and issuer.id.name = 'issuer' and issuer.value like :issuer order by doc.id";
+
+    /**
+     * The number of XWiki users loaded from the database with each page. Unrelated to the size of the Graph pages,
+     * which is limited to 999 users.
+     */
+    public static final int DEFAULT_PAGE_SIZE = 1000;
 
     @Inject
     private EntraIDApiClient entraIDApiClient;
@@ -80,19 +110,16 @@ public class DefaultEntraIDUsersManager implements EntraIDUsersManager
     private Provider<XWikiContext> wikiContextProvider;
 
     @Inject
-    @Named("document")
-    private QueryFilter documentReferenceFilter;
+    private Logger logger;
 
     @Override
+    @Deprecated
     public Map<String, XWikiDocument> getXWikiUsersMap() throws QueryException, XWikiException
     {
-        List<XWikiDocument> users = getXWikiUsers();
+        XWikiContext wikiContext = wikiContextProvider.get();
         Map<String, XWikiDocument> userMap = new HashMap<>();
-
-        for (XWikiDocument userDoc : users) {
-            BaseObject oidcObj = userDoc.getXObject(documentReferenceResolver.resolve(OIDC_USER_CLASS));
-            String subject = oidcObj.getField("subject").toFormString();
-            userMap.put(subject, userDoc);
+        for (XWikiEntraUser user : getXWikiEntraUsers()) {
+            userMap.put(user.getSubject(), wikiContext.getWiki().getDocument(user.getReference(), wikiContext));
         }
         return userMap;
     }
@@ -103,34 +130,223 @@ public class DefaultEntraIDUsersManager implements EntraIDUsersManager
         List<XWikiDocument> xwikiEntraUsers = new ArrayList<>();
         XWikiContext wikiContext = wikiContextProvider.get();
         XWiki wiki = wikiContext.getWiki();
+        for (XWikiEntraUser user : getXWikiEntraUsers()) {
+            xwikiEntraUsers.add(wiki.getDocument(user.getReference(), wikiContext));
+        }
+        return xwikiEntraUsers;
+    }
 
-        List<DocumentReference> results = this.queryManager.createQuery(
-                ", BaseObject as obj where doc.fullName = obj.name and obj.className = :className", Query.HQL)
-            .setWiki(this.wikiManager.getCurrentWikiId()).bindValue("className", OIDC_USER_CLASS)
-            .addFilter(documentReferenceFilter).execute();
-
-        for (DocumentReference userRef : results) {
-            XWikiDocument userDoc = wiki.getDocument(userRef, wikiContext);
-            BaseObject oidcObj = userDoc.getXObject(documentReferenceResolver.resolve(OIDC_USER_CLASS));
-            String issuer = oidcObj.getField("issuer").toFormString();
-            if (issuer.contains(ENTRA_ISSUER)) {
-                xwikiEntraUsers.add(userDoc);
-            }
+    @Override
+    public List<XWikiEntraUser> getXWikiEntraUsers() throws QueryException
+    {
+        List<XWikiEntraUser> xwikiEntraUsers = new ArrayList<>();
+        Iterator<List<XWikiEntraUser>> pages = getXWikiEntraUsersPages(DEFAULT_PAGE_SIZE);
+        while (pages.hasNext()) {
+            xwikiEntraUsers.addAll(pages.next());
         }
         return xwikiEntraUsers;
     }
 
+    @Override
+    public Iterator<List<XWikiEntraUser>> getXWikiEntraUsersPages(int pageSize) throws QueryException
+    {
+        return new XWikiEntraUsersPages(this.wikiManager.getCurrentWikiId(), pageSize);
+    }
+
     @Override
     public List<ExternalUser> getEntraServerUsers() throws Exception
     {
-        JSONArray users = entraIDApiClient.getUsers();
-        List<ExternalUser> externalUsers = new ArrayList<>();
-        for (int i = 0; i < users.length(); i++) {
-            JSONObject user = users.getJSONObject(i);
-            String id = user.optString("id");
-            Boolean enabled = user.optBoolean("accountEnabled");
-            externalUsers.add(new ExternalUser(id, enabled));
-        }
-        return externalUsers;
+        return getEntraServerUsersStream().collect(Collectors.toList());
+    }
+
+    @Override
+    public Stream<ExternalUser> getEntraServerUsersStream() throws Exception
+    {
+        Iterator<List<ExternalUser>> pages = getEntraServerUsersPages();
+        return StreamSupport
+            .stream(Spliterators.spliteratorUnknownSize(pages, Spliterator.ORDERED | Spliterator.NONNULL), false)
+            .flatMap(List::stream);
+    }
+
+    @Override
+    public Iterator<List<ExternalUser>> getEntraServerUsersPages() throws Exception
+    {
+        return new ExternalUsersPages(entraIDApiClient.getUsers(), true);
+    }
+
+    @Override
+    public EntraIDUsersDelta getEntraServerUsersDelta(String deltaLink) throws Exception
+    {
+        if (deltaLink != null) {
+            try {
+                return new ExternalUsersPages(entraIDApiClient.getUsersDelta(deltaLink), false);
+            } catch (EntraIDDeltaLinkExpiredException e) {
+                logger.info("The Entra ID delta link expired. All the users will be retrieved.");
+            }
+        }
+        return new ExternalUsersPages(entraIDApiClient.getUsersDelta(null), true);
+    }
+
+    @Override
+    public Iterator<List<ExternalUser>> getEntraServerUsersPages(Collection<String> ids)
+    {
+        return new ResolvedUsersPages(new ArrayList<>(ids));
+    }
+
+    @Override
+    public long getEntraServerUsersCount() throws Exception
+    {
+        return entraIDApiClient.getUsersCount();
+    }
+
+    private static final class ExternalUsersPages implements EntraIDUsersDelta
+    {
+        private final Iterator<List<ExternalUser>> pages;
+
+        private final boolean full;
+
+        ExternalUsersPages(Iterator<List<ExternalUser>> pages, boolean full)
+        {
+            this.pages = pages;
+            this.full = full;
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return pages.hasNext();
+        }
+
+        @Override
+        public List<ExternalUser> next()
+        {
+            return pages.next();
+        }
+
+        @Override
+        public boolean isFull()
+        {
+            return full;
+        }
+
+        @Override
+        public String getDeltaLink()
+        {
+            return pages instanceof EntraIDPageIterator ? ((EntraIDPageIterator) pages).getDeltaLink() : null;
+        }
+    }
+
+    private final class ResolvedUsersPages implements Iterator<List<ExternalUser>>
+    {
+        private final List<String> ids;
+
+        private int index;
+
+        ResolvedUsersPages(List<String> ids)
+        {
+            this.ids = ids;
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return index < ids.size();
+        }
+
+        @Override
+        public List<ExternalUser> next()
+        {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            List<String> chunk =
+                ids.subList(index, Math.min(index + EntraIDApiClient.MAX_IDS_PER_BATCH, ids.size()));
+            index += chunk.size();
+            List<ExternalUser> users;
+            try {
+                users = entraIDApiClient.getUsersByIds(chunk);
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            // The IDs that could not be resolved belong to users that no longer exist.
+            Set<String> foundIds = users.stream().map(ExternalUser::getId).collect(Collectors.toSet());
+            for (String id : chunk) {
+                if (!foundIds.contains(id)) {
+                    users.add(new ExternalUser(id, false, true));
+                }
+            }
+            return users;
+        }
+    }
+
+    /**
+     * Walks the users with keyset pagination on the document id, so that each page is retrieved with an index lookup
+     * whatever its position, and only the current page is kept in memory.
+     */
+    private final class XWikiEntraUsersPages implements Iterator<List<XWikiEntraUser>>
+    {
+        private final String wikiId;
+
+        private final int pageSize;
+
+        private long lastId = Long.MIN_VALUE;
+
+        private boolean lastPage;
+
+        private List<XWikiEntraUser> pendingPage;
+
+        XWikiEntraUsersPages(String wikiId, int pageSize) throws QueryException
+        {
+            this.wikiId = wikiId;
+            this.pageSize = pageSize;
+            // The first page is fetched right away, so that query errors are reported to the caller.
+            load();
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            if (pendingPage == null && !lastPage) {
+                try {
+                    load();
+                } catch (QueryException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return pendingPage != null && !pendingPage.isEmpty();
+        }
+
+        @Override
+        public List<XWikiEntraUser> next()
+        {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            List<XWikiEntraUser> page = pendingPage;
+            pendingPage = null;
+            return page;
+        }
+
+        private void load() throws QueryException
+        {
+            // The user properties are read directly from the object tables, instead of loading each user document, and
+            // the users of the other OIDC providers are filtered out by the database.
+            List<Object[]> results = queryManager.createQuery(USERS_STATEMENT, Query.HQL).setWiki(wikiId)
+                .bindValue("className", OIDC_USER_CLASS).bindValue("userClassName", USER_CLASS)
+                .bindValue("issuer", ISSUER_PATTERN).bindValue("lastId", lastId).setLimit(pageSize).execute();
+
+            List<XWikiEntraUser> page = new ArrayList<>(results.size());
+            for (Object[] row : results) {
+                lastId = ((Number) row[0]).longValue();
+                // Users without an active property are considered active.
+                boolean active = row[4] == null || ((Number) row[4]).intValue() != 0;
+                page.add(new XWikiEntraUser(documentReferenceResolver.resolve((String) row[1]), (String) row[2],
+                    (String) row[3], active, (String) row[5]));
+            }
+            pendingPage = page;
+            lastPage = results.isEmpty() || results.size() < pageSize;
+        }
     }
 }
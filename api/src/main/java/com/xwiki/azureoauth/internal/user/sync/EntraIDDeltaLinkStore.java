@@ -0,0 +1,85 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.azureoauth.internal.user.sync;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.environment.Environment;
+
+/**
+ * Stores the Graph delta links obtained at the end of the delta synchronizations, in the permanent directory.
+ *
+ * @version $Id$
+ * @since 2.2.4
+ */
+@Component(roles = EntraIDDeltaLinkStore.class)
+@Singleton
+public class EntraIDDeltaLinkStore
+{
+    private static final String STORE_DIRECTORY = "entraid/sync/delta";
+
+    @Inject
+    private Environment environment;
+
+    /**
+     * Get the delta link stored for the given key.
+     *
+     * @param key identifies the synchronization that obtained the delta link
+     * @return the stored delta link, or {@code null} if there is none
+     * @throws IOException if the delta link could not be read
+     */
+    public String getDeltaLink(String key) throws IOException
+    {
+        Path file = getFile(key);
+        return Files.exists(file) ? Files.readString(file, StandardCharsets.UTF_8) : null;
+    }
+
+    /**
+     * Store the delta link for the given key, replacing the previous one.
+     *
+     * @param key identifies the synchronization that obtained the delta link
+     * @param deltaLink the delta link to store, or {@code null} to remove the stored one
+     * @throws IOException if the delta link could not be written
+     */
+    public void setDeltaLink(String key, String deltaLink) throws IOException
+    {
+        Path file = getFile(key);
+        if (deltaLink == null) {
+            Files.deleteIfExists(file);
+        } else {
+            Files.createDirectories(file.getParent());
+            Files.writeString(file, deltaLink, StandardCharsets.UTF_8);
+        }
+    }
+
+    private Path getFile(String key)
+    {
+        return environment.getPermanentDirectory().toPath().resolve(STORE_DIRECTORY)
+            .resolve(URLEncoder.encode(key, StandardCharsets.UTF_8) + ".txt");
+    }
+}
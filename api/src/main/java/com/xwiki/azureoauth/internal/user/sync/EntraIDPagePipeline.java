@@ -0,0 +1,141 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.azureoauth.internal.user.sync;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Retrieves pages on a background stage and hands them over to the consuming thread through a bounded queue, so that
+ * a page can be processed while the next ones are being retrieved. The background stage waits when the queue is full,
+ * which slows the retrieval down to the pace of the consumer. Closing the pipeline stops the background stage.
+ *
+ * @param <T> the type of the page elements
+ * @version $Id$
+ * @since 2.2.4
+ */
+public class EntraIDPagePipeline<T> implements Iterator<List<T>>, AutoCloseable
+{
+    private static final long POLL_INTERVAL = 500;
+
+    /**
+     * Marks the end of the pages. Compared by identity, so it can't be mistaken for an empty page.
+     */
+    private final List<T> end = new ArrayList<>(0);
+
+    private final Iterator<List<T>> source;
+
+    private final BlockingQueue<List<T>> queue;
+
+    private final Future<?> producer;
+
+    private List<T> nextPage;
+
+    /**
+     * Creates the pipeline and starts retrieving the pages in the background.
+     *
+     * @param source the pages to retrieve
+     * @param capacity the maximum number of pages retrieved ahead of the consumer
+     * @param launcher starts the given background stage, e.g. on an executor
+     */
+    public EntraIDPagePipeline(Iterator<List<T>> source, int capacity, Function<Callable<Void>, Future<?>> launcher)
+    {
+        this.source = source;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.producer = launcher.apply(this::produce);
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        if (nextPage == null) {
+            try {
+                nextPage = take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+        return nextPage != end;
+    }
+
+    @Override
+    public List<T> next()
+    {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        List<T> page = nextPage;
+        nextPage = null;
+        return page;
+    }
+
+    @Override
+    public void close()
+    {
+        // Stops the background stage if the consumer gave up before the last page.
+        producer.cancel(true);
+    }
+
+    private Void produce() throws InterruptedException
+    {
+        while (source.hasNext()) {
+            queue.put(source.next());
+        }
+        queue.put(end);
+        return null;
+    }
+
+    private List<T> take() throws InterruptedException
+    {
+        while (true) {
+            // Checked before polling, so that the pages queued right before the stage stopped are not missed.
+            boolean stopped = producer.isDone();
+            List<T> page = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+            if (page != null) {
+                return page;
+            } else if (stopped) {
+                throw getFailure();
+            }
+        }
+    }
+
+    private RuntimeException getFailure() throws InterruptedException
+    {
+        try {
+            producer.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                return (RuntimeException) e.getCause();
+            }
+            return new RuntimeException(e.getCause());
+        }
+        return new IllegalStateException("The pages retrieval stopped before the last page.");
+    }
+}
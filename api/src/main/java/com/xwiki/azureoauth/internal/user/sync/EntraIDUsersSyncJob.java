@@ -29,6 +29,7 @@ import org.xwiki.job.AbstractJob;
 import org.xwiki.job.GroupedJob;
 import org.xwiki.job.JobGroupPath;
 
+import com.xwiki.azureoauth.internal.EntraIDTransferMetrics;
 import com.xwiki.azureoauth.user.sync.EntraIDUsersSyncJobRequest;
 import com.xwiki.azureoauth.user.sync.EntraIDUsersSyncJobStatus;
 
@@ -51,6 +52,9 @@ public class EntraIDUsersSyncJob extends AbstractJob<EntraIDUsersSyncJobRequest,
     @Inject
     private EntraIDUsersSyncManager syncManager;
 
+    @Inject
+    private EntraIDTransferMetrics transferMetrics;
+
     @Override
     public JobGroupPath getGroupPath()
     {
@@ -72,12 +76,18 @@ public class EntraIDUsersSyncJob extends AbstractJob<EntraIDUsersSyncJobRequest,
     @Override
     protected void runInternal() throws Exception
     {
+        long receivedBytes = transferMetrics.getReceivedBytes();
+        long decodedBytes = transferMetrics.getDecodedBytes();
         try {
             if (!status.isCanceled()) {
                 logger.debug("Started EntraID user sync job with ID: [{}]", this.status.getJobID());
                 this.progressManager.pushLevelProgress(1, this);
                 progressManager.startStep(this);
-                syncManager.syncUsers(request.shouldDisable(), request.shouldRemove());
+                if (request.isFarm()) {
+                    syncManager.syncAllWikis(request.shouldDisable(), request.shouldRemove(), request.getMode());
+                } else {
+                    syncManager.syncUsers(request.shouldDisable(), request.shouldRemove(), request.getMode());
+                }
                 progressManager.endStep(this);
             }
         } catch (Exception e) {
@@ -86,6 +96,8 @@ public class EntraIDUsersSyncJob extends AbstractJob<EntraIDUsersSyncJobRequest,
             throw new RuntimeException(e);
         } finally {
             this.progressManager.popLevelProgress(this);
+            logger.debug("Received [{}] bytes from Entra ID, [{}] bytes once decompressed.",
+                transferMetrics.getReceivedBytes() - receivedBytes, transferMetrics.getDecodedBytes() - decodedBytes);
             logger.debug("Finished EntraID user sync job with ID: [{}]", this.status.getJobID());
         }
     }
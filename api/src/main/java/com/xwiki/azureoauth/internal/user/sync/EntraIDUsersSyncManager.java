@@ -19,25 +19,40 @@
  */
 package com.xwiki.azureoauth.internal.user.sync;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.function.Function;
-import java.util.stream.Collectors;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.UUID;
 
 import javax.inject.Inject;
-import javax.inject.Named;
 import javax.inject.Provider;
 import javax.inject.Singleton;
 
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
-import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.query.QueryException;
+import org.xwiki.wiki.descriptor.WikiDescriptorManager;
 
-import com.xpn.xwiki.XWiki;
 import com.xpn.xwiki.XWikiContext;
-import com.xpn.xwiki.doc.XWikiDocument;
-import com.xpn.xwiki.objects.BaseObject;
+import com.xwiki.azureoauth.configuration.EntraIDConfiguration;
+import com.xwiki.azureoauth.internal.EntraIDDeltaLinkExpiredException;
+import com.xwiki.azureoauth.internal.user.DefaultEntraIDUsersManager;
+import com.xwiki.azureoauth.user.EntraIDUsersDelta;
 import com.xwiki.azureoauth.user.EntraIDUsersManager;
 import com.xwiki.azureoauth.user.ExternalUser;
+import com.xwiki.azureoauth.user.XWikiEntraUser;
+import com.xwiki.azureoauth.user.sync.EntraIDUsersSyncMode;
 
 /**
  * Manage the sync between Entra ID users and XWiki users.
@@ -49,19 +64,46 @@ import com.xwiki.azureoauth.user.ExternalUser;
 @Singleton
 public class EntraIDUsersSyncManager
 {
-    private static final String USER_CLASS = "XWiki.XWikiUsers";
+    /**
+     * The XWiki users are resolved one by one instead of listing the whole directory when the directory is at least
+     * this many times larger.
+     */
+    private static final int TARGETED_SYNC_RATIO = 10;
 
-    private static final String SAVE_MESSAGE = "Disable user during EntraID user synchronization";
+    /**
+     * Identifies the delta links of the farm syncs, for each directory. Wiki identifiers can't contain colons, so they
+     * can't clash.
+     */
+    private static final String FARM_DELTA_KEY = "farm:%s_%s_%s";
+
+    /**
+     * The maximum number of Entra ID pages retrieved ahead of the writes.
+     */
+    private static final int PIPELINE_CAPACITY = 4;
 
     @Inject
-    private Provider<XWikiContext> wikiContextProvider;
+    private EntraIDUsersManager usersManager;
 
     @Inject
-    @Named("current")
-    private DocumentReferenceResolver<String> documentReferenceResolver;
+    private EntraIDDeltaLinkStore deltaLinkStore;
 
     @Inject
-    private EntraIDUsersManager usersManager;
+    private WikiDescriptorManager wikiManager;
+
+    @Inject
+    private EntraIDWikiExecutor wikiExecutor;
+
+    @Inject
+    private EntraIDUsersWriter usersWriter;
+
+    @Inject
+    private EntraIDConfiguration configuration;
+
+    @Inject
+    private Provider<XWikiContext> wikiContextProvider;
+
+    @Inject
+    private Logger logger;
 
     /**
      * Synchronize the state of the XWiki users created from Entra ID with their state from the Microsoft server.
@@ -72,28 +114,392 @@ public class EntraIDUsersSyncManager
      */
     public void syncUsers(boolean disable, boolean remove) throws Exception
     {
-        Map<String, XWikiDocument> usersMap = usersManager.getXWikiUsersMap();
-        List<ExternalUser> externalUsers = usersManager.getEntraServerUsers();
-        // We index the values in a map to improve performance.
-        Map<String, ExternalUser> externalUsersById = externalUsers.stream()
-            .collect(Collectors.toMap(ExternalUser::getId, Function.identity()));
+        syncUsers(disable, remove, EntraIDUsersSyncMode.FULL);
+    }
+
+    /**
+     * Synchronize the state of the XWiki users created from Entra ID with their state from the Microsoft server.
+     *
+     * @param disable {@code true} if the sync should also sync disabled users, or {@code false} otherwise
+     * @param remove {@code true} if the sync should also sync removed users, or {@code false} otherwise
+     * @param mode the way in which the users are retrieved from the Microsoft server
+     * @throws Exception if any error occurs during the sync
+     * @since 2.2.4
+     */
+    public void syncUsers(boolean disable, boolean remove, EntraIDUsersSyncMode mode) throws Exception
+    {
+        try (EntraIDUsersWriter.WriterPool writers = usersWriter.newWriterPool()) {
+            if (mode == EntraIDUsersSyncMode.DELTA) {
+                // The changes that are not applied by a sync are lost for the syncs sharing its delta link, so each
+                // combination of actions keeps its own delta link.
+                String deltaKey = String.format("%s_%s_%s", wikiManager.getCurrentWikiId(), disable, remove);
+                String deltaLink = deltaLinkStore.getDeltaLink(deltaKey);
+                try {
+                    syncDelta(deltaKey, deltaLink, disable, remove, writers);
+                } catch (RuntimeException e) {
+                    if (!isDeltaLinkExpired(deltaLink, e)) {
+                        throw e;
+                    }
+                    // The changes already applied are harmless, the full listing brings the users to their final
+                    // state.
+                    logger.info("The Entra ID delta link expired during the sync. All the users will be retrieved.");
+                    syncDelta(deltaKey, null, disable, remove, writers);
+                }
+            } else {
+                Map<String, XWikiEntraUser> usersMap = getXWikiUsersMap();
+                try (EntraIDPagePipeline<ExternalUser> pages = pipeline(getServerUsers(usersMap.keySet()))) {
+                    syncUsers(usersMap, withFilteredOutUsers(pages, usersMap), true, disable, remove, writers);
+                }
+            }
+        }
+    }
+
+    /**
+     * Synchronize the state of the XWiki users created from Entra ID on all the wikis of the farm with their state
+     * from the Microsoft server. The wikis are grouped by the directory they are configured with, i.e. the tenant,
+     * the application, the Graph endpoint and the users filter, and the Entra ID users of a directory are retrieved
+     * only once for all its wikis. The wikis of a directory are synchronized concurrently, and the directories one
+     * after the other, so that a directory that fails doesn't prevent the others from being synchronized.
+     *
+     * @param disable {@code true} if the sync should also sync disabled users, or {@code false} otherwise
+     * @param remove {@code true} if the sync should also sync removed users, or {@code false} otherwise
+     * @param mode the way in which the users are retrieved from the Microsoft server
+     * @throws Exception if any error occurs while retrieving the Entra ID users
+     * @since 2.2.4
+     */
+    public void syncAllWikis(boolean disable, boolean remove, EntraIDUsersSyncMode mode) throws Exception
+    {
+        Map<String, List<String>> wikisByDirectory = getWikisByDirectory(wikiManager.getAllIds());
+        Exception failure = null;
+        // The batches of all the wikis are written by the same workers.
+        try (EntraIDUsersWriter.WriterPool writers = usersWriter.newWriterPool()) {
+            for (Map.Entry<String, List<String>> entry : wikisByDirectory.entrySet()) {
+                try {
+                    syncDirectory(entry.getKey(), entry.getValue(), disable, remove, mode, writers);
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Exception e) {
+                    logger.warn("Failed to synchronize the Entra ID users of the wikis [{}]. Root cause is: [{}]",
+                        entry.getValue(), ExceptionUtils.getRootCauseMessage(e));
+                    if (failure == null) {
+                        failure = e;
+                    } else {
+                        failure.addSuppressed(e);
+                    }
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private Map<String, List<String>> getWikisByDirectory(Collection<String> wikiIds) throws InterruptedException
+    {
+        // Each wiki can use its own tenant, application or filter, so the directory of each wiki is identified from
+        // its own configuration.
+        Map<String, String> directories = wikiExecutor.execute(wikiIds, wikiId -> getDirectory());
+        Map<String, List<String>> wikisByDirectory = new LinkedHashMap<>();
+        for (String wikiId : wikiIds) {
+            String directory = directories.get(wikiId);
+            if (directory != null) {
+                wikisByDirectory.computeIfAbsent(directory, key -> new ArrayList<>()).add(wikiId);
+            }
+        }
+        return wikisByDirectory;
+    }
+
+    private String getDirectory()
+    {
+        String tokenEndpoint = configuration.getTokenEndpoint();
+        if (StringUtils.isBlank(tokenEndpoint)) {
+            logger.debug("Entra ID is not configured on wiki [{}], its users are not synchronized.",
+                wikiManager.getCurrentWikiId());
+            return null;
+        }
+        // The token endpoint holds the tenant.
+        return String.join("\n", tokenEndpoint, configuration.getClientID(), configuration.getGraphEndpoint(),
+            configuration.getUsersFilter());
+    }
+
+    private void syncDirectory(String directory, List<String> wikiIds, boolean disable, boolean remove,
+        EntraIDUsersSyncMode mode, EntraIDUsersWriter.WriterPool writers) throws Exception
+    {
+        // The Entra ID users are retrieved with the configuration of one of the wikis of the directory, preferably
+        // the wiki running the sync.
         XWikiContext wikiContext = wikiContextProvider.get();
-        XWiki wiki = wikiContext.getWiki();
-        for (Map.Entry<String, XWikiDocument> entry : usersMap.entrySet()) {
-            XWikiDocument userDoc = entry.getValue();
-            String subject = entry.getKey();
-            ExternalUser externalUser = externalUsersById.get(subject);
-            if (externalUser == null) {
+        String currentWikiId = wikiContext.getWikiId();
+        wikiContext.setWikiId(wikiIds.contains(currentWikiId) ? currentWikiId : wikiIds.get(0));
+        try {
+            if (mode == EntraIDUsersSyncMode.DELTA) {
+                UUID directoryId = UUID.nameUUIDFromBytes(directory.getBytes(StandardCharsets.UTF_8));
+                String deltaKey = String.format(FARM_DELTA_KEY, directoryId, disable, remove);
+                String deltaLink = deltaLinkStore.getDeltaLink(deltaKey);
+                try {
+                    syncAllWikisDelta(wikiIds, deltaKey, deltaLink, disable, remove, writers);
+                } catch (RuntimeException e) {
+                    if (!isDeltaLinkExpired(deltaLink, e)) {
+                        throw e;
+                    }
+                    logger.info(
+                        "The Entra ID delta link expired during the farm sync. All the users will be retrieved.");
+                    syncAllWikisDelta(wikiIds, deltaKey, null, disable, remove, writers);
+                }
+            } else {
+                Map<String, Map<String, XWikiEntraUser>> usersMaps =
+                    new HashMap<>(wikiExecutor.execute(wikiIds, wikiId -> getXWikiUsersMap()));
+                Set<String> subjects = new HashSet<>();
+                usersMaps.values().forEach(usersMap -> subjects.addAll(usersMap.keySet()));
+                // The directory is retrieved once in a compact form, then each wiki is matched against it on its own.
+                EntraIDDirectorySnapshot snapshot = getDirectorySnapshot(getServerUsers(subjects), subjects);
+                wikiExecutor.execute(usersMaps.keySet(), wikiId -> {
+                    EntraIDUsersWriter.Batch batch = writers.newBatch();
+                    syncUsers(usersMaps.get(wikiId), snapshot, disable, remove, batch);
+                    batch.flush();
+                    return !batch.hasFailed();
+                });
+            }
+        } finally {
+            wikiContext.setWikiId(currentWikiId);
+        }
+    }
+
+    private void syncDelta(String deltaKey, String deltaLink, boolean disable, boolean remove,
+        EntraIDUsersWriter.WriterPool writers) throws Exception
+    {
+        EntraIDUsersDelta delta = usersManager.getEntraServerUsersDelta(deltaLink);
+        // The changes are retrieved in the background while the XWiki users are listed.
+        boolean written;
+        try (EntraIDPagePipeline<ExternalUser> pages = pipeline(delta)) {
+            written = syncUsers(getXWikiUsersMap(), pages, delta.isFull(), disable, remove, writers);
+        }
+        // The changes are retrieved again by the next sync when some of them could not be written.
+        if (written) {
+            deltaLinkStore.setDeltaLink(deltaKey, delta.getDeltaLink());
+        }
+    }
+
+    private void syncAllWikisDelta(Collection<String> wikiIds, String deltaKey, String deltaLink, boolean disable,
+        boolean remove, EntraIDUsersWriter.WriterPool writers) throws Exception
+    {
+        // The wikis that fail are left out of the rest of the sync, so they are removed from this map.
+        Map<String, Map<String, XWikiEntraUser>> usersMaps =
+            new HashMap<>(wikiExecutor.execute(wikiIds, wikiId -> getXWikiUsersMap()));
+        EntraIDUsersDelta delta = usersManager.getEntraServerUsersDelta(deltaLink);
+        boolean written;
+        try (EntraIDPagePipeline<ExternalUser> pages = pipeline(delta)) {
+            written = syncAllWikis(usersMaps, pages, delta.isFull(), disable, remove, writers);
+        }
+        // The changes are retrieved again by the next sync when some wikis could not apply them.
+        if (written && usersMaps.size() == wikiIds.size()) {
+            deltaLinkStore.setDeltaLink(deltaKey, delta.getDeltaLink());
+        }
+    }
+
+    private boolean isDeltaLinkExpired(String deltaLink, RuntimeException e)
+    {
+        // The expiry of the delta link on the first page is handled by the users manager, but Graph can also reject
+        // the link while the next pages are retrieved.
+        return deltaLink != null && ExceptionUtils.indexOfType(e, EntraIDDeltaLinkExpiredException.class) >= 0;
+    }
+
+    private EntraIDDirectorySnapshot getDirectorySnapshot(Iterator<List<ExternalUser>> pages, Set<String> subjects)
+    {
+        EntraIDDirectorySnapshot.Builder builder = EntraIDDirectorySnapshot.builder();
+        Set<String> missingSubjects = new HashSet<>(subjects);
+        addToSnapshot(pages, builder, missingSubjects);
+        if (isFiltered() && !missingSubjects.isEmpty()) {
+            // The XWiki users left out by the filter are not missing from the directory.
+            addToSnapshot(usersManager.getEntraServerUsersPages(Set.copyOf(missingSubjects)), builder,
+                missingSubjects);
+        }
+        return builder.build();
+    }
+
+    private void addToSnapshot(Iterator<List<ExternalUser>> pages, EntraIDDirectorySnapshot.Builder builder,
+        Set<String> missingSubjects)
+    {
+        while (pages.hasNext()) {
+            for (ExternalUser externalUser : pages.next()) {
+                if (!externalUser.isRemoved()) {
+                    builder.add(externalUser.getId(), externalUser.isEnabled());
+                    missingSubjects.remove(externalUser.getId());
+                }
+            }
+        }
+    }
+
+    private boolean isFiltered()
+    {
+        // Only the full listing of the directory is filtered, the delta queries and the users resolved by ID are not.
+        return StringUtils.isNotEmpty(configuration.getUsersFilter());
+    }
+
+    private Iterator<List<ExternalUser>> withFilteredOutUsers(Iterator<List<ExternalUser>> pages,
+        Map<String, XWikiEntraUser> usersMap)
+    {
+        if (!isFiltered()) {
+            return pages;
+        }
+        // The XWiki users that are still unmatched once the filtered listing is consumed are resolved by ID, so that
+        // the users left out by the filter are synchronized like in the other modes instead of being removed as
+        // missing. The full sync consumes the matched users, so the users left are the unmatched ones.
+        return new Iterator<>()
+        {
+            private Iterator<List<ExternalUser>> filteredOutPages;
+
+            @Override
+            public boolean hasNext()
+            {
+                if (filteredOutPages == null) {
+                    if (pages.hasNext()) {
+                        return true;
+                    }
+                    filteredOutPages = usersMap.isEmpty() ? Collections.emptyIterator()
+                        : usersManager.getEntraServerUsersPages(Set.copyOf(usersMap.keySet()));
+                }
+                return filteredOutPages.hasNext();
+            }
+
+            @Override
+            public List<ExternalUser> next()
+            {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return filteredOutPages != null ? filteredOutPages.next() : pages.next();
+            }
+        };
+    }
+
+    private void syncUsers(Map<String, XWikiEntraUser> usersMap, EntraIDDirectorySnapshot directory, boolean disable,
+        boolean remove, EntraIDUsersWriter.Batch batch) throws InterruptedException
+    {
+        for (XWikiEntraUser user : usersMap.values()) {
+            if (!directory.contains(user.getSubject())) {
                 if (remove) {
-                    wiki.deleteDocument(userDoc, wikiContext);
+                    batch.delete(user);
                 }
+            } else if (disable && !directory.isEnabled(user.getSubject()) && user.isActive()) {
+                batch.disable(user);
+            }
+        }
+    }
+
+    private boolean syncAllWikis(Map<String, Map<String, XWikiEntraUser>> usersMaps,
+        Iterator<List<ExternalUser>> pages, boolean full, boolean disable, boolean remove,
+        EntraIDUsersWriter.WriterPool writers) throws InterruptedException
+    {
+        boolean written = true;
+        // Each page of changes is applied to all the wikis before retrieving the next one.
+        while (pages.hasNext()) {
+            List<ExternalUser> page = pages.next();
+            Map<String, Boolean> synced = wikiExecutor.execute(usersMaps.keySet(), wikiId -> {
+                EntraIDUsersWriter.Batch batch = writers.newBatch();
+                syncPage(usersMaps.get(wikiId), page, full, disable, remove, batch);
+                batch.flush();
+                return !batch.hasFailed();
+            });
+            // The users of a wiki that failed must not be removed as if they were missing from the server.
+            usersMaps.keySet().retainAll(synced.keySet());
+            written &= !synced.containsValue(false);
+        }
+        if (full && remove) {
+            Map<String, Boolean> removed = wikiExecutor.execute(usersMaps.keySet(), wikiId -> {
+                EntraIDUsersWriter.Batch batch = writers.newBatch();
+                removeMissingUsers(usersMaps.get(wikiId), batch);
+                batch.flush();
+                return !batch.hasFailed();
+            });
+            written &= !removed.containsValue(false);
+        }
+        return written;
+    }
+
+    private EntraIDPagePipeline<ExternalUser> pipeline(Iterator<List<ExternalUser>> pages)
+    {
+        // The pages are retrieved on a separate thread, so that the network requests overlap with the writes, while
+        // the writes stay on the calling thread.
+        String wikiId = wikiManager.getCurrentWikiId();
+        return new EntraIDPagePipeline<>(pages, PIPELINE_CAPACITY,
+            producer -> wikiExecutor.submit(wikiId, id -> producer.call()));
+    }
+
+    private Map<String, XWikiEntraUser> getXWikiUsersMap() throws QueryException
+    {
+        // Index the users by subject. The users found on the server are removed from the index during a full sync.
+        Map<String, XWikiEntraUser> usersMap = new HashMap<>();
+        Iterator<List<XWikiEntraUser>> xwikiUsers =
+            usersManager.getXWikiEntraUsersPages(DefaultEntraIDUsersManager.DEFAULT_PAGE_SIZE);
+        while (xwikiUsers.hasNext()) {
+            for (XWikiEntraUser user : xwikiUsers.next()) {
+                usersMap.put(user.getSubject(), user);
+            }
+        }
+        return usersMap;
+    }
+
+    private Iterator<List<ExternalUser>> getServerUsers(Collection<String> subjects) throws Exception
+    {
+        // When only a small part of the directory logged in XWiki, resolving the known subjects takes far fewer
+        // requests than listing the whole directory.
+        try {
+            long directorySize = usersManager.getEntraServerUsersCount();
+            if ((long) subjects.size() * TARGETED_SYNC_RATIO <= directorySize) {
+                logger.debug("Resolving [{}] XWiki users out of [{}] Entra ID users.", subjects.size(),
+                    directorySize);
+                return usersManager.getEntraServerUsersPages(subjects);
+            }
+        } catch (Exception e) {
+            logger.warn("Failed to count the Entra ID users, all of them will be retrieved. Root cause is: [{}]",
+                ExceptionUtils.getRootCauseMessage(e));
+        }
+        return usersManager.getEntraServerUsersPages();
+    }
+
+    private boolean syncUsers(Map<String, XWikiEntraUser> usersMap, Iterator<List<ExternalUser>> pages,
+        boolean full, boolean disable, boolean remove, EntraIDUsersWriter.WriterPool writers)
+        throws InterruptedException
+    {
+        EntraIDUsersWriter.Batch batch = writers.newBatch();
+        // The server users are processed one page at a time, to avoid keeping the whole directory in memory. The next
+        // pages are retrieved in the meantime, up to the capacity of the pipeline.
+        while (pages.hasNext()) {
+            syncPage(usersMap, pages.next(), full, disable, remove, batch);
+        }
+        if (full && remove) {
+            removeMissingUsers(usersMap, batch);
+        }
+        batch.flush();
+        return !batch.hasFailed();
+    }
+
+    private void syncPage(Map<String, XWikiEntraUser> usersMap, List<ExternalUser> page, boolean full,
+        boolean disable, boolean remove, EntraIDUsersWriter.Batch batch) throws InterruptedException
+    {
+        for (ExternalUser externalUser : page) {
+            // A delta may contain the same user several times, so only the full syncs consume the matched users.
+            XWikiEntraUser user = full ? usersMap.remove(externalUser.getId()) : usersMap.get(externalUser.getId());
+            if (user == null) {
                 continue;
             }
-            if (disable && !externalUser.isEnabled()) {
-                BaseObject oidcObj = userDoc.getXObject(documentReferenceResolver.resolve(USER_CLASS));
-                oidcObj.set("active", 0, wikiContext);
-                wiki.saveDocument(userDoc, SAVE_MESSAGE, wikiContext);
+            if (externalUser.isRemoved()) {
+                if (remove) {
+                    usersMap.remove(externalUser.getId());
+                    batch.delete(user);
+                }
+            } else if (disable && !externalUser.isEnabled() && user.isActive()) {
+                batch.disable(user);
             }
         }
     }
+
+    private void removeMissingUsers(Map<String, XWikiEntraUser> usersMap, EntraIDUsersWriter.Batch batch)
+        throws InterruptedException
+    {
+        // When all the server users were retrieved, the users left are the ones that no longer exist on the server.
+        for (XWikiEntraUser user : usersMap.values()) {
+            batch.delete(user);
+        }
+    }
 }
@@ -0,0 +1,423 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.azureoauth.internal.user.sync;
+
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+import com.xwiki.azureoauth.configuration.EntraIDConfiguration;
+import com.xwiki.azureoauth.user.XWikiEntraUser;
+
+/**
+ * Writes the changes of the users sync to the XWiki users, grouped in batches. The documents of a batch are saved or
+ * deleted one by one through the XWiki API, so that the events, the document cache and the recycle bin always match
+ * what was actually written. A change is written again when it fails because of a transient store error, and a change
+ * that still fails is reported without preventing the next changes from being written.
+ * <p>
+ * When several threads are configured, the batches are written concurrently by a bounded pool of workers, each with
+ * its own copy of the XWiki context. The changes are spread over as many stripes as threads, based on the user
+ * document, and the batches of a stripe are written one after the other, so the changes of a document are always
+ * applied in order. A sync creates a single {@link WriterPool}, with the configuration of the wiki running the sync,
+ * and uses it for all its batches, including the ones of the other wikis of a farm sync. The pool is shut down once
+ * the sync is over, so a configuration change never affects the syncs in progress.
+ *
+ * @version $Id$
+ * @since 2.2.4
+ */
+@Component(roles = EntraIDUsersWriter.class)
+@Singleton
+public class EntraIDUsersWriter
+{
+    /**
+     * The maximum number of times a change is written.
+     */
+    static final int MAX_ATTEMPTS = 3;
+
+    private static final long RETRY_DELAY = 100;
+
+    private static final String USER_CLASS = "XWiki.XWikiUsers";
+
+    private static final String ACTIVE = "active";
+
+    private static final String SAVE_MESSAGE = "Disable user during EntraID user synchronization";
+
+    private static final String VIRTUAL_EXECUTOR = "virtual";
+
+    /**
+     * The SQL state class of the transaction rollbacks, e.g. {@code 40001} for serialization failures or
+     * {@code 40P01} for PostgreSQL deadlocks.
+     */
+    private static final String TRANSACTION_ROLLBACK_STATE = "40";
+
+    private static final long KEEP_ALIVE = 60;
+
+    /**
+     * Set once the runtime is known to lack virtual threads, so that the fallback is only reported once.
+     */
+    private volatile boolean virtualThreadsUnsupported;
+
+    @Inject
+    private Provider<XWikiContext> wikiContextProvider;
+
+    @Inject
+    @Named("current")
+    private DocumentReferenceResolver<String> documentReferenceResolver;
+
+    @Inject
+    private EntraIDConfiguration configuration;
+
+    @Inject
+    private EntraIDWikiExecutor wikiExecutor;
+
+    @Inject
+    private Logger logger;
+
+    /**
+     * The workers writing the batches of a sync. The pool is thread safe, so the tasks of a farm sync share it, and
+     * must be closed once the sync is over.
+     *
+     * @version $Id$
+     */
+    public final class WriterPool implements AutoCloseable
+    {
+        private final int stripes;
+
+        private final ExecutorService workers;
+
+        WriterPool(int stripes, ExecutorService workers)
+        {
+            this.stripes = stripes;
+            this.workers = workers;
+        }
+
+        /**
+         * Start a new batch of changes written by this pool to the current wiki, using the batch size configured on
+         * the current wiki.
+         *
+         * @return the new batch
+         */
+        public Batch newBatch()
+        {
+            return new Batch(configuration.getUsersSyncBatchSize(), stripes, wikiContextProvider.get().getWikiId(),
+                workers);
+        }
+
+        /**
+         * Release the workers. The changes already handed over to them are still written, while the changes added
+         * afterwards are written by the calling thread.
+         */
+        @Override
+        public void close()
+        {
+            if (workers != null) {
+                workers.shutdown();
+            }
+        }
+    }
+
+    /**
+     * The changes of a sync that are not written yet. The changes of a stripe are written to the wiki that was current
+     * when the batch was created each time the configured batch size is reached, and when the batch is flushed. A
+     * batch is not thread safe, so each sync task uses its own.
+     *
+     * @version $Id$
+     */
+    public final class Batch
+    {
+        private final int size;
+
+        private final String wikiId;
+
+        private final ExecutorService workers;
+
+        private final List<List<Change>> pendingChanges = new ArrayList<>();
+
+        private final List<Future<Boolean>> pendingWrites = new ArrayList<>();
+
+        private boolean failed;
+
+        Batch(int size, int stripes, String wikiId, ExecutorService workers)
+        {
+            this.size = size;
+            this.wikiId = wikiId;
+            this.workers = workers;
+            for (int i = 0; i < stripes; i++) {
+                pendingChanges.add(new ArrayList<>());
+                pendingWrites.add(null);
+            }
+        }
+
+        /**
+         * Disable the given user, unless it was already disabled since the snapshot of the user was taken.
+         *
+         * @param user the user to disable
+         * @throws InterruptedException if the thread is interrupted while waiting for a batch to be written
+         */
+        public void disable(XWikiEntraUser user) throws InterruptedException
+        {
+            add(new Change(user, false));
+        }
+
+        /**
+         * Delete the given user, unless it was already deleted.
+         *
+         * @param user the user to delete
+         * @throws InterruptedException if the thread is interrupted while waiting for a batch to be written
+         */
+        public void delete(XWikiEntraUser user) throws InterruptedException
+        {
+            add(new Change(user, true));
+        }
+
+        /**
+         * Write the pending changes and wait for all of them to be written.
+         *
+         * @throws InterruptedException if the thread is interrupted while waiting for a batch to be written
+         */
+        public void flush() throws InterruptedException
+        {
+            for (int stripe = 0; stripe < pendingChanges.size(); stripe++) {
+                if (!pendingChanges.get(stripe).isEmpty()) {
+                    write(stripe);
+                }
+            }
+            for (int stripe = 0; stripe < pendingWrites.size(); stripe++) {
+                await(stripe);
+            }
+        }
+
+        /**
+         * @return {@code true} if some of the changes could not be written, {@code false} otherwise
+         */
+        public boolean hasFailed()
+        {
+            return failed;
+        }
+
+        private void add(Change change) throws InterruptedException
+        {
+            int stripe = Math.floorMod(change.user.getReference().hashCode(), pendingChanges.size());
+            List<Change> changes = pendingChanges.get(stripe);
+            changes.add(change);
+            if (changes.size() >= size) {
+                write(stripe);
+            }
+        }
+
+        private void write(int stripe) throws InterruptedException
+        {
+            List<Change> changes = new ArrayList<>(pendingChanges.get(stripe));
+            pendingChanges.get(stripe).clear();
+            if (workers == null) {
+                failed |= !EntraIDUsersWriter.this.write(changes);
+                return;
+            }
+            // The previous batch of the stripe is written first, which also limits the changes kept in memory.
+            await(stripe);
+            try {
+                pendingWrites.set(stripe,
+                    workers.submit(wikiExecutor.inWiki(wikiId, id -> EntraIDUsersWriter.this.write(changes))));
+            } catch (RejectedExecutionException e) {
+                // The workers were shut down, e.g. because the pool was closed.
+                failed |= !EntraIDUsersWriter.this.write(changes);
+            }
+        }
+
+        private void await(int stripe) throws InterruptedException
+        {
+            Future<Boolean> pendingWrite = pendingWrites.set(stripe, null);
+            if (pendingWrite != null) {
+                try {
+                    failed |= !pendingWrite.get();
+                } catch (ExecutionException e) {
+                    logger.warn("Failed to write a batch of Entra ID user changes. Root cause is: [{}]",
+                        ExceptionUtils.getRootCauseMessage(e));
+                    failed = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Create the workers of a sync, using the number of threads and the executor configured on the current wiki. The
+     * pool must be closed once the sync is over, to release its workers.
+     *
+     * @return the new pool
+     */
+    public WriterPool newWriterPool()
+    {
+        int threads = configuration.getUsersSyncThreads();
+        ExecutorService workers = threads > 1 ? newWorkers(threads, configuration.getUsersSyncExecutor()) : null;
+        return new WriterPool(workers != null ? threads : 1, workers);
+    }
+
+    private ExecutorService newWorkers(int threads, String type)
+    {
+        ExecutorService workers = VIRTUAL_EXECUTOR.equalsIgnoreCase(type) && !virtualThreadsUnsupported
+            ? newVirtualThreadExecutor() : null;
+        return workers != null ? workers : newThreadPool(threads);
+    }
+
+    private ExecutorService newThreadPool(int threads)
+    {
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "Entra ID users writer " + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        // The threads are only kept while batches are being written, even if the pool is not closed.
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    private ExecutorService newVirtualThreadExecutor()
+    {
+        try {
+            // Looked up by reflection since virtual threads are only available starting with Java 21. The number of
+            // batches written at the same time is still bounded by the number of stripes of each batch.
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            virtualThreadsUnsupported = true;
+            logger.warn("Virtual threads are not supported by the Java runtime, a pool of platform threads is used "
+                + "to write the Entra ID user changes instead.");
+            return null;
+        }
+    }
+
+    private boolean write(List<Change> changes) throws InterruptedException
+    {
+        XWikiContext wikiContext = wikiContextProvider.get();
+        boolean written = true;
+        for (Change change : changes) {
+            written &= write(change, wikiContext);
+        }
+        return written;
+    }
+
+    private boolean write(Change change, XWikiContext wikiContext) throws InterruptedException
+    {
+        for (int attempt = 1;; attempt++) {
+            try {
+                // The user document is loaded again on each attempt, so a retry doesn't write stale changes.
+                if (change.delete) {
+                    deleteUser(change.user, wikiContext);
+                } else {
+                    disableUser(change.user, wikiContext);
+                }
+                return true;
+            } catch (XWikiException | RuntimeException e) {
+                if (attempt < MAX_ATTEMPTS && isTransient(e)) {
+                    logger.debug("Writing the Entra ID user [{}] again after a transient error: [{}]",
+                        change.user.getReference(), ExceptionUtils.getRootCauseMessage(e));
+                    Thread.sleep(RETRY_DELAY * attempt);
+                } else {
+                    logger.warn("Failed to write the changes of the Entra ID user [{}]. Root cause is: [{}]",
+                        change.user.getReference(), ExceptionUtils.getRootCauseMessage(e));
+                    return false;
+                }
+            }
+        }
+    }
+
+    private boolean isTransient(Exception e)
+    {
+        for (Throwable cause : ExceptionUtils.getThrowableList(e)) {
+            if (cause instanceof SQLTransientException || cause instanceof SQLRecoverableException) {
+                return true;
+            }
+            // Most drivers, e.g. the PostgreSQL one, report deadlocks and serialization failures with a generic
+            // exception type, so the SQL state is what identifies them.
+            if (cause instanceof SQLException) {
+                String state = ((SQLException) cause).getSQLState();
+                if (state != null && state.startsWith(TRANSACTION_ROLLBACK_STATE)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void disableUser(XWikiEntraUser user, XWikiContext wikiContext) throws XWikiException
+    {
+        // The user document is only loaded when the user has to be changed.
+        XWikiDocument userDoc = wikiContext.getWiki().getDocument(user.getReference(), wikiContext);
+        BaseObject userObj = userDoc.getXObject(documentReferenceResolver.resolve(USER_CLASS));
+        if (userObj == null) {
+            return;
+        }
+        if (!Objects.equals(userDoc.getVersion(), user.getVersion()) && userObj.getIntValue(ACTIVE, 1) == 0) {
+            // The user was disabled since the snapshot was taken.
+            return;
+        }
+        userObj.set(ACTIVE, 0, wikiContext);
+        wikiContext.getWiki().saveDocument(userDoc, SAVE_MESSAGE, wikiContext);
+    }
+
+    private void deleteUser(XWikiEntraUser user, XWikiContext wikiContext) throws XWikiException
+    {
+        XWikiDocument userDoc = wikiContext.getWiki().getDocument(user.getReference(), wikiContext);
+        // The user might have been deleted since the snapshot was taken.
+        if (!userDoc.isNew()) {
+            wikiContext.getWiki().deleteDocument(userDoc, wikiContext);
+        }
+    }
+
+    private static final class Change
+    {
+        private final XWikiEntraUser user;
+
+        private final boolean delete;
+
+        Change(XWikiEntraUser user, boolean delete)
+        {
+            this.user = user;
+            this.delete = delete;
+        }
+    }
+}
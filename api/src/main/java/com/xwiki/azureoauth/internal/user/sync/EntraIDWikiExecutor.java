@@ -0,0 +1,212 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.azureoauth.internal.user.sync;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextManager;
+
+import com.xpn.xwiki.XWikiContext;
+
+/**
+ * Runs a task on several wikis concurrently, on a bounded pool of threads. Each task runs in its own execution
+ * context, with a copy of the caller's XWiki context targeting the wiki of the task.
+ *
+ * @version $Id$
+ * @since 2.2.4
+ */
+@Component(roles = EntraIDWikiExecutor.class)
+@Singleton
+public class EntraIDWikiExecutor implements Disposable
+{
+    /**
+     * The maximum number of wikis processed at the same time.
+     */
+    static final int MAX_THREADS = 4;
+
+    private static final long KEEP_ALIVE = 60;
+
+    private final Object lock = new Object();
+
+    private volatile ExecutorService executor;
+
+    @Inject
+    private Execution execution;
+
+    @Inject
+    private ExecutionContextManager executionContextManager;
+
+    @Inject
+    private Provider<XWikiContext> wikiContextProvider;
+
+    @Inject
+    private Logger logger;
+
+    /**
+     * A task run on a wiki.
+     *
+     * @param <T> the type of the task result
+     * @version $Id$
+     */
+    @FunctionalInterface
+    public interface WikiTask<T>
+    {
+        /**
+         * Run the task on the given wiki, which is also the current wiki of the context.
+         *
+         * @param wikiId the identifier of the wiki
+         * @return the result of the task
+         * @throws Exception if the task fails
+         */
+        T run(String wikiId) throws Exception;
+    }
+
+    /**
+     * Run the given task on each of the given wikis and wait for all of them to finish. A task failing on a wiki
+     * doesn't prevent the task from running on the other wikis.
+     *
+     * @param wikiIds the identifiers of the wikis
+     * @param task the task to run on each wiki
+     * @param <T> the type of the task result
+     * @return the results of the task, by wiki identifier, for the wikis where the task succeeded
+     * @throws InterruptedException if the thread is interrupted while waiting for the tasks
+     */
+    public <T> Map<String, T> execute(Collection<String> wikiIds, WikiTask<T> task) throws InterruptedException
+    {
+        Map<String, Future<T>> futures = new LinkedHashMap<>();
+        for (String wikiId : wikiIds) {
+            futures.put(wikiId, submit(wikiId, task));
+        }
+        Map<String, T> results = new HashMap<>();
+        try {
+            for (Map.Entry<String, Future<T>> entry : futures.entrySet()) {
+                try {
+                    results.put(entry.getKey(), entry.getValue().get());
+                } catch (ExecutionException e) {
+                    logger.warn("Failed to synchronize the Entra ID users of wiki [{}]. Root cause is: [{}]",
+                        entry.getKey(), ExceptionUtils.getRootCauseMessage(e));
+                }
+            }
+        } catch (InterruptedException e) {
+            futures.values().forEach(future -> future.cancel(true));
+            throw e;
+        }
+        return results;
+    }
+
+    /**
+     * Run the given task on the given wiki in the background.
+     *
+     * @param wikiId the identifier of the wiki
+     * @param task the task to run
+     * @param <T> the type of the task result
+     * @return the future result of the task, which can be cancelled to interrupt the task
+     */
+    public <T> Future<T> submit(String wikiId, WikiTask<T> task)
+    {
+        return getExecutor().submit(inWiki(wikiId, task));
+    }
+
+    /**
+     * Prepare the given task to run on the given wiki from another thread, e.g. on a different executor. The task
+     * runs in its own execution context, with a copy of the caller's XWiki context targeting the given wiki.
+     *
+     * @param wikiId the identifier of the wiki
+     * @param task the task to run
+     * @param <T> the type of the task result
+     * @return the task to run on the other thread
+     */
+    public <T> Callable<T> inWiki(String wikiId, WikiTask<T> task)
+    {
+        XWikiContext parentContext = wikiContextProvider.get();
+        return () -> runInWiki(wikiId, parentContext, task);
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        synchronized (lock) {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private <T> T runInWiki(String wikiId, XWikiContext parentContext, WikiTask<T> task) throws Exception
+    {
+        ExecutionContext executionContext = new ExecutionContext();
+        executionContextManager.initialize(executionContext);
+        try {
+            // Each task works on its own copy of the context, so that the tasks can change it concurrently.
+            XWikiContext wikiContext = parentContext.clone();
+            wikiContext.setWikiId(wikiId);
+            wikiContext.declareInExecutionContext(executionContext);
+            return task.run(wikiId);
+        } finally {
+            execution.removeContext();
+        }
+    }
+
+    private ExecutorService getExecutor()
+    {
+        ExecutorService currentExecutor = executor;
+        if (currentExecutor == null) {
+            synchronized (lock) {
+                currentExecutor = executor;
+                if (currentExecutor == null) {
+                    AtomicInteger threadCount = new AtomicInteger();
+                    ThreadPoolExecutor pool = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, KEEP_ALIVE,
+                        TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                            Thread thread = new Thread(runnable, "Entra ID wiki sync " + threadCount.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+                    // The threads are only kept while wikis are being synchronized.
+                    pool.allowCoreThreadTimeOut(true);
+                    currentExecutor = pool;
+                    executor = currentExecutor;
+                }
+            }
+        }
+        return currentExecutor;
+    }
+}
@@ -51,12 +51,15 @@ public interface EntraIDResource extends XWikiRestComponent
     Response xwikiLogin(@PathParam("redirectDocument") String redirectDocument) throws XWikiRestException;
 
     /**
-     * Sync XWiki users with the users from Entra ID.
+     * Sync XWiki users with the users from Entra ID. The {@code disable} and {@code remove} request parameters select
+     * the actions of the sync, while the optional {@code mode} parameter ({@code full} or {@code delta}) selects the
+     * way in which the Entra ID users are retrieved. The optional {@code farm} parameter syncs the users of all the
+     * wikis at once, and requires programming rights.
      *
      * @return status code 201 if a new job has been created, or status code 200 if a job with the same ID already
      *     exists
-     * @throws XWikiRestException with status code 401 if the user requesting is missing admin rights, or code 500
-     *     if any error occurs
+     * @throws XWikiRestException with status code 400 if the requested mode is unknown, code 401 if the user
+     *     requesting is missing admin rights, or code 500 if any error occurs
      * @since 2.1
      */
     @POST
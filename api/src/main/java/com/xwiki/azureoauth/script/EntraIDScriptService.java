@@ -19,6 +19,8 @@
  */
 package com.xwiki.azureoauth.script;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.stream.Stream;
 
 import javax.inject.Inject;
@@ -38,6 +40,7 @@ import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.api.User;
 import com.xpn.xwiki.doc.XWikiDocument;
 import com.xwiki.azureoauth.configuration.EntraIDConfiguration;
+import com.xwiki.azureoauth.internal.EntraIDCircuitBreaker;
 
 import static com.xwiki.azureoauth.internal.configuration.DefaultEntraIDConfiguration.OIDC_USER_CLASS;
 
@@ -64,6 +67,9 @@ public class EntraIDScriptService implements ScriptService
     @Named("current")
     private DocumentReferenceResolver<String> documentReferenceResolver;
 
+    @Inject
+    private EntraIDCircuitBreaker circuitBreaker;
+
     /**
      * Check if XWiki log in is enabled for guest users.
      *
@@ -85,6 +91,23 @@ public class EntraIDScriptService implements ScriptService
         return isAzureUser() && isUserInGroups();
     }
 
+    /**
+     * Get the state of the circuit breaker of each Entra ID endpoint called so far, for each host it was reached on. An
+     * {@code OPEN} circuit means that the endpoint is considered unavailable on that host and that the requests to it
+     * fail without being sent.
+     *
+     * @return the circuit state ({@code CLOSED}, {@code OPEN} or {@code HALF_OPEN}) by endpoint name and host, e.g.
+     *     {@code graph:graph.microsoft.com}
+     * @since 2.2.4
+     */
+    @Unstable
+    public Map<String, String> getEndpointStates()
+    {
+        Map<String, String> states = new LinkedHashMap<>();
+        circuitBreaker.getStates().forEach((endpoint, state) -> states.put(endpoint, state.name()));
+        return states;
+    }
+
     private boolean isAzureUser() throws XWikiException
     {
         XWikiContext wikiContext = wikiContextProvider.get();
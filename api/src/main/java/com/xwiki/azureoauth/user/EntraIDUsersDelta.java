@@ -0,0 +1,51 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.azureoauth.user;
+
+import java.util.Iterator;
+import java.util.List;
+
+import org.xwiki.stability.Unstable;
+
+/**
+ * The pages of users that changed on the Entra ID server since a previous sync. When no previous sync state is
+ * available, or when it expired, the pages contain the whole directory instead.
+ *
+ * @version $Id$
+ * @since 2.2.4
+ */
+@Unstable
+public interface EntraIDUsersDelta extends Iterator<List<ExternalUser>>
+{
+    /**
+     * Check if the pages contain all the users of the directory, instead of only the users that changed.
+     *
+     * @return {@code true} if the pages contain the whole directory, or {@code false} if they only contain the changes
+     */
+    boolean isFull();
+
+    /**
+     * Get the link to use for retrieving the next changes. The link is only available once all the pages have been
+     * consumed.
+     *
+     * @return the link to the next changes, or {@code null} if the pages have not been entirely consumed yet
+     */
+    String getDeltaLink();
+}
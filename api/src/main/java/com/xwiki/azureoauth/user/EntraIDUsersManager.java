@@ -19,8 +19,11 @@
  */
 package com.xwiki.azureoauth.user;
 
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Stream;
 
 import org.xwiki.component.annotation.Role;
 import org.xwiki.query.QueryException;
@@ -45,11 +48,15 @@ public interface EntraIDUsersManager
      *
      * @return the internal users that are created from EntraId
      * @throws Exception if there are any errors while getting the users.
+     * @deprecated since 2.2.4, use {@link #getXWikiEntraUsersPages(int)} which doesn't keep all the user documents
+     *     in memory
      */
+    @Deprecated
     Map<String, XWikiDocument> getXWikiUsersMap() throws Exception;
 
     /**
-     * Get a {@link List} of internal users that are created from EntraId.
+     * Get a {@link List} of internal users that are created from EntraId. All the user documents are loaded in
+     * memory, so {@link #getXWikiEntraUsersPages(int)} should be preferred when walking through all the users.
      *
      * @return a {@link List} of the user documents
      * @throws XWikiException if there is any error while retrieving the documents
@@ -58,10 +65,93 @@ public interface EntraIDUsersManager
     List<XWikiDocument> getXWikiUsers() throws XWikiException, QueryException;
 
     /**
-     * Get a {@link List} of users present on the EntraID server.
+     * Get the internal users that are created from EntraId, without loading their documents. The user documents can
+     * be loaded afterwards, only for the users that have to be changed.
+     *
+     * @return the internal users that are created from EntraId
+     * @throws QueryException if the query execution fails
+     * @since 2.2.4
+     */
+    @Unstable
+    List<XWikiEntraUser> getXWikiEntraUsers() throws QueryException;
+
+    /**
+     * Get the internal users that are created from EntraId, one page at a time, without loading their documents. The
+     * pages are retrieved lazily, so only the page that is currently processed has to be kept in memory.
+     *
+     * @param pageSize the maximum number of users retrieved with each page
+     * @return an {@link Iterator} over the pages of internal users
+     * @throws QueryException if the query retrieving the first page fails
+     * @since 2.2.4
+     */
+    @Unstable
+    Iterator<List<XWikiEntraUser>> getXWikiEntraUsersPages(int pageSize) throws QueryException;
+
+    /**
+     * Get a {@link List} of users present on the EntraID server. All the users are kept in memory, so
+     * {@link #getEntraServerUsersStream()} should be preferred when walking through all the users.
      *
      * @return the external users info stored in {@link ExternalUser}
      * @throws Exception if there are any errors while getting the users.
      */
     List<ExternalUser> getEntraServerUsers() throws Exception;
+
+    /**
+     * Get the users present on the EntraID server as a {@link Stream}. The users are pulled from the server one page
+     * at a time as the stream is consumed, and the next page is downloaded while the current one is processed, so
+     * only a couple of pages are kept in memory. Errors occurring after the first page are thrown as
+     * {@link RuntimeException} by the terminal operation of the stream.
+     *
+     * @return a sequential {@link Stream} of the external users
+     * @throws Exception if there are any errors while getting the first page of users
+     * @since 2.2.4
+     */
+    @Unstable
+    Stream<ExternalUser> getEntraServerUsersStream() throws Exception;
+
+    /**
+     * Get the users present on the EntraID server, one page at a time. Pages are fetched lazily from the server, so
+     * only the page that is currently processed has to be kept in memory.
+     *
+     * @return an {@link Iterator} over the pages of external users
+     * @throws Exception if there are any errors while getting the first page of users
+     * @since 2.2.4
+     */
+    @Unstable
+    Iterator<List<ExternalUser>> getEntraServerUsersPages() throws Exception;
+
+    /**
+     * Get the users that changed on the EntraID server since a previous call, one page at a time. Users removed from
+     * the server are marked as removed. When the given delta link is missing or no longer valid, all the users are
+     * returned instead, and the result is marked as full.
+     *
+     * @param deltaLink the delta link obtained from a previous call, or {@code null} to retrieve all the users
+     * @return the pages of changed users, which also provide the delta link to use for the next call
+     * @throws Exception if there are any errors while getting the first page of users
+     * @since 2.2.4
+     */
+    @Unstable
+    EntraIDUsersDelta getEntraServerUsersDelta(String deltaLink) throws Exception;
+
+    /**
+     * Get the EntraID server users having the given IDs, one page at a time. The IDs that don't belong to an existing
+     * user are returned as removed users.
+     *
+     * @param ids the IDs of the users to retrieve
+     * @return an {@link Iterator} over the pages of external users
+     * @since 2.2.4
+     */
+    @Unstable
+    Iterator<List<ExternalUser>> getEntraServerUsersPages(Collection<String> ids);
+
+    /**
+     * Get the number of users present on the EntraID server. The count is eventually consistent, so it might not
+     * reflect the latest changes.
+     *
+     * @return the number of users
+     * @throws Exception if there are any errors while counting the users
+     * @since 2.2.4
+     */
+    @Unstable
+    long getEntraServerUsersCount() throws Exception;
 }
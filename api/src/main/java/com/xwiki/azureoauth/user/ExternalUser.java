@@ -19,6 +19,8 @@
  */
 package com.xwiki.azureoauth.user;
 
+import java.util.Map;
+
 import org.xwiki.stability.Unstable;
 
 /**
@@ -34,6 +36,10 @@ public class ExternalUser
 
     private boolean isEnabled;
 
+    private boolean isRemoved;
+
+    private Map<String, String> attributes = Map.of();
+
     /**
      * Parameters constructor.
      *
@@ -46,6 +52,37 @@ public class ExternalUser
         this.isEnabled = isEnabled;
     }
 
+    /**
+     * Parameters constructor.
+     *
+     * @param id the id of the external user
+     * @param isEnabled {@code true} if the external user is enabled, or {@code false} otherwise
+     * @param isRemoved {@code true} if the external user was removed from the server, or {@code false} otherwise
+     * @since 2.2.4
+     */
+    @Unstable
+    public ExternalUser(String id, boolean isEnabled, boolean isRemoved)
+    {
+        this(id, isEnabled);
+        this.isRemoved = isRemoved;
+    }
+
+    /**
+     * Parameters constructor.
+     *
+     * @param id the id of the external user
+     * @param isEnabled {@code true} if the external user is enabled, or {@code false} otherwise
+     * @param isRemoved {@code true} if the external user was removed from the server, or {@code false} otherwise
+     * @param attributes the additional attributes retrieved from the server
+     * @since 2.2.4
+     */
+    @Unstable
+    public ExternalUser(String id, boolean isEnabled, boolean isRemoved, Map<String, String> attributes)
+    {
+        this(id, isEnabled, isRemoved);
+        setAttributes(attributes);
+    }
+
     /**
      * Get the user id.
      *
@@ -85,4 +122,67 @@ public class ExternalUser
     {
         isEnabled = enabled;
     }
+
+    /**
+     * Check if the user was removed from the server. Only users retrieved as changes since a previous sync can be
+     * marked as removed.
+     *
+     * @return {@code true} if the external user was removed from the server, or {@code false} otherwise
+     * @since 2.2.4
+     */
+    @Unstable
+    public boolean isRemoved()
+    {
+        return isRemoved;
+    }
+
+    /**
+     * {@link #isRemoved()}.
+     *
+     * @param removed {@code true} if the external user was removed from the server, or {@code false} otherwise
+     * @since 2.2.4
+     */
+    @Unstable
+    public void setRemoved(boolean removed)
+    {
+        isRemoved = removed;
+    }
+
+    /**
+     * Get the additional attributes retrieved from the server, as configured in the Entra ID configuration.
+     *
+     * @return an immutable map of the attribute values, by attribute name
+     * @since 2.2.4
+     */
+    @Unstable
+    public Map<String, String> getAttributes()
+    {
+        return attributes;
+    }
+
+    /**
+     * Get the value of an additional attribute retrieved from the server.
+     *
+     * @param name the name of the attribute
+     * @return the value of the attribute, or {@code null} if it was not retrieved
+     * @since 2.2.4
+     */
+    @Unstable
+    public String getAttribute(String name)
+    {
+        return attributes.get(name);
+    }
+
+    /**
+     * {@link #getAttributes()}.
+     *
+     * @param attributes the additional attributes retrieved from the server
+     * @since 2.2.4
+     */
+    @Unstable
+    public void setAttributes(Map<String, String> attributes)
+    {
+        // Immutable copies are compact, and most users share the same empty map.
+        this.attributes = attributes != null ? Map.copyOf(attributes) : Map.of();
+    }
 }
@@ -0,0 +1,114 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.azureoauth.user;
+
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.stability.Unstable;
+
+/**
+ * An immutable snapshot of an XWiki user created from Entra ID, described by the values stored on its user document.
+ * It is retrieved without loading the user document, which only needs to be loaded when the user has to be changed.
+ * The version of the document is part of the snapshot, to detect the documents that changed since it was taken.
+ *
+ * @version $Id$
+ * @since 2.2.4
+ */
+@Unstable
+public class XWikiEntraUser
+{
+    private final DocumentReference reference;
+
+    private final String subject;
+
+    private final String issuer;
+
+    private final boolean isActive;
+
+    private final String version;
+
+    /**
+     * Parameters constructor.
+     *
+     * @param reference the reference of the user document
+     * @param subject the OIDC subject of the user, which is the id of the Entra ID user
+     * @param issuer the OIDC issuer of the user
+     * @param isActive {@code true} if the XWiki user is active, or {@code false} otherwise
+     * @param version the version of the user document
+     */
+    public XWikiEntraUser(DocumentReference reference, String subject, String issuer, boolean isActive,
+        String version)
+    {
+        this.reference = reference;
+        this.subject = subject;
+        this.issuer = issuer;
+        this.isActive = isActive;
+        this.version = version;
+    }
+
+    /**
+     * Get the reference of the user document.
+     *
+     * @return the reference of the user document
+     */
+    public DocumentReference getReference()
+    {
+        return reference;
+    }
+
+    /**
+     * Get the OIDC subject of the user, which is the id of the Entra ID user.
+     *
+     * @return the subject
+     */
+    public String getSubject()
+    {
+        return subject;
+    }
+
+    /**
+     * Get the OIDC issuer of the user.
+     *
+     * @return the issuer
+     */
+    public String getIssuer()
+    {
+        return issuer;
+    }
+
+    /**
+     * Check if the XWiki user is active.
+     *
+     * @return {@code true} if the XWiki user is active, or {@code false} otherwise
+     */
+    public boolean isActive()
+    {
+        return isActive;
+    }
+
+    /**
+     * Get the version of the user document when the snapshot was taken.
+     *
+     * @return the version of the user document
+     */
+    public String getVersion()
+    {
+        return version;
+    }
+}
@@ -37,6 +37,10 @@ public class EntraIDUsersSyncJobRequest extends AbstractRequest
 
     private boolean remove;
 
+    private EntraIDUsersSyncMode mode = EntraIDUsersSyncMode.FULL;
+
+    private boolean farm;
+
     /**
      * Default constructor.
      */
@@ -59,6 +63,41 @@ public class EntraIDUsersSyncJobRequest extends AbstractRequest
         this.remove = remove;
     }
 
+    /**
+     * Creates a specific request for users sync job.
+     *
+     * @param jobId the ID of the request.
+     * @param disable {@code true} if the sync should also sync disabled users, or {@code false} otherwise
+     * @param remove {@code true} if the sync should also sync removed users, or {@code false} otherwise
+     * @param mode the way in which the users are retrieved from Entra ID
+     * @since 2.2.4
+     */
+    @Unstable
+    public EntraIDUsersSyncJobRequest(List<String> jobId, boolean disable, boolean remove, EntraIDUsersSyncMode mode)
+    {
+        this(jobId, disable, remove);
+        this.mode = mode;
+    }
+
+    /**
+     * Creates a specific request for users sync job.
+     *
+     * @param jobId the ID of the request.
+     * @param disable {@code true} if the sync should also sync disabled users, or {@code false} otherwise
+     * @param remove {@code true} if the sync should also sync removed users, or {@code false} otherwise
+     * @param mode the way in which the users are retrieved from Entra ID
+     * @param farm {@code true} if the users of all the wikis should be synced, or {@code false} to sync only the
+     *     users of the current wiki
+     * @since 2.2.4
+     */
+    @Unstable
+    public EntraIDUsersSyncJobRequest(List<String> jobId, boolean disable, boolean remove, EntraIDUsersSyncMode mode,
+        boolean farm)
+    {
+        this(jobId, disable, remove, mode);
+        this.farm = farm;
+    }
+
     /**
      * @return {@code true} if disabled users from Entra ID should be synced, or {@code false} otherwise.
      */
@@ -75,6 +114,27 @@ public class EntraIDUsersSyncJobRequest extends AbstractRequest
         return remove;
     }
 
+    /**
+     * @return the way in which the users are retrieved from Entra ID
+     * @since 2.2.4
+     */
+    @Unstable
+    public EntraIDUsersSyncMode getMode()
+    {
+        return mode;
+    }
+
+    /**
+     * @return {@code true} if the users of all the wikis should be synced, or {@code false} to sync only the users of
+     *     the current wiki
+     * @since 2.2.4
+     */
+    @Unstable
+    public boolean isFarm()
+    {
+        return farm;
+    }
+
     private void setDefaultId()
     {
         setId(List.of("entra", "users", "sync"));
@@ -0,0 +1,43 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.azureoauth.user.sync;
+
+import org.xwiki.stability.Unstable;
+
+/**
+ * The ways in which the XWiki users can be synchronized with the Entra ID users.
+ *
+ * @version $Id$
+ * @since 2.2.4
+ */
+@Unstable
+public enum EntraIDUsersSyncMode
+{
+    /**
+     * Retrieve all the Entra ID users and compare them with the XWiki users.
+     */
+    FULL,
+
+    /**
+     * Retrieve only the Entra ID users that changed since the previous delta synchronization. The first delta
+     * synchronization, or the one following an expired delta state, retrieves all the users.
+     */
+    DELTA
+}
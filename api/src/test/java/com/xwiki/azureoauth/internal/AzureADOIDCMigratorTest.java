@@ -43,11 +43,11 @@ import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.XWikiDocument;
 import com.xpn.xwiki.objects.BaseObject;
-import com.xpn.xwiki.objects.PropertyInterface;
 import com.xwiki.azureoauth.configuration.AzureOldConfiguration;
 import com.xwiki.azureoauth.configuration.EntraIDConfiguration;
 import com.xwiki.azureoauth.internal.oldConfiguration.OldAzureOAuthConfiguration;
 import com.xwiki.azureoauth.user.EntraIDUsersManager;
+import com.xwiki.azureoauth.user.XWikiEntraUser;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.mockito.ArgumentMatchers.anyMap;
@@ -110,13 +110,10 @@ class AzureADOIDCMigratorTest
     private BaseObject baseObject1;
 
     @Mock
-    private BaseObject baseObject2;
+    private DocumentReference userReference1;
 
     @Mock
-    private PropertyInterface propertyInterface1;
-
-    @Mock
-    private PropertyInterface propertyInterface2;
+    private DocumentReference userReference2;
 
     private Map<String, Object> endpoints =
         Map.of("authorizationEndpoint", String.format(BASE_ENDPOINT, "tenant_id", "authorize"), "tokenEndpoint",
@@ -169,15 +166,17 @@ class AzureADOIDCMigratorTest
     void refactorOIDCIssuerTest() throws QueryException, XWikiException
     {
         when(documentReferenceResolver.resolve("XWiki.OIDC.UserClass")).thenReturn(classReference);
-        when(usersManager.getXWikiUsers()).thenReturn(List.of(wikiDocument1, wikiDocument2));
+        when(usersManager.getXWikiEntraUsersPages(1000)).thenReturn(List.of(
+            List.of(new XWikiEntraUser(userReference1, "subject1", "http.something.com/tenantId/2.0", true, "1.1")),
+            List.of(new XWikiEntraUser(userReference2, "subject2", "http.something.com/tenantId/v2.0", true, "1.1")))
+            .iterator());
+        when(wiki.getDocument(userReference1, wikiContext)).thenReturn(wikiDocument1);
         when(wikiDocument1.getXObject(classReference)).thenReturn(baseObject1);
-        when(wikiDocument2.getXObject(classReference)).thenReturn(baseObject2);
-        when(baseObject1.getField("issuer")).thenReturn(propertyInterface1);
-        when(baseObject2.getField("issuer")).thenReturn(propertyInterface2);
-        when(propertyInterface1.toFormString()).thenReturn("http.something.com/tenantId/2.0");
-        when(propertyInterface2.toFormString()).thenReturn("http.something.com/tenantId/v2.0");
 
         azureADOIDCMigrator.refactorOIDCIssuer();
+        verify(baseObject1).set("issuer", "http.something.com/tenantId/v2.0", wikiContext);
+        // The documents of the users having a valid issuer are not loaded.
+        verify(wiki, Mockito.never()).getDocument(userReference2, wikiContext);
         verify(wiki, Mockito.times(1)).saveDocument(wikiDocument1,
             "Refactored OIDC issuer to the right format used by Entra ID.", wikiContext);
         verify(wiki, Mockito.times(0)).saveDocument(wikiDocument2,
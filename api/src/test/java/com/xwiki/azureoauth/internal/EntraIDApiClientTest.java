@@ -19,13 +19,23 @@
  */
 package com.xwiki.azureoauth.internal;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
 
-import org.json.JSONArray;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mock;
@@ -34,12 +44,19 @@ import org.xwiki.test.junit5.mockito.InjectMockComponents;
 import org.xwiki.test.junit5.mockito.MockComponent;
 
 import com.xwiki.azureoauth.configuration.EntraIDConfiguration;
+import com.xwiki.azureoauth.user.ExternalUser;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -59,47 +76,62 @@ public class EntraIDApiClientTest
     @MockComponent
     private HttpClientBuilderFactory httpClientBuilderFactory;
 
+    @MockComponent
+    private EntraIDTokenManager tokenManager;
+
+    @MockComponent
+    private EntraIDRetryPolicy retryPolicy;
+
+    @MockComponent
+    private EntraIDCircuitBreaker circuitBreaker;
+
+    @MockComponent
+    private EntraIDRequestMetrics requestMetrics;
+
     @MockComponent
     private EntraIDConfiguration configuration;
 
+    @MockComponent
+    private EntraIDTransferMetrics transferMetrics;
+
     @Mock
-    private HttpResponse<String> httpResponse;
+    private HttpResponse<Object> httpResponse;
 
     @Mock
-    private HttpResponse<String> httpResponse2;
+    private HttpResponse<Object> httpResponse2;
 
     @BeforeEach
     void setup() throws IOException, InterruptedException
     {
-        when(configuration.getTokenEndpoint()).thenReturn("http://localhost:8080/some/token/url/");
-        when(configuration.getClientID()).thenReturn("client_id");
-        when(configuration.getSecret()).thenReturn("secret");
+        when(tokenManager.getAccessTokenAsync(EntraIDTokenManager.GRAPH_SCOPE))
+            .thenReturn(CompletableFuture.completedFuture("test-token-123"));
+        when(retryPolicy.withRetries(any())).then(invocation -> ((Supplier<?>) invocation.getArgument(0)).get());
+        when(circuitBreaker.execute(any(), any()))
+            .then(invocation -> ((Supplier<?>) invocation.getArgument(1)).get());
+        when(requestMetrics.track(any(), any())).then(invocation -> invocation.getArgument(1));
         when(httpClientBuilderFactory.getHttpClient()).thenReturn(httpClient);
-        when(httpClient.send(any(HttpRequest.class), any(HttpResponse.BodyHandler.class))).thenReturn(httpResponse);
-    }
-
-    @Test
-    void getEntraUsersJsonMapTestFailToGetAccessToken()
-    {
-        when(httpResponse.statusCode()).thenReturn(500);
-        RuntimeException exception = assertThrows(RuntimeException.class, () -> {
-            entraIDApiClient.getUsers();
-        });
-        assertEquals("Failed to get token", exception.getMessage());
+        when(configuration.getGraphEndpoint()).thenReturn("https://graph.microsoft.com/v1.0/");
+        when(configuration.getUsersPageSize()).thenReturn(999);
+        when(transferMetrics.decode(any(), any())).then(invocation -> invocation.getArgument(0));
+        when(httpResponse.headers()).thenReturn(HttpHeaders.of(Map.of(), (name, value) -> true));
+        when(httpResponse2.headers()).thenReturn(HttpHeaders.of(Map.of(), (name, value) -> true));
+        when(configuration.getUsersSelectedAttributes()).thenReturn(List.of());
+        when(configuration.getUsersFilter()).thenReturn("");
+        when(httpClient.sendAsync(any(HttpRequest.class), any(HttpResponse.BodyHandler.class)))
+            .thenReturn(CompletableFuture.completedFuture(httpResponse));
     }
 
     @Test
     void getEntraUsersJsonMapTestGraphError() throws IOException, InterruptedException
     {
-        when(httpResponse.statusCode()).thenReturn(200);
-        String jsonBody = "{ \"access_token\": \"test-token-123\" }";
-
-        when(httpResponse.body()).thenReturn(jsonBody);
         HttpRequest request =
-            HttpRequest.newBuilder().uri(URI.create("https://graph.microsoft.com/v1.0/users?$select=id,accountEnabled"))
+            HttpRequest.newBuilder()
+                .uri(URI.create("https://graph.microsoft.com/v1.0/users?$select=id,accountEnabled&$top=999"))
+                .header("Prefer", "odata.maxpagesize=999").header("Accept-Encoding", "gzip, deflate")
                 .header("Authorization", "Bearer test-token-123").GET().build();
 
-        when(httpClient.send(eq(request), any(HttpResponse.BodyHandler.class))).thenReturn(httpResponse2);
+        when(httpClient.sendAsync(eq(request), any(HttpResponse.BodyHandler.class)))
+            .thenReturn(CompletableFuture.completedFuture(httpResponse2));
         when(httpResponse2.statusCode()).thenReturn(500);
         RuntimeException exception = assertThrows(RuntimeException.class, () -> {
             entraIDApiClient.getUsers();
@@ -112,14 +144,249 @@ public class EntraIDApiClientTest
     void getEntraUsersJsonMapTest() throws Exception
     {
         when(httpResponse.statusCode()).thenReturn(200);
-        String jsonBody = "{ \"access_token\": \"test-token-123\", \"value\": ["
+        String jsonBody = "{ \"value\": ["
             + "{ \"id\": \"user1\", \"accountEnabled\": true },{ \"id\": \"user2\", \"accountEnabled\": false },"
             + "{ \"id\": \"user3\", \"accountEnabled\": true }]}";
 
-        when(httpResponse.body()).thenReturn(jsonBody);
-        JSONArray jsonArray = entraIDApiClient.getUsers();
-        assertEquals("user1", jsonArray.getJSONObject(0).optString("id"));
-        assertFalse(jsonArray.getJSONObject(1).optBoolean("accountEnabled"));
-        assertEquals("user3", jsonArray.getJSONObject(2).optString("id"));
+        when(httpResponse.body()).thenReturn(stream(jsonBody));
+        Iterator<List<ExternalUser>> pages = entraIDApiClient.getUsers();
+        List<ExternalUser> users = pages.next();
+        assertEquals("user1", users.get(0).getId());
+        assertFalse(users.get(1).isEnabled());
+        assertEquals("user3", users.get(2).getId());
+        assertFalse(pages.hasNext());
+    }
+
+    @Test
+    void getEntraUsersFollowsNextLink() throws Exception
+    {
+        String nextLink = "https://graph.microsoft.com/v1.0/users?$skiptoken=page2";
+        when(httpResponse.statusCode()).thenReturn(200);
+        when(httpResponse.body()).thenReturn(stream("{ \"value\": ["
+            + "{ \"id\": \"user1\", \"accountEnabled\": true }], \"@odata.nextLink\": \"" + nextLink + "\"}"));
+        HttpRequest nextRequest = HttpRequest.newBuilder().uri(URI.create(nextLink))
+            .header("Prefer", "odata.maxpagesize=999").header("Accept-Encoding", "gzip, deflate")
+            .header("Authorization", "Bearer test-token-123").GET().build();
+        when(httpClient.sendAsync(eq(nextRequest), any(HttpResponse.BodyHandler.class)))
+            .thenReturn(CompletableFuture.completedFuture(httpResponse2));
+        when(httpResponse2.statusCode()).thenReturn(200);
+        when(httpResponse2.body())
+            .thenReturn(stream("{ \"value\": [{ \"id\": \"user2\", \"accountEnabled\": false }]}"));
+
+        Iterator<List<ExternalUser>> pages = entraIDApiClient.getUsers();
+        assertEquals("user1", pages.next().get(0).getId());
+        // The second page is requested in the background while the first one is processed.
+        verify(httpClient).sendAsync(eq(nextRequest), any(HttpResponse.BodyHandler.class));
+        assertTrue(pages.hasNext());
+        assertEquals("user2", pages.next().get(0).getId());
+        assertFalse(pages.hasNext());
+        verify(requestMetrics, times(2)).recordPage(EntraIDRequestMetrics.USERS);
+        verify(requestMetrics, times(2)).track(eq(EntraIDRequestMetrics.USERS), any());
+    }
+
+    @Test
+    void getEntraUsersResumesFromFailedPage() throws Exception
+    {
+        String nextLink = "https://graph.microsoft.com/v1.0/users?$skiptoken=page2";
+        when(httpResponse.statusCode()).thenReturn(200);
+        when(httpResponse.body()).thenReturn(stream("{ \"value\": ["
+            + "{ \"id\": \"user1\", \"accountEnabled\": true }], \"@odata.nextLink\": \"" + nextLink + "\"}"));
+        HttpRequest nextRequest = HttpRequest.newBuilder().uri(URI.create(nextLink))
+            .header("Prefer", "odata.maxpagesize=999").header("Accept-Encoding", "gzip, deflate")
+            .header("Authorization", "Bearer test-token-123").GET().build();
+        when(httpClient.sendAsync(eq(nextRequest), any(HttpResponse.BodyHandler.class)))
+            .thenReturn(CompletableFuture.completedFuture(httpResponse2));
+        when(httpResponse2.statusCode()).thenReturn(429, 200);
+        when(httpResponse2.body()).thenReturn(null,
+            stream("{ \"value\": [{ \"id\": \"user2\", \"accountEnabled\": false }]}"));
+
+        Iterator<List<ExternalUser>> pages = entraIDApiClient.getUsers();
+        pages.next();
+        assertThrows(RuntimeException.class, pages::next);
+        // The enumeration continues from the page that failed.
+        assertTrue(pages.hasNext());
+        assertEquals("user2", pages.next().get(0).getId());
+        verify(httpClient, times(2)).sendAsync(eq(nextRequest), any(HttpResponse.BodyHandler.class));
+    }
+
+    @Test
+    void getEntraUsersAsync() throws Exception
+    {
+        String nextLink = "https://graph.microsoft.com/v1.0/users?$skiptoken=page2";
+        when(httpResponse.statusCode()).thenReturn(200);
+        when(httpResponse.body()).thenReturn(stream("{ \"value\": ["
+            + "{ \"id\": \"user1\", \"accountEnabled\": true }], \"@odata.nextLink\": \"" + nextLink + "\"}"));
+        HttpRequest nextRequest = HttpRequest.newBuilder().uri(URI.create(nextLink))
+            .header("Prefer", "odata.maxpagesize=999").header("Accept-Encoding", "gzip, deflate")
+            .header("Authorization", "Bearer test-token-123").GET().build();
+        when(httpClient.sendAsync(eq(nextRequest), any(HttpResponse.BodyHandler.class)))
+            .thenReturn(CompletableFuture.completedFuture(httpResponse2));
+        when(httpResponse2.statusCode()).thenReturn(200);
+        when(httpResponse2.body())
+            .thenReturn(stream("{ \"value\": [{ \"id\": \"user2\", \"accountEnabled\": false }]}"));
+
+        EntraIDUsersPage lastPage =
+            entraIDApiClient.getUsersAsync().thenCompose(entraIDApiClient::getNextPageAsync).get();
+        assertEquals("user2", lastPage.getUsers().get(0).getId());
+        assertNull(entraIDApiClient.getNextPageAsync(lastPage).get());
+    }
+
+    @Test
+    void concurrentPageRequestsAreShared() throws Exception
+    {
+        CompletableFuture<HttpResponse<Object>> response = new CompletableFuture<>();
+        when(httpClient.sendAsync(any(HttpRequest.class), any(HttpResponse.BodyHandler.class))).thenReturn(response);
+        when(httpResponse.statusCode()).thenReturn(200);
+        when(httpResponse.body()).thenReturn(stream("{ \"value\": [{ \"id\": \"user1\" }]}"));
+
+        CompletableFuture<EntraIDUsersPage> page1 = entraIDApiClient.getUsersAsync();
+        CompletableFuture<EntraIDUsersPage> page2 = entraIDApiClient.getUsersAsync();
+        response.complete(httpResponse);
+        assertEquals("user1", page1.get().getUsers().get(0).getId());
+        assertEquals("user1", page2.get().getUsers().get(0).getId());
+        verify(httpClient, times(1)).sendAsync(any(HttpRequest.class), any(HttpResponse.BodyHandler.class));
+
+        // Only the requests in flight are shared.
+        when(httpClient.sendAsync(any(HttpRequest.class), any(HttpResponse.BodyHandler.class)))
+            .thenReturn(CompletableFuture.completedFuture(httpResponse2));
+        when(httpResponse2.statusCode()).thenReturn(200);
+        when(httpResponse2.body()).thenReturn(stream("{ \"value\": [{ \"id\": \"user2\" }]}"));
+        assertEquals("user2", entraIDApiClient.getUsersAsync().get().getUsers().get(0).getId());
+    }
+
+    @Test
+    void pageRequestsOfOtherTenantsAreNotShared() throws Exception
+    {
+        CompletableFuture<HttpResponse<Object>> response = new CompletableFuture<>();
+        when(httpClient.sendAsync(any(HttpRequest.class), any(HttpResponse.BodyHandler.class))).thenReturn(response);
+        when(httpResponse.statusCode()).thenReturn(200);
+        when(httpResponse.body()).thenReturn(stream("{ \"value\": [{ \"id\": \"user1\" }]}"),
+            stream("{ \"value\": [{ \"id\": \"user2\" }]}"));
+        when(configuration.getClientID()).thenReturn("client");
+
+        // The first page URL is the same for all the tenants.
+        when(configuration.getTokenEndpoint()).thenReturn("https://login.microsoftonline.com/tenant1/token");
+        CompletableFuture<EntraIDUsersPage> page1 = entraIDApiClient.getUsersAsync();
+        when(configuration.getTokenEndpoint()).thenReturn("https://login.microsoftonline.com/tenant2/token");
+        CompletableFuture<EntraIDUsersPage> page2 = entraIDApiClient.getUsersAsync();
+        response.complete(httpResponse);
+
+        verify(httpClient, times(2)).sendAsync(any(HttpRequest.class), any(HttpResponse.BodyHandler.class));
+        // Each request parses its own response, in any order.
+        assertEquals(Set.of("user1", "user2"),
+            Set.of(page1.get().getUsers().get(0).getId(), page2.get().getUsers().get(0).getId()));
+    }
+
+    @Test
+    void sharedPagesAreCopiedForEachCaller() throws Exception
+    {
+        CompletableFuture<HttpResponse<Object>> response = new CompletableFuture<>();
+        when(httpClient.sendAsync(any(HttpRequest.class), any(HttpResponse.BodyHandler.class))).thenReturn(response);
+        when(httpResponse.statusCode()).thenReturn(200);
+        when(httpResponse.body()).thenReturn(stream("{ \"value\": [{ \"id\": \"user1\", \"accountEnabled\": true }],"
+            + " \"@odata.nextLink\": \"https://graph.microsoft.com/v1.0/users?$skiptoken=1\"}"));
+
+        CompletableFuture<EntraIDUsersPage> page1 = entraIDApiClient.getUsersAsync();
+        CompletableFuture<EntraIDUsersPage> page2 = entraIDApiClient.getUsersAsync();
+        response.complete(httpResponse);
+
+        ExternalUser user1 = page1.get().getUsers().get(0);
+        ExternalUser user2 = page2.get().getUsers().get(0);
+        assertNotSame(user1, user2);
+        assertEquals(page1.get().getNextLink(), page2.get().getNextLink());
+        // A caller changing its users doesn't affect the other callers.
+        user2.setEnabled(false);
+        assertTrue(user1.isEnabled());
+    }
+
+    @Test
+    void getEntraUsersDeltaExpired()
+    {
+        when(httpResponse.statusCode()).thenReturn(400);
+        when(httpResponse.body()).thenReturn(stream("{ \"error\": { \"code\": \"syncStateNotFound\" } }"));
+
+        assertThrows(EntraIDDeltaLinkExpiredException.class, () -> entraIDApiClient.getUsersDelta("deltaLink"));
+    }
+
+    @Test
+    void getEntraUsersWithConfiguredQuery() throws Exception
+    {
+        when(configuration.getUsersPageSize()).thenReturn(500);
+        when(configuration.getUsersSelectedAttributes()).thenReturn(List.of("mail", "accountEnabled"));
+        when(configuration.getUsersFilter()).thenReturn("userType eq 'Member'");
+        HttpRequest request = HttpRequest.newBuilder().uri(URI.create("https://graph.microsoft.com/v1.0/users"
+                + "?$select=id,accountEnabled,mail&$top=500&$filter=userType%20eq%20%27Member%27"))
+            .header("Prefer", "odata.maxpagesize=500").header("Accept-Encoding", "gzip, deflate")
+            .header("Authorization", "Bearer test-token-123").GET().build();
+        when(httpClient.sendAsync(eq(request), any(HttpResponse.BodyHandler.class)))
+            .thenReturn(CompletableFuture.completedFuture(httpResponse2));
+        when(httpResponse2.statusCode()).thenReturn(200);
+        when(httpResponse2.body()).thenReturn(
+            stream("{ \"value\": [{ \"id\": \"user1\", \"accountEnabled\": true, \"mail\": \"user1@mail\" }]}"));
+
+        ExternalUser user = entraIDApiClient.getUsers().next().get(0);
+        assertEquals("user1", user.getId());
+        assertEquals(Map.of("mail", "user1@mail"), user.getAttributes());
+    }
+
+    @Test
+    void getUsersByIds() throws Exception
+    {
+        when(httpResponse.statusCode()).thenReturn(200);
+        when(httpResponse.body())
+            .thenReturn(stream("{ \"value\": [{ \"id\": \"user1\", \"accountEnabled\": true }]}"));
+
+        List<ExternalUser> users = entraIDApiClient.getUsersByIds(List.of("user1", "user2"));
+        assertEquals(1, users.size());
+        assertEquals("user1", users.get(0).getId());
+    }
+
+    @Test
+    void getUsersCount() throws Exception
+    {
+        when(httpResponse.statusCode()).thenReturn(200);
+        when(httpResponse.body()).thenReturn(stream("12345"));
+
+        assertEquals(12345L, entraIDApiClient.getUsersCount());
+    }
+
+    @Test
+    void responsesAreParsedOnTheClientThreads() throws Exception
+    {
+        String[] parserThread = new String[1];
+        when(httpResponse.statusCode()).thenReturn(200);
+        when(httpResponse.body()).thenAnswer(invocation -> {
+            parserThread[0] = Thread.currentThread().getName();
+            return stream("12345");
+        });
+
+        assertEquals(12345L, entraIDApiClient.getUsersCountAsync().get());
+        assertTrue(parserThread[0].startsWith("Entra ID response parser"));
+    }
+
+    @Test
+    void batchRetriesOnlyFailedRequests() throws Exception
+    {
+        when(retryPolicy.isRetryable(429)).thenReturn(true);
+        when(retryPolicy.getRetryDelay(anyInt(), eq("0"), any())).thenReturn(Duration.ZERO);
+        when(httpResponse.statusCode()).thenReturn(200);
+        when(httpResponse.body()).thenReturn(stream("{ \"responses\": [{ \"id\": \"1\", \"status\": 200, \"body\": {"
+                + " \"id\": \"user1\" } }, { \"id\": \"2\", \"status\": 429,"
+                + " \"headers\": { \"Retry-After\": \"0\" } }]}"),
+            stream("{ \"responses\": [{ \"id\": \"2\", \"status\": 200, \"body\": { \"id\": \"user2\" } }]}"));
+
+        Map<String, EntraIDBatchResponse> responses = entraIDApiClient.batch(
+            List.of(new EntraIDBatchRequest("1", "GET", "/users/user1"),
+                new EntraIDBatchRequest("2", "GET", "/users/user2")));
+        assertEquals("user1", responses.get("1").getBody().getString("id"));
+        assertEquals(200, responses.get("2").getStatus());
+        assertEquals("user2", responses.get("2").getBody().getString("id"));
+        verify(httpClient, times(2)).sendAsync(any(HttpRequest.class), any(HttpResponse.BodyHandler.class));
+        verify(requestMetrics).recordRetry(EntraIDRequestMetrics.BATCH);
+    }
+
+    private InputStream stream(String body)
+    {
+        return new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
     }
 }
@@ -0,0 +1,185 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.azureoauth.internal;
+
+import java.net.URI;
+import java.net.http.HttpResponse;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.mockito.Mock;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.test.LogLevel;
+import org.xwiki.test.junit5.LogCaptureExtension;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+
+import com.xwiki.azureoauth.internal.EntraIDCircuitBreaker.State;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit test for {@link EntraIDCircuitBreaker}
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class EntraIDCircuitBreakerTest
+{
+    private static final Instant NOW = Instant.parse("2025-01-01T10:00:00Z");
+
+    @InjectMockComponents
+    private EntraIDCircuitBreaker circuitBreaker;
+
+    @RegisterExtension
+    private LogCaptureExtension logCapture = new LogCaptureExtension(LogLevel.WARN);
+
+    @Mock
+    private HttpResponse<String> okResponse;
+
+    @Mock
+    private HttpResponse<String> errorResponse;
+
+    @BeforeEach
+    void setup()
+    {
+        when(okResponse.statusCode()).thenReturn(200);
+        when(errorResponse.statusCode()).thenReturn(503);
+        setTime(NOW);
+    }
+
+    @Test
+    void staysClosedOnSuccessAndThrottling() throws Exception
+    {
+        HttpResponse<String> throttled = mock(HttpResponse.class);
+        when(throttled.statusCode()).thenReturn(429);
+        for (int i = 0; i < 10; i++) {
+            assertSame(throttled, send(throttled).get());
+        }
+        assertSame(okResponse, send(okResponse).get());
+        assertEquals(State.CLOSED, circuitBreaker.getState(EntraIDCircuitBreaker.GRAPH));
+    }
+
+    @Test
+    void opensAfterConsecutiveFailures() throws Exception
+    {
+        for (int i = 0; i < 4; i++) {
+            send(errorResponse).get();
+        }
+        // A success resets the count of consecutive failures.
+        send(okResponse).get();
+        for (int i = 0; i < 4; i++) {
+            send(errorResponse).get();
+        }
+        assertEquals(State.CLOSED, circuitBreaker.getState(EntraIDCircuitBreaker.GRAPH));
+
+        CompletableFuture<HttpResponse<String>> failure = CompletableFuture.failedFuture(new RuntimeException("down"));
+        circuitBreaker.execute(EntraIDCircuitBreaker.GRAPH, () -> failure);
+        assertEquals(State.OPEN, circuitBreaker.getState(EntraIDCircuitBreaker.GRAPH));
+        assertEquals(State.CLOSED, circuitBreaker.getState(EntraIDCircuitBreaker.TOKEN));
+        assertEquals(Map.of(EntraIDCircuitBreaker.GRAPH, State.OPEN), circuitBreaker.getStates());
+
+        Supplier<CompletableFuture<HttpResponse<String>>> call = mock(Supplier.class);
+        ExecutionException exception = assertThrows(ExecutionException.class,
+            () -> circuitBreaker.execute(EntraIDCircuitBreaker.GRAPH, call).get());
+        assertTrue(exception.getCause() instanceof EntraIDCircuitOpenException);
+        verify(call, never()).get();
+        assertEquals("The Entra ID [graph] endpoint is unavailable, the requests will fail for [PT30S].",
+            logCapture.getMessage(0));
+    }
+
+    @Test
+    void halfOpenProbe() throws Exception
+    {
+        for (int i = 0; i < 5; i++) {
+            send(errorResponse).get();
+        }
+        setTime(NOW.plusSeconds(30));
+
+        CompletableFuture<HttpResponse<String>> probe = new CompletableFuture<>();
+        CompletableFuture<HttpResponse<String>> response =
+            circuitBreaker.execute(EntraIDCircuitBreaker.GRAPH, () -> probe);
+        assertEquals(State.HALF_OPEN, circuitBreaker.getState(EntraIDCircuitBreaker.GRAPH));
+        // Only the probe is sent.
+        assertTrue(send(okResponse).isCompletedExceptionally());
+
+        probe.complete(errorResponse);
+        assertSame(errorResponse, response.get());
+        assertEquals(State.OPEN, circuitBreaker.getState(EntraIDCircuitBreaker.GRAPH));
+        assertTrue(send(okResponse).isCompletedExceptionally());
+
+        setTime(NOW.plusSeconds(60));
+        assertSame(okResponse, send(okResponse).get());
+        assertEquals(State.CLOSED, circuitBreaker.getState(EntraIDCircuitBreaker.GRAPH));
+        assertFalse(send(okResponse).isCompletedExceptionally());
+        assertEquals("The Entra ID [graph] endpoint is unavailable, the requests will fail for [PT30S].",
+            logCapture.getMessage(0));
+        assertEquals("The Entra ID [graph] endpoint is unavailable, the requests will fail for [PT30S].",
+            logCapture.getMessage(1));
+    }
+
+    @Test
+    void eachHostHasItsOwnCircuit() throws Exception
+    {
+        String failingCircuit = EntraIDCircuitBreaker.getCircuit(EntraIDCircuitBreaker.GRAPH,
+            URI.create("https://graph.microsoft.us/v1.0/users"));
+        String otherCircuit = EntraIDCircuitBreaker.getCircuit(EntraIDCircuitBreaker.GRAPH,
+            URI.create("https://graph.microsoft.com/v1.0/users"));
+        assertEquals("graph:graph.microsoft.us", failingCircuit);
+        assertEquals("graph:graph.microsoft.com", otherCircuit);
+
+        for (int i = 0; i < 5; i++) {
+            circuitBreaker.execute(failingCircuit, () -> CompletableFuture.completedFuture(errorResponse)).get();
+        }
+        assertEquals(State.OPEN, circuitBreaker.getState(failingCircuit));
+        assertEquals(State.CLOSED, circuitBreaker.getState(otherCircuit));
+        assertSame(okResponse,
+            circuitBreaker.execute(otherCircuit, () -> CompletableFuture.completedFuture(okResponse)).get());
+        assertEquals(Map.of(failingCircuit, State.OPEN, otherCircuit, State.CLOSED), circuitBreaker.getStates());
+        assertEquals("The Entra ID [graph:graph.microsoft.us] endpoint is unavailable, the requests will fail for "
+            + "[PT30S].", logCapture.getMessage(0));
+    }
+
+    private CompletableFuture<HttpResponse<String>> send(HttpResponse<String> response)
+    {
+        return circuitBreaker.execute(EntraIDCircuitBreaker.GRAPH, () -> CompletableFuture.completedFuture(response));
+    }
+
+    private void setTime(Instant instant)
+    {
+        ReflectionUtils.setFieldValue(circuitBreaker, "clock", Clock.fixed(instant, ZoneOffset.UTC));
+    }
+}
@@ -59,6 +59,7 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.ArgumentMatchers.anyMap;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -130,6 +131,12 @@ class EntraIDObjectUpdateListenerTest
     @MockComponent
     private XWikiContext wikiContext;
 
+    @MockComponent
+    private Provider<HttpClientBuilderFactory> httpClientBuilderFactoryProvider;
+
+    @MockComponent
+    private HttpClientBuilderFactory httpClientBuilderFactory;
+
     private XObjectUpdatedEvent event = new XObjectUpdatedEvent();
 
     private DocumentReference configReference = new DocumentReference(CONFIG_DOC, new WikiReference("mywiki"));
@@ -142,6 +149,7 @@ class EntraIDObjectUpdateListenerTest
     {
         when(entraIDConfigurationProvider.get()).thenReturn(entraIDConfiguration);
         when(azureOIDCMigratorProvider.get()).thenReturn(azureADOIDCMigrator);
+        when(httpClientBuilderFactoryProvider.get()).thenReturn(httpClientBuilderFactory);
     }
 
     @BeforeEach
@@ -159,9 +167,21 @@ class EntraIDObjectUpdateListenerTest
     @Test
     void onEventSuccess() throws ConfigurationSaveException
     {
+        when(wikiManager.isMainWiki("mywiki")).thenReturn(true);
+
         objectUpdateListener.onEvent(event, xWikiDocument, null);
 
         verify(entraIDConfiguration, Mockito.times(1)).setOIDCConfiguration(anyMap());
+        verify(httpClientBuilderFactory).refresh();
+    }
+
+    @Test
+    void onEventOnSubwiki() throws ConfigurationSaveException
+    {
+        objectUpdateListener.onEvent(event, xWikiDocument, null);
+
+        verify(entraIDConfiguration).setOIDCConfiguration(anyMap());
+        verify(httpClientBuilderFactory, never()).refresh();
     }
 
     @Test
@@ -0,0 +1,127 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.azureoauth.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.http.HttpResponse;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit test for {@link EntraIDRequestMetrics}
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class EntraIDRequestMetricsTest
+{
+    @InjectMockComponents
+    private EntraIDRequestMetrics requestMetrics;
+
+    @Mock
+    private HttpResponse<String> okResponse;
+
+    @Mock
+    private HttpResponse<String> throttledResponse;
+
+    @Mock
+    private Supplier<CompletableFuture<HttpResponse<String>>> attempts;
+
+    @AfterEach
+    void tearDown() throws Exception
+    {
+        requestMetrics.dispose();
+    }
+
+    @Test
+    void trackAttempts() throws Exception
+    {
+        when(okResponse.statusCode()).thenReturn(200);
+        when(throttledResponse.statusCode()).thenReturn(429);
+        CompletableFuture<HttpResponse<String>> failure = CompletableFuture.failedFuture(new RuntimeException());
+        when(attempts.get()).thenReturn(CompletableFuture.completedFuture(throttledResponse), failure,
+            CompletableFuture.completedFuture(okResponse));
+        Supplier<CompletableFuture<HttpResponse<String>>> call =
+            requestMetrics.track(EntraIDRequestMetrics.USERS, attempts);
+        call.get();
+        call.get();
+        call.get();
+        requestMetrics.recordPage(EntraIDRequestMetrics.USERS);
+
+        EntraIDEndpointMetricsMXBean metrics = requestMetrics.get(EntraIDRequestMetrics.USERS);
+        assertEquals(3, metrics.getRequestCount());
+        assertEquals(2, metrics.getRetryCount());
+        assertEquals(1, metrics.getFailureCount());
+        assertEquals(1, metrics.getPageCount());
+        assertEquals(1, metrics.getStatusCounts().get("200"));
+        assertEquals(1, metrics.getStatusCounts().get("429"));
+        assertEquals(3, metrics.getLatencyHistogram().values().stream().mapToLong(Long::longValue).sum());
+        assertEquals(0, requestMetrics.get(EntraIDRequestMetrics.DELTA).getRequestCount());
+
+        metrics.reset();
+        assertEquals(0, metrics.getRequestCount());
+        assertTrue(metrics.getStatusCounts().isEmpty());
+    }
+
+    @Test
+    void countReceivedBytes() throws Exception
+    {
+        try (InputStream body = requestMetrics.countReceivedBytes(EntraIDRequestMetrics.DELTA,
+            new ByteArrayInputStream(new byte[100])))
+        {
+            body.readAllBytes();
+        }
+        requestMetrics.addReceivedBytes(EntraIDRequestMetrics.TOKEN, 20);
+
+        assertEquals(100, requestMetrics.get(EntraIDRequestMetrics.DELTA).getReceivedBytes());
+        assertEquals(20, requestMetrics.get(EntraIDRequestMetrics.TOKEN).getReceivedBytes());
+    }
+
+    @Test
+    void exposedAsMBeans() throws Exception
+    {
+        requestMetrics.recordPage(EntraIDRequestMetrics.DELTA);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("com.xwiki.azureoauth:type=EntraIDEndpointMetrics,name=delta");
+        assertEquals(1L, server.getAttribute(name, "PageCount"));
+        assertEquals("delta", server.getAttribute(name, "Endpoint"));
+        assertTrue(server.isRegistered(new ObjectName("com.xwiki.azureoauth:type=EntraIDEndpointMetrics,name=token")));
+
+        requestMetrics.dispose();
+        assertFalse(server.isRegistered(name));
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.azureoauth.internal;
+
+import java.net.http.HttpHeaders;
+import java.net.http.HttpResponse;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit test for {@link EntraIDRetryPolicy}
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class EntraIDRetryPolicyTest
+{
+    private static final Instant NOW = Instant.parse("2025-01-01T10:00:00Z");
+
+    @InjectMockComponents
+    private EntraIDRetryPolicy retryPolicy;
+
+    @Mock
+    private HttpResponse<String> throttledResponse;
+
+    @Mock
+    private HttpResponse<String> response;
+
+    @BeforeEach
+    void setup()
+    {
+        ReflectionUtils.setFieldValue(retryPolicy, "clock", Clock.fixed(NOW, ZoneOffset.UTC));
+    }
+
+    @Test
+    void isRetryable()
+    {
+        assertTrue(retryPolicy.isRetryable(429));
+        assertTrue(retryPolicy.isRetryable(503));
+        assertFalse(retryPolicy.isRetryable(404));
+        assertFalse(retryPolicy.isRetryable(200));
+    }
+
+    @Test
+    void getRetryDelayHonorsRetryAfter()
+    {
+        assertEquals(Duration.ofSeconds(7), retryPolicy.getRetryDelay(1, "7", NOW));
+        assertEquals(Duration.ofSeconds(30), retryPolicy.getRetryDelay(1, "Wed, 01 Jan 2025 10:00:30 GMT", NOW));
+        // The delay requested by the server is not capped.
+        assertEquals(Duration.ofSeconds(120), retryPolicy.getRetryDelay(1, "120", NOW));
+    }
+
+    @Test
+    void getRetryDelayWithBackoff()
+    {
+        Duration first = retryPolicy.getRetryDelay(1, null, NOW);
+        assertTrue(first.compareTo(Duration.ofMillis(500)) >= 0 && first.compareTo(Duration.ofSeconds(1)) <= 0);
+        Duration third = retryPolicy.getRetryDelay(3, "invalid", NOW);
+        assertTrue(third.compareTo(Duration.ofSeconds(2)) >= 0 && third.compareTo(Duration.ofSeconds(4)) <= 0);
+    }
+
+    @Test
+    void getRetryDelayStops()
+    {
+        assertNull(retryPolicy.getRetryDelay(6, "1", NOW));
+        // The time budget of the request is exhausted.
+        assertNull(retryPolicy.getRetryDelay(2, "30", NOW.minus(Duration.ofMinutes(5))));
+        // The server asks to wait longer than the time budget.
+        assertNull(retryPolicy.getRetryDelay(1, "3600", NOW));
+    }
+
+    @Test
+    void withRetries() throws Exception
+    {
+        when(throttledResponse.statusCode()).thenReturn(429);
+        when(throttledResponse.headers())
+            .thenReturn(HttpHeaders.of(Map.of("Retry-After", List.of("0")), (name, value) -> true));
+        when(response.statusCode()).thenReturn(200);
+        List<HttpResponse<String>> responses = List.of(throttledResponse, throttledResponse, response);
+        int[] attempts = { 0 };
+
+        HttpResponse<String> result =
+            retryPolicy.withRetries(() -> CompletableFuture.completedFuture(responses.get(attempts[0]++))).get();
+        assertEquals(response, result);
+        assertEquals(3, attempts[0]);
+    }
+
+    @Test
+    void withRetriesGivesUp() throws Exception
+    {
+        when(throttledResponse.statusCode()).thenReturn(429);
+        when(throttledResponse.headers())
+            .thenReturn(HttpHeaders.of(Map.of("Retry-After", List.of("0")), (name, value) -> true));
+        int[] attempts = { 0 };
+
+        HttpResponse<String> result = retryPolicy.withRetries(() -> {
+            attempts[0]++;
+            return CompletableFuture.completedFuture(throttledResponse);
+        }).get();
+        assertEquals(throttledResponse, result);
+        assertEquals(6, attempts[0]);
+    }
+}
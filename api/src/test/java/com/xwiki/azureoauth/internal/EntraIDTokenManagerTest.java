@@ -0,0 +1,219 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.azureoauth.internal;
+
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.xwiki.azureoauth.configuration.EntraIDConfiguration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit test for {@link EntraIDTokenManager}
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class EntraIDTokenManagerTest
+{
+    private static final Instant NOW = Instant.parse("2025-01-01T10:00:00Z");
+
+    @InjectMockComponents
+    private EntraIDTokenManager tokenManager;
+
+    @MockComponent
+    private HttpClientBuilderFactory httpClientBuilderFactory;
+
+    @MockComponent
+    private EntraIDConfiguration configuration;
+
+    @MockComponent
+    private EntraIDRetryPolicy retryPolicy;
+
+    @MockComponent
+    private EntraIDCircuitBreaker circuitBreaker;
+
+    @MockComponent
+    private EntraIDRequestMetrics requestMetrics;
+
+    @MockComponent
+    private Execution execution;
+
+    @MockComponent
+    private ExecutionContextManager executionContextManager;
+
+    @Mock
+    private HttpClient httpClient;
+
+    @Mock
+    private HttpResponse<String> httpResponse;
+
+    @Mock
+    private HttpResponse<String> httpResponse2;
+
+    @Mock
+    private ScheduledExecutorService refreshScheduler;
+
+    @BeforeEach
+    void setup()
+    {
+        when(configuration.getTokenEndpoint()).thenReturn("http://localhost:8080/some/token/url/");
+        when(configuration.getClientID()).thenReturn("client_id");
+        when(configuration.getSecret()).thenReturn("secret");
+        when(httpClientBuilderFactory.getHttpClient()).thenReturn(httpClient);
+        when(retryPolicy.withRetries(any())).then(invocation -> ((Supplier<?>) invocation.getArgument(0)).get());
+        when(circuitBreaker.execute(any(), any()))
+            .then(invocation -> ((Supplier<?>) invocation.getArgument(1)).get());
+        when(requestMetrics.track(any(), any())).then(invocation -> invocation.getArgument(1));
+        when(httpClient.sendAsync(any(HttpRequest.class), any(HttpResponse.BodyHandler.class)))
+            .thenReturn(CompletableFuture.completedFuture(httpResponse));
+        setTime(NOW);
+        ReflectionUtils.setFieldValue(tokenManager, "refreshScheduler", refreshScheduler);
+    }
+
+    @Test
+    void getAccessTokenFailure()
+    {
+        when(httpResponse.statusCode()).thenReturn(500);
+        RuntimeException exception = assertThrows(RuntimeException.class, () -> {
+            tokenManager.getAccessToken(EntraIDTokenManager.GRAPH_SCOPE);
+        });
+        assertEquals("Failed to get token", exception.getMessage());
+    }
+
+    @Test
+    void getAccessTokenAsync() throws Exception
+    {
+        CompletableFuture<HttpResponse<String>> response = new CompletableFuture<>();
+        when(httpClient.sendAsync(any(HttpRequest.class), any(HttpResponse.BodyHandler.class))).thenReturn(response);
+
+        CompletableFuture<String> token = tokenManager.getAccessTokenAsync(EntraIDTokenManager.GRAPH_SCOPE);
+        assertFalse(token.isDone());
+        when(httpResponse.statusCode()).thenReturn(200);
+        when(httpResponse.body()).thenReturn("{ \"access_token\": \"token1\", \"expires_in\": 3600 }");
+        response.complete(httpResponse);
+        assertEquals("token1", token.get());
+    }
+
+    @Test
+    void getAccessTokenIsCached() throws Exception
+    {
+        when(httpResponse.statusCode()).thenReturn(200);
+        when(httpResponse.body()).thenReturn("{ \"access_token\": \"token1\", \"expires_in\": 3600 }");
+
+        assertEquals("token1", tokenManager.getAccessToken(EntraIDTokenManager.GRAPH_SCOPE));
+        setTime(NOW.plusSeconds(600));
+        assertEquals("token1", tokenManager.getAccessToken(EntraIDTokenManager.GRAPH_SCOPE));
+        verify(httpClient, times(1)).sendAsync(any(HttpRequest.class), any(HttpResponse.BodyHandler.class));
+    }
+
+    @Test
+    void getAccessTokenRefreshedBeforeExpiry() throws Exception
+    {
+        when(httpResponse.statusCode()).thenReturn(200);
+        when(httpResponse.body()).thenReturn("{ \"access_token\": \"token1\", \"expires_in\": 3600 }");
+        assertEquals("token1", tokenManager.getAccessToken(EntraIDTokenManager.GRAPH_SCOPE));
+
+        CompletableFuture<HttpResponse<String>> refresh = new CompletableFuture<>();
+        when(httpClient.sendAsync(any(HttpRequest.class), any(HttpResponse.BodyHandler.class)))
+            .thenReturn(refresh);
+        setTime(NOW.plusSeconds(3400));
+        // The token is about to expire: the callers keep getting it while a single refresh is in progress.
+        assertEquals("token1", tokenManager.getAccessToken(EntraIDTokenManager.GRAPH_SCOPE));
+        assertEquals("token1", tokenManager.getAccessToken(EntraIDTokenManager.GRAPH_SCOPE));
+        verify(httpClient, times(2)).sendAsync(any(HttpRequest.class), any(HttpResponse.BodyHandler.class));
+
+        when(httpResponse2.statusCode()).thenReturn(200);
+        when(httpResponse2.body()).thenReturn("{ \"access_token\": \"token2\", \"expires_in\": 3600 }");
+        refresh.complete(httpResponse2);
+        assertEquals("token2", tokenManager.getAccessToken(EntraIDTokenManager.GRAPH_SCOPE));
+        verify(httpClient, times(2)).sendAsync(any(HttpRequest.class), any(HttpResponse.BodyHandler.class));
+    }
+
+    @Test
+    void getAccessTokenRefreshedInBackground() throws Exception
+    {
+        when(httpResponse.statusCode()).thenReturn(200);
+        when(httpResponse.body()).thenReturn("{ \"access_token\": \"token1\", \"expires_in\": 3600 }");
+        assertEquals("token1", tokenManager.getAccessToken(EntraIDTokenManager.GRAPH_SCOPE));
+        ArgumentCaptor<Runnable> refresh = ArgumentCaptor.forClass(Runnable.class);
+        verify(refreshScheduler).schedule(refresh.capture(), eq(3300000L), eq(TimeUnit.MILLISECONDS));
+
+        // The refresh is scheduled without any caller asking for the token.
+        when(httpResponse.body()).thenReturn("{ \"access_token\": \"token2\", \"expires_in\": 3600 }");
+        setTime(NOW.plusSeconds(3300));
+        refresh.getValue().run();
+        verify(httpClient, times(2)).sendAsync(any(HttpRequest.class), any(HttpResponse.BodyHandler.class));
+        // The refresh runs in its own execution context, since the scheduler thread has none.
+        verify(executionContextManager).initialize(any());
+        verify(execution).removeContext();
+        verify(refreshScheduler, times(2)).schedule(refresh.capture(), eq(3300000L), eq(TimeUnit.MILLISECONDS));
+
+        // Nobody used the refreshed token, so it is left to expire.
+        setTime(NOW.plusSeconds(6600));
+        refresh.getValue().run();
+        verify(httpClient, times(2)).sendAsync(any(HttpRequest.class), any(HttpResponse.BodyHandler.class));
+        verify(executionContextManager).initialize(any());
+    }
+
+    @Test
+    void getAccessTokenAfterExpiry() throws Exception
+    {
+        when(httpResponse.statusCode()).thenReturn(200);
+        when(httpResponse.body()).thenReturn("{ \"access_token\": \"token1\", \"expires_in\": 3600 }");
+        assertEquals("token1", tokenManager.getAccessToken(EntraIDTokenManager.GRAPH_SCOPE));
+
+        when(httpResponse.body()).thenReturn("{ \"access_token\": \"token2\", \"expires_in\": 3600 }");
+        setTime(NOW.plusSeconds(3600));
+        assertEquals("token2", tokenManager.getAccessToken(EntraIDTokenManager.GRAPH_SCOPE));
+    }
+
+    private void setTime(Instant instant)
+    {
+        ReflectionUtils.setFieldValue(tokenManager, "clock", Clock.fixed(instant, ZoneOffset.UTC));
+    }
+}
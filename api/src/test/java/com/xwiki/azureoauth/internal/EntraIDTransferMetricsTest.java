@@ -0,0 +1,132 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.azureoauth.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit test for {@link EntraIDTransferMetrics}
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class EntraIDTransferMetricsTest
+{
+    private static final String BODY = "{ \"value\": [" + "{ \"id\": \"user\", \"accountEnabled\": true },".repeat(100)
+        + "{ \"id\": \"user\", \"accountEnabled\": true }]}";
+
+    @InjectMockComponents
+    private EntraIDTransferMetrics transferMetrics;
+
+    @MockComponent
+    private EntraIDRequestMetrics requestMetrics;
+
+    @Mock
+    private EntraIDEndpointMetricsMXBean endpointMetrics;
+
+    @Mock
+    private EntraIDEndpointMetricsMXBean usersMetrics;
+
+    @Mock
+    private EntraIDEndpointMetricsMXBean tokenMetrics;
+
+    @BeforeEach
+    void setUp()
+    {
+        when(requestMetrics.get(anyString())).thenReturn(endpointMetrics);
+        when(requestMetrics.get(EntraIDRequestMetrics.USERS)).thenReturn(usersMetrics);
+        when(requestMetrics.get(EntraIDRequestMetrics.TOKEN)).thenReturn(tokenMetrics);
+    }
+
+    @Test
+    void decodeGzip() throws IOException
+    {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (OutputStream output = new GZIPOutputStream(compressed)) {
+            output.write(BODY.getBytes(StandardCharsets.UTF_8));
+        }
+
+        // The received bytes are counted by the request metrics, before the body is decoded.
+        when(usersMetrics.getReceivedBytes()).thenReturn((long) compressed.size());
+        when(tokenMetrics.getReceivedBytes()).thenReturn(1000L);
+
+        assertEquals(BODY, read(transferMetrics.decode(new ByteArrayInputStream(compressed.toByteArray()), "gzip")));
+        assertEquals(compressed.size(), transferMetrics.getReceivedBytes());
+        assertEquals(BODY.length(), transferMetrics.getDecodedBytes());
+        assertTrue(transferMetrics.getSavedBytes() > 0);
+    }
+
+    @Test
+    void decodeDeflate() throws IOException
+    {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (OutputStream output = new DeflaterOutputStream(compressed)) {
+            output.write(BODY.getBytes(StandardCharsets.UTF_8));
+        }
+
+        assertEquals(BODY,
+            read(transferMetrics.decode(new ByteArrayInputStream(compressed.toByteArray()), "Deflate")));
+    }
+
+    @Test
+    void decodeIdentity() throws IOException
+    {
+        when(usersMetrics.getReceivedBytes()).thenReturn((long) BODY.length());
+
+        assertEquals(BODY, read(transferMetrics.decode(
+            new ByteArrayInputStream(BODY.getBytes(StandardCharsets.UTF_8)), null)));
+        assertEquals(BODY.length(), transferMetrics.getReceivedBytes());
+        assertEquals(0, transferMetrics.getSavedBytes());
+    }
+
+    @Test
+    void decodeUnsupported()
+    {
+        assertThrows(IOException.class,
+            () -> transferMetrics.decode(new ByteArrayInputStream(new byte[0]), "br"));
+    }
+
+    private String read(InputStream input) throws IOException
+    {
+        try (InputStream body = input) {
+            return new String(body.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.azureoauth.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import com.xwiki.azureoauth.user.ExternalUser;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit test for {@link EntraIDUsersPageParser}
+ *
+ * @version $Id$
+ */
+class EntraIDUsersPageParserTest
+{
+    @Test
+    void parse() throws IOException
+    {
+        EntraIDUsersPage page = EntraIDUsersPageParser.parse(stream("{ \"@odata.context\": \"context\", \"value\": ["
+            + "{ \"id\": \"user1\", \"accountEnabled\": true, \"manager\": { \"id\": \"user3\" } },"
+            + "{ \"id\": \"user2\", \"accountEnabled\": false }], \"@odata.nextLink\": \"nextLink\" }"));
+        List<ExternalUser> users = page.getUsers();
+        assertEquals(2, users.size());
+        assertEquals("user1", users.get(0).getId());
+        assertTrue(users.get(0).isEnabled());
+        assertEquals("user2", users.get(1).getId());
+        assertFalse(users.get(1).isEnabled());
+        assertEquals("nextLink", page.getNextLink());
+        assertNull(page.getDeltaLink());
+    }
+
+    @Test
+    void parseDelta() throws IOException
+    {
+        EntraIDUsersPage page = EntraIDUsersPageParser.parse(stream("{ \"value\": ["
+            + "{ \"id\": \"user1\", \"accountEnabled\": false },"
+            + "{ \"id\": \"user2\", \"@removed\": { \"reason\": \"deleted\" } }, { \"id\": \"user3\" }],"
+            + " \"@odata.deltaLink\": \"deltaLink\" }"));
+        List<ExternalUser> users = page.getUsers();
+        assertFalse(users.get(0).isEnabled());
+        assertFalse(users.get(0).isRemoved());
+        assertTrue(users.get(1).isRemoved());
+        // Properties that did not change are missing from the delta.
+        assertTrue(users.get(2).isEnabled());
+        assertNull(page.getNextLink());
+        assertEquals("deltaLink", page.getDeltaLink());
+    }
+
+    @Test
+    void parseAttributes() throws IOException
+    {
+        EntraIDUsersPage page = EntraIDUsersPageParser.parse(stream("{ \"value\": [{ \"id\": \"user1\","
+            + " \"mail\": \"user1@mail\", \"employeeId\": null, \"otherMails\": [\"other@mail\"],"
+            + " \"ageGroup\": 3, \"displayName\": \"User 1\" }]}"),
+            Set.of("mail", "employeeId", "otherMails", "ageGroup"));
+        // Only the requested scalar attributes are kept.
+        assertEquals(Map.of("mail", "user1@mail", "ageGroup", "3"), page.getUsers().get(0).getAttributes());
+    }
+
+    @Test
+    void parseInvalid()
+    {
+        assertThrows(IOException.class, () -> EntraIDUsersPageParser.parse(stream("[]")));
+    }
+
+    @Test
+    void toExternalUser()
+    {
+        ExternalUser user =
+            EntraIDUsersPageParser.toExternalUser(new JSONObject("{ \"id\": \"user1\", \"accountEnabled\": false }"));
+        assertEquals("user1", user.getId());
+        assertFalse(user.isEnabled());
+        assertFalse(user.isRemoved());
+    }
+
+    private InputStream stream(String body)
+    {
+        return new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+    }
+}
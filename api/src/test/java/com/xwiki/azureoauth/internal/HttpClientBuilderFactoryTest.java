@@ -0,0 +1,150 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.azureoauth.internal;
+
+import java.net.http.HttpClient;
+import java.time.Duration;
+
+import javax.inject.Provider;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+import org.xwiki.wiki.descriptor.WikiDescriptorManager;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xwiki.azureoauth.configuration.EntraIDConfiguration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit test for {@link HttpClientBuilderFactory}
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class HttpClientBuilderFactoryTest
+{
+    @InjectMockComponents
+    private HttpClientBuilderFactory httpClientBuilderFactory;
+
+    @MockComponent
+    private EntraIDConfiguration configuration;
+
+    @MockComponent
+    private WikiDescriptorManager wikiManager;
+
+    @MockComponent
+    private Provider<XWikiContext> wikiContextProvider;
+
+    @Mock
+    private XWikiContext wikiContext;
+
+    @BeforeEach
+    void setup()
+    {
+        when(wikiContextProvider.get()).thenReturn(wikiContext);
+        when(wikiContext.getWikiId()).thenReturn("subwiki");
+        when(wikiManager.getMainWikiId()).thenReturn("xwiki");
+        when(configuration.getHttpConnectTimeout()).thenReturn(10);
+        when(configuration.getHttpRequestTimeout()).thenReturn(60);
+        when(configuration.getHttpVersion()).thenReturn("HTTP_2");
+        when(configuration.getHttpExecutor()).thenReturn("default");
+        when(configuration.getHttpProxy()).thenReturn("");
+    }
+
+    @Test
+    void getHttpClientIsShared()
+    {
+        HttpClient client = httpClientBuilderFactory.getHttpClient();
+        assertSame(client, httpClientBuilderFactory.getHttpClient());
+        assertEquals(HttpClient.Version.HTTP_2, client.version());
+        assertEquals(Duration.ofSeconds(10), client.connectTimeout().orElse(null));
+        assertFalse(client.proxy().isPresent());
+        assertEquals(Duration.ofSeconds(60), httpClientBuilderFactory.getRequestTimeout());
+    }
+
+    @Test
+    void getHttpClientWithCustomSettings()
+    {
+        when(configuration.getHttpConnectTimeout()).thenReturn(0);
+        when(configuration.getHttpRequestTimeout()).thenReturn(0);
+        when(configuration.getHttpVersion()).thenReturn("HTTP_1_1");
+        when(configuration.getHttpProxy()).thenReturn("proxy.example.com:3128");
+
+        HttpClient client = httpClientBuilderFactory.getHttpClient();
+        assertEquals(HttpClient.Version.HTTP_1_1, client.version());
+        assertFalse(client.connectTimeout().isPresent());
+        assertTrue(client.proxy().isPresent());
+        assertNull(httpClientBuilderFactory.getRequestTimeout());
+    }
+
+    @Test
+    void getHttpClientIgnoresInvalidProxy()
+    {
+        when(configuration.getHttpProxy()).thenReturn("proxy.example.com");
+
+        assertFalse(httpClientBuilderFactory.getHttpClient().proxy().isPresent());
+    }
+
+    @Test
+    void refreshKeepsClientWhenSettingsAreUnchanged()
+    {
+        HttpClient client = httpClientBuilderFactory.getHttpClient();
+        httpClientBuilderFactory.refresh();
+        assertSame(client, httpClientBuilderFactory.getHttpClient());
+    }
+
+    @Test
+    void refreshReplacesClientWhenSettingsChange()
+    {
+        HttpClient client = httpClientBuilderFactory.getHttpClient();
+        when(configuration.getHttpVersion()).thenReturn("HTTP_1_1");
+        httpClientBuilderFactory.refresh();
+
+        HttpClient newClient = httpClientBuilderFactory.getHttpClient();
+        assertNotSame(client, newClient);
+        assertEquals(HttpClient.Version.HTTP_1_1, newClient.version());
+        // The previous client is left open for the requests it is still handling.
+        assertEquals(HttpClient.Version.HTTP_2, client.version());
+    }
+
+    @Test
+    void getHttpClientReadsMainWikiSettings()
+    {
+        httpClientBuilderFactory.getHttpClient();
+
+        InOrder order = inOrder(wikiContext, configuration);
+        order.verify(wikiContext).setWikiId("xwiki");
+        order.verify(configuration).getHttpProxy();
+        order.verify(wikiContext).setWikiId("subwiki");
+    }
+}
@@ -19,6 +19,8 @@
  */
 package com.xwiki.azureoauth.internal.configuration;
 
+import java.util.List;
+
 import javax.inject.Named;
 
 import org.junit.jupiter.api.Test;
@@ -112,4 +114,62 @@ class DefaultEntraIDConfigurationTest
         when(oidcConfig.getProperty("tokenEndpoint", "")).thenReturn("token endpoint");
         assertEquals("token endpoint", defaultEntraIDConfiguration.getTokenEndpoint());
     }
+
+    @Test
+    void getGraphEndpointTest()
+    {
+        when(entraIDConfig.getProperty("graphEndpoint", "")).thenReturn(" ");
+        assertEquals("https://graph.microsoft.com/v1.0", defaultEntraIDConfiguration.getGraphEndpoint());
+        when(entraIDConfig.getProperty("graphEndpoint", "")).thenReturn("http://localhost:8080/v1.0");
+        assertEquals("http://localhost:8080/v1.0", defaultEntraIDConfiguration.getGraphEndpoint());
+    }
+
+    @Test
+    void getUsersPageSizeTest()
+    {
+        when(entraIDConfig.getProperty("usersPageSize", 999)).thenReturn(5000);
+        assertEquals(999, defaultEntraIDConfiguration.getUsersPageSize());
+        when(entraIDConfig.getProperty("usersPageSize", 999)).thenReturn(200);
+        assertEquals(200, defaultEntraIDConfiguration.getUsersPageSize());
+    }
+
+    @Test
+    void getUsersSyncBatchSizeTest()
+    {
+        when(entraIDConfig.getProperty("usersSyncBatchSize", 100)).thenReturn(0);
+        assertEquals(1, defaultEntraIDConfiguration.getUsersSyncBatchSize());
+        when(entraIDConfig.getProperty("usersSyncBatchSize", 100)).thenReturn(500);
+        assertEquals(500, defaultEntraIDConfiguration.getUsersSyncBatchSize());
+    }
+
+    @Test
+    void getUsersSyncWorkersTest()
+    {
+        when(entraIDConfig.getProperty("usersSyncThreads", 4)).thenReturn(-2);
+        assertEquals(1, defaultEntraIDConfiguration.getUsersSyncThreads());
+        when(entraIDConfig.getProperty("usersSyncThreads", 4)).thenReturn(8);
+        assertEquals(8, defaultEntraIDConfiguration.getUsersSyncThreads());
+        when(entraIDConfig.getProperty("usersSyncThreads", 4)).thenReturn(500);
+        assertEquals(16, defaultEntraIDConfiguration.getUsersSyncThreads());
+        when(entraIDConfig.getProperty("usersSyncExecutor", "default")).thenReturn(" virtual ");
+        assertEquals("virtual", defaultEntraIDConfiguration.getUsersSyncExecutor());
+    }
+
+    @Test
+    void getUsersSelectedAttributesTest()
+    {
+        when(entraIDConfig.getProperty("usersSelect", "")).thenReturn("mail, department,mail,bad&$top=1");
+        assertEquals(List.of("mail", "department"), defaultEntraIDConfiguration.getUsersSelectedAttributes());
+    }
+
+    @Test
+    void getHttpSettingsTest()
+    {
+        when(entraIDConfig.getProperty("httpConnectTimeout", 10)).thenReturn(-5);
+        when(entraIDConfig.getProperty("httpRequestTimeout", 60)).thenReturn(30);
+        when(entraIDConfig.getProperty("httpProxy", "")).thenReturn(" proxy:3128 ");
+        assertEquals(0, defaultEntraIDConfiguration.getHttpConnectTimeout());
+        assertEquals(30, defaultEntraIDConfiguration.getHttpRequestTimeout());
+        assertEquals("proxy:3128", defaultEntraIDConfiguration.getHttpProxy());
+    }
 }
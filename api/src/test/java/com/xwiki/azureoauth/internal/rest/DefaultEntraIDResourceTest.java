@@ -28,6 +28,7 @@ import javax.ws.rs.WebApplicationException;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.RegisterExtension;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.xwiki.job.JobException;
 import org.xwiki.job.JobExecutor;
@@ -47,12 +48,16 @@ import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.web.XWikiRequest;
 import com.xwiki.azureoauth.internal.user.sync.EntraIDUsersSyncJob;
 import com.xwiki.azureoauth.user.sync.EntraIDUsersSyncJobRequest;
+import com.xwiki.azureoauth.user.sync.EntraIDUsersSyncMode;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @ComponentTest
@@ -143,7 +148,7 @@ class DefaultEntraIDResourceTest
     {
         when(request.getParameterMap()).thenReturn(
             Map.of("disable", new String[] { "true" }, "remove", new String[] { "true" }));
-        List<String> jobId = List.of("entra", "users", "sync", "true", "true");
+        List<String> jobId = List.of("entra", "users", "sync", "true", "true", "full");
         when(jobExecutor.getJob(jobId)).thenReturn(job);
         assertEquals(200, defaultEntraIDResource.syncUsers().getStatus());
         assertEquals("Requested actions: disabled [true]; remove [true]", logCapture.getMessage(0));
@@ -154,7 +159,7 @@ class DefaultEntraIDResourceTest
     {
         when(request.getParameterMap()).thenReturn(
             Map.of("disable", new String[] { "true" }, "remove", new String[] { "true" }));
-        List<String> jobId = List.of("entra", "users", "sync", "true", "true");
+        List<String> jobId = List.of("entra", "users", "sync", "true", "true", "full");
         when(jobExecutor.getJob(jobId)).thenReturn(null);
         when(jobExecutor.execute(eq(EntraIDUsersSyncJob.JOB_TYPE), any(EntraIDUsersSyncJobRequest.class))).thenThrow(
             new JobException("Job execution error"));
@@ -172,9 +177,59 @@ class DefaultEntraIDResourceTest
     {
         when(request.getParameterMap()).thenReturn(
             Map.of("disable", new String[] { "true" }, "remove", new String[] { "false" }));
-        List<String> jobId = List.of("entra", "users", "sync", "true", "false");
+        List<String> jobId = List.of("entra", "users", "sync", "true", "false", "full");
         when(jobExecutor.getJob(jobId)).thenReturn(null);
         assertEquals(201, defaultEntraIDResource.syncUsers().getStatus());
         assertEquals("Requested actions: disabled [true]; remove [false]", logCapture.getMessage(0));
     }
+
+    @Test
+    void syncUsersTestDeltaMode() throws Exception
+    {
+        when(request.getParameterMap()).thenReturn(Map.of("disable", new String[] { "true" }, "remove",
+            new String[] { "true" }, "mode", new String[] { "delta" }));
+        List<String> jobId = List.of("entra", "users", "sync", "true", "true", "delta");
+        when(jobExecutor.getJob(jobId)).thenReturn(null);
+        assertEquals(201, defaultEntraIDResource.syncUsers().getStatus());
+        assertEquals("Requested actions: disabled [true]; remove [true]", logCapture.getMessage(0));
+
+        ArgumentCaptor<EntraIDUsersSyncJobRequest> requestCaptor =
+            ArgumentCaptor.forClass(EntraIDUsersSyncJobRequest.class);
+        verify(jobExecutor).execute(eq(EntraIDUsersSyncJob.JOB_TYPE), requestCaptor.capture());
+        assertEquals(EntraIDUsersSyncMode.DELTA, requestCaptor.getValue().getMode());
+        assertEquals(jobId, requestCaptor.getValue().getId());
+    }
+
+    @Test
+    void syncUsersTestUnknownMode() throws Exception
+    {
+        when(request.getParameterMap()).thenReturn(Map.of("disable", new String[] { "true" }, "remove",
+            new String[] { "true" }, "mode", new String[] { "partial" }));
+        WebApplicationException exception = assertThrows(WebApplicationException.class, () -> {
+            defaultEntraIDResource.syncUsers();
+        });
+
+        assertEquals(400, exception.getResponse().getStatus());
+        assertEquals("Failed to synchronize users with EntraID due to the unknown sync mode [partial].",
+            logCapture.getMessage(1));
+        verify(jobExecutor, never()).execute(any(), any());
+    }
+
+    @Test
+    void syncUsersTestFarm() throws Exception
+    {
+        when(request.getParameterMap()).thenReturn(Map.of("disable", new String[] { "true" }, "remove",
+            new String[] { "true" }, "farm", new String[] { "true" }));
+        List<String> jobId = List.of("entra", "users", "sync", "true", "true", "full", "farm");
+        when(jobExecutor.getJob(jobId)).thenReturn(null);
+        assertEquals(201, defaultEntraIDResource.syncUsers().getStatus());
+        assertEquals("Requested actions: disabled [true]; remove [true]", logCapture.getMessage(0));
+
+        verify(contextualAuthorizationManager).checkAccess(Right.PROGRAM);
+        ArgumentCaptor<EntraIDUsersSyncJobRequest> requestCaptor =
+            ArgumentCaptor.forClass(EntraIDUsersSyncJobRequest.class);
+        verify(jobExecutor).execute(eq(EntraIDUsersSyncJob.JOB_TYPE), requestCaptor.capture());
+        assertTrue(requestCaptor.getValue().isFarm());
+        assertEquals(jobId, requestCaptor.getValue().getId());
+    }
 }
@@ -19,13 +19,15 @@
  */
 package com.xwiki.azureoauth.internal.user;
 
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 
 import javax.inject.Named;
 import javax.inject.Provider;
 
-import org.json.JSONArray;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mock;
@@ -33,7 +35,6 @@ import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.DocumentReferenceResolver;
 import org.xwiki.query.Query;
 import org.xwiki.query.QueryException;
-import org.xwiki.query.QueryFilter;
 import org.xwiki.query.QueryManager;
 import org.xwiki.test.junit5.mockito.ComponentTest;
 import org.xwiki.test.junit5.mockito.InjectMockComponents;
@@ -44,14 +45,24 @@ import com.xpn.xwiki.XWiki;
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.XWikiDocument;
-import com.xpn.xwiki.objects.BaseObject;
-import com.xpn.xwiki.objects.PropertyInterface;
 import com.xwiki.azureoauth.internal.EntraIDApiClient;
+import com.xwiki.azureoauth.internal.EntraIDDeltaLinkExpiredException;
+import com.xwiki.azureoauth.internal.EntraIDPageIterator;
+import com.xwiki.azureoauth.user.EntraIDUsersDelta;
 import com.xwiki.azureoauth.user.ExternalUser;
+import com.xwiki.azureoauth.user.XWikiEntraUser;
 
-import static com.xwiki.azureoauth.internal.configuration.DefaultEntraIDConfiguration.OIDC_USER_CLASS;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -81,36 +92,6 @@ class DefaultEntraIDUsersManagerTest
     @Mock
     private XWikiDocument userDoc3;
 
-    @Mock
-    private PropertyInterface property1;
-
-    @Mock
-    private PropertyInterface property2;
-
-    @Mock
-    private PropertyInterface property3;
-
-    @Mock
-    private PropertyInterface property4;
-
-    @Mock
-    private PropertyInterface property5;
-
-    @Mock
-    private PropertyInterface property6;
-
-    @Mock
-    private BaseObject object1;
-
-    @Mock
-    private BaseObject object2;
-
-    @Mock
-    private BaseObject object3;
-
-    @Mock
-    private DocumentReference oidcUserClassDocRef;
-
     @MockComponent
     private WikiDescriptorManager wikiManager;
 
@@ -123,10 +104,6 @@ class DefaultEntraIDUsersManagerTest
     @MockComponent
     private XWikiContext wikiContext;
 
-    @MockComponent
-    @Named("document")
-    private QueryFilter documentReferenceFilter;
-
     @Mock
     private DocumentReference documentReference1;
 
@@ -145,6 +122,9 @@ class DefaultEntraIDUsersManagerTest
     @Mock
     private Query query;
 
+    @Mock
+    private EntraIDPageIterator deltaPages;
+
     @Mock
     private XWiki wiki;
 
@@ -153,58 +133,107 @@ class DefaultEntraIDUsersManagerTest
     {
         when(wikiContextProvider.get()).thenReturn(wikiContext);
         when(wikiContext.getWiki()).thenReturn(wiki);
-        when(
-            queryManager.createQuery(", BaseObject as obj where doc.fullName = obj.name and obj.className = :className",
-                Query.HQL)).thenReturn(query);
+        when(queryManager.createQuery(startsWith("select doc.id, doc.fullName, subject.value"), eq(Query.HQL)))
+            .thenReturn(query);
         when(wikiManager.getCurrentWikiId()).thenReturn("wiki_id");
         when(query.setWiki("wiki_id")).thenReturn(query);
         when(query.bindValue("className", "XWiki.OIDC.UserClass")).thenReturn(query);
-        when(query.addFilter(documentReferenceFilter)).thenReturn(query);
-        when(query.execute()).thenReturn(List.of(documentReference1, documentReference2, documentReference3));
-        when(wikiContext.getWiki()).thenReturn(wiki);
-
+        when(query.bindValue("userClassName", "XWiki.XWikiUsers")).thenReturn(query);
+        when(query.bindValue(eq("lastId"), anyLong())).thenReturn(query);
+        when(query.setLimit(anyInt())).thenReturn(query);
+        when(query.bindValue("issuer", "https://login.microsoftonline.com/%")).thenReturn(query);
+        // The users of the other OIDC providers are filtered out by the query.
+        when(query.execute()).thenReturn(List.of(
+            new Object[] { 1L, "XWiki.User1", "subject1", "https://login.microsoftonline.com/etc", 1, "1.1" },
+            new Object[] { 3L, "XWiki.User3", "subject3", "https://login.microsoftonline.com/etc", null, "1.1" }));
+
+        when(documentReferenceResolver.resolve("XWiki.User1")).thenReturn(documentReference1);
+        when(documentReferenceResolver.resolve("XWiki.User2")).thenReturn(documentReference2);
+        when(documentReferenceResolver.resolve("XWiki.User3")).thenReturn(documentReference3);
         when(wiki.getDocument(documentReference1, wikiContext)).thenReturn(userDoc1);
         when(wiki.getDocument(documentReference2, wikiContext)).thenReturn(userDoc2);
         when(wiki.getDocument(documentReference3, wikiContext)).thenReturn(userDoc3);
-
-        when(documentReferenceResolver.resolve(OIDC_USER_CLASS)).thenReturn(oidcUserClassDocRef);
-        when(userDoc1.getXObject(oidcUserClassDocRef)).thenReturn(object1);
-        when(userDoc2.getXObject(oidcUserClassDocRef)).thenReturn(object2);
-        when(userDoc3.getXObject(oidcUserClassDocRef)).thenReturn(object3);
-        when(object1.getField("issuer")).thenReturn(property4);
-        when(object2.getField("issuer")).thenReturn(property5);
-        when(object3.getField("issuer")).thenReturn(property6);
-        when(property4.toFormString()).thenReturn("https://login.microsoftonline.com/etc");
-        when(property5.toFormString()).thenReturn("issuer2");
-        when(property6.toFormString()).thenReturn("https://login.microsoftonline.com/etc");
     }
 
     @Test
     void getEntraServerUsersTest() throws Exception
     {
-        String jsonBody =
-            "[{ \"id\": \"user1\", \"accountEnabled\": true },{ \"id\": \"user2\", \"accountEnabled\": false },"
-                + "{ \"id\": \"user3\", \"accountEnabled\": true }]";
-
-        JSONArray jsonArray = new JSONArray(jsonBody);
-        when(entraIDApiClient.getUsers()).thenReturn(jsonArray);
+        List<ExternalUser> firstPage = List.of(new ExternalUser("user1", true), new ExternalUser("user2", false),
+            new ExternalUser("user3", true));
+        List<ExternalUser> secondPage = List.of(new ExternalUser("user4", false));
+        when(entraIDApiClient.getUsers()).thenReturn(List.of(firstPage, secondPage).iterator());
         List<ExternalUser> externalUsers = defaultEntraIDUsersManager.getEntraServerUsers();
+        assertEquals(4, externalUsers.size());
         assertEquals("user1", externalUsers.get(0).getId());
         assertFalse(externalUsers.get(1).isEnabled());
         assertEquals("user3", externalUsers.get(2).getId());
+        assertEquals("user4", externalUsers.get(3).getId());
     }
 
     @Test
-    void getEntraUsersMapTest() throws Exception
+    void getEntraServerUsersStreamTest() throws Exception
+    {
+        Iterator<List<ExternalUser>> pages = List.of(List.of(new ExternalUser("user1", true)),
+            List.of(new ExternalUser("user2", false)), List.of(new ExternalUser("user3", true))).iterator();
+        when(entraIDApiClient.getUsers()).thenReturn(pages);
+
+        Optional<ExternalUser> disabledUser =
+            defaultEntraIDUsersManager.getEntraServerUsersStream().filter(user -> !user.isEnabled()).findFirst();
+        assertEquals("user2", disabledUser.get().getId());
+        // The pages are only pulled as the stream is consumed.
+        assertTrue(pages.hasNext());
+    }
+
+    @Test
+    void getEntraServerUsersPagesByIdsTest() throws Exception
+    {
+        when(entraIDApiClient.getUsersByIds(List.of("user1", "user2")))
+            .thenReturn(new ArrayList<>(List.of(new ExternalUser("user1", false))));
+
+        Iterator<List<ExternalUser>> pages =
+            defaultEntraIDUsersManager.getEntraServerUsersPages(List.of("user1", "user2"));
+        List<ExternalUser> users = pages.next();
+        assertEquals("user1", users.get(0).getId());
+        assertFalse(users.get(0).isEnabled());
+        assertFalse(users.get(0).isRemoved());
+        // The users that could not be resolved no longer exist.
+        assertEquals("user2", users.get(1).getId());
+        assertTrue(users.get(1).isRemoved());
+        assertFalse(pages.hasNext());
+    }
+
+    @Test
+    void getEntraServerUsersDeltaTest() throws Exception
+    {
+        List<ExternalUser> page =
+            List.of(new ExternalUser("user1", false), new ExternalUser("user2", true, true));
+        when(entraIDApiClient.getUsersDelta("deltaLink1")).thenReturn(deltaPages);
+        when(deltaPages.hasNext()).thenReturn(true, false);
+        when(deltaPages.next()).thenReturn(page);
+        when(deltaPages.getDeltaLink()).thenReturn("deltaLink2");
+
+        EntraIDUsersDelta delta = defaultEntraIDUsersManager.getEntraServerUsersDelta("deltaLink1");
+        assertFalse(delta.isFull());
+        List<ExternalUser> users = delta.next();
+        assertFalse(users.get(0).isEnabled());
+        assertFalse(users.get(0).isRemoved());
+        assertTrue(users.get(1).isRemoved());
+        assertFalse(delta.hasNext());
+        assertEquals("deltaLink2", delta.getDeltaLink());
+    }
+
+    @Test
+    void getEntraServerUsersDeltaExpiredTest() throws Exception
     {
+        when(entraIDApiClient.getUsersDelta("deltaLink1")).thenThrow(new EntraIDDeltaLinkExpiredException("Expired"));
+        when(entraIDApiClient.getUsersDelta(null)).thenReturn(deltaPages);
 
-        when(object1.getField("subject")).thenReturn(property1);
-        when(object2.getField("subject")).thenReturn(property2);
-        when(object3.getField("subject")).thenReturn(property3);
-        when(property1.toFormString()).thenReturn("subject1");
-        when(property2.toFormString()).thenReturn("subject2");
-        when(property3.toFormString()).thenReturn("subject3");
+        assertTrue(defaultEntraIDUsersManager.getEntraServerUsersDelta("deltaLink1").isFull());
+    }
 
+    @Test
+    void getEntraUsersMapTest() throws Exception
+    {
         Map<String, XWikiDocument> map = Map.of("subject1", userDoc1, "subject3", userDoc3);
         Map<String, XWikiDocument> resultMap = defaultEntraIDUsersManager.getXWikiUsersMap();
         assertEquals(map, resultMap);
@@ -215,4 +244,42 @@ class DefaultEntraIDUsersManagerTest
     {
         assertEquals(List.of(userDoc1, userDoc3), defaultEntraIDUsersManager.getXWikiUsers());
     }
+
+    @Test
+    void getXWikiEntraUsersTest() throws Exception
+    {
+        List<XWikiEntraUser> users = defaultEntraIDUsersManager.getXWikiEntraUsers();
+        assertEquals(2, users.size());
+        assertEquals(documentReference1, users.get(0).getReference());
+        assertEquals("subject1", users.get(0).getSubject());
+        assertEquals("https://login.microsoftonline.com/etc", users.get(0).getIssuer());
+        assertTrue(users.get(0).isActive());
+        assertEquals("1.1", users.get(0).getVersion());
+        // Users without an active property are considered active.
+        assertEquals("subject3", users.get(1).getSubject());
+        assertTrue(users.get(1).isActive());
+        // The user documents are not loaded.
+        verify(wiki, never()).getDocument(any(DocumentReference.class), any(XWikiContext.class));
+    }
+
+    @Test
+    void getXWikiEntraUsersPagesTest() throws Exception
+    {
+        when(query.execute()).thenReturn(List.of(
+            new Object[] { 1L, "XWiki.User1", "subject1", "https://login.microsoftonline.com/etc", 1, "1.1" },
+            new Object[] { 2L, "XWiki.User2", "subject2", "https://login.microsoftonline.com/etc", 1, "1.1" }),
+            List.of(
+                new Object[] { 3L, "XWiki.User3", "subject3", "https://login.microsoftonline.com/etc", 0, "1.1" }));
+
+        Iterator<List<XWikiEntraUser>> pages = defaultEntraIDUsersManager.getXWikiEntraUsersPages(2);
+        assertEquals(2, pages.next().size());
+        List<XWikiEntraUser> users = pages.next();
+        assertEquals("subject3", users.get(0).getSubject());
+        assertFalse(users.get(0).isActive());
+        assertFalse(pages.hasNext());
+        // Each page starts after the last document of the previous page.
+        verify(query).bindValue("lastId", Long.MIN_VALUE);
+        verify(query).bindValue("lastId", 2L);
+        verify(query, times(2)).setLimit(2);
+    }
 }
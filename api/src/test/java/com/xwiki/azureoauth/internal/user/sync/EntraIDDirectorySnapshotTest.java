@@ -0,0 +1,71 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.azureoauth.internal.user.sync;
+
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit test for {@link EntraIDDirectorySnapshot}
+ *
+ * @version $Id$
+ */
+class EntraIDDirectorySnapshotTest
+{
+    @Test
+    void lookup()
+    {
+        EntraIDDirectorySnapshot.Builder builder = EntraIDDirectorySnapshot.builder();
+        // More users than the initial capacity of the builder, added in no particular order.
+        for (int i = 2000; i > 0; i--) {
+            builder.add(new UUID(i * 31L, -i).toString(), i % 2 == 0);
+        }
+        EntraIDDirectorySnapshot snapshot = builder.add("user1", true).add("user2", false).build();
+
+        assertEquals(2002, snapshot.size());
+        for (int i = 1; i <= 2000; i++) {
+            String id = new UUID(i * 31L, -i).toString();
+            assertTrue(snapshot.contains(id));
+            assertEquals(i % 2 == 0, snapshot.isEnabled(id));
+        }
+        assertFalse(snapshot.contains(new UUID(31L, 1).toString()));
+        assertFalse(snapshot.isEnabled(new UUID(31L, 1).toString()));
+
+        // The IDs that are not canonical GUIDs are matched exactly.
+        assertTrue(snapshot.isEnabled("user1"));
+        assertTrue(snapshot.contains("user2"));
+        assertFalse(snapshot.isEnabled("user2"));
+        assertFalse(snapshot.contains("user3"));
+        assertFalse(snapshot.contains(new UUID(31L, -1).toString().toUpperCase()));
+    }
+
+    @Test
+    void empty()
+    {
+        EntraIDDirectorySnapshot snapshot = EntraIDDirectorySnapshot.builder().build();
+        assertEquals(0, snapshot.size());
+        assertFalse(snapshot.contains(new UUID(1, 1).toString()));
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.azureoauth.internal.user.sync;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit test for {@link EntraIDPagePipeline}
+ *
+ * @version $Id$
+ */
+class EntraIDPagePipelineTest
+{
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    @AfterEach
+    void tearDown()
+    {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void pagesAreHandedOverInOrder()
+    {
+        try (EntraIDPagePipeline<String> pipeline =
+            new EntraIDPagePipeline<>(List.of(List.of("a", "b"), List.<String>of(), List.of("c")).iterator(), 1,
+                executor::submit))
+        {
+            assertEquals(List.of("a", "b"), pipeline.next());
+            // Empty pages are not mistaken for the end of the pages.
+            assertEquals(List.of(), pipeline.next());
+            assertEquals(List.of("c"), pipeline.next());
+            assertFalse(pipeline.hasNext());
+            assertFalse(pipeline.hasNext());
+        }
+    }
+
+    @Test
+    void retrievalWaitsForTheConsumer() throws Exception
+    {
+        AtomicInteger retrievedPages = new AtomicInteger();
+        try (EntraIDPagePipeline<Integer> pipeline = new EntraIDPagePipeline<>(pages(retrievedPages), 2,
+            executor::submit))
+        {
+            // Two pages are queued, and a third one waits for room in the queue.
+            waitFor(retrievedPages, 3);
+            Thread.sleep(100);
+            assertEquals(3, retrievedPages.get());
+
+            assertEquals(List.of(1), pipeline.next());
+            waitFor(retrievedPages, 4);
+            assertEquals(List.of(2), pipeline.next());
+        }
+    }
+
+    @Test
+    void failureIsThrownAfterTheRetrievedPages()
+    {
+        RuntimeException failure = new RuntimeException("Graph request failed");
+        Iterator<List<String>> source = new Iterator<>()
+        {
+            private boolean first = true;
+
+            @Override
+            public boolean hasNext()
+            {
+                return true;
+            }
+
+            @Override
+            public List<String> next()
+            {
+                if (first) {
+                    first = false;
+                    return List.of("a");
+                }
+                throw failure;
+            }
+        };
+        try (EntraIDPagePipeline<String> pipeline = new EntraIDPagePipeline<>(source, 2, executor::submit)) {
+            assertEquals(List.of("a"), pipeline.next());
+            assertSame(failure, assertThrows(RuntimeException.class, pipeline::hasNext));
+        }
+    }
+
+    @Test
+    void closeStopsTheRetrieval() throws Exception
+    {
+        AtomicReference<Future<?>> producer = new AtomicReference<>();
+        AtomicInteger retrievedPages = new AtomicInteger();
+        EntraIDPagePipeline<Integer> pipeline = new EntraIDPagePipeline<>(pages(retrievedPages), 1, stage -> {
+            producer.set(executor.submit(stage));
+            return producer.get();
+        });
+        assertEquals(List.of(1), pipeline.next());
+        pipeline.close();
+
+        assertTrue(producer.get().isCancelled());
+        // The producer thread is released, so the executor can stop.
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+    }
+
+    private Iterator<List<Integer>> pages(AtomicInteger retrievedPages)
+    {
+        return new Iterator<>()
+        {
+            @Override
+            public boolean hasNext()
+            {
+                return true;
+            }
+
+            @Override
+            public List<Integer> next()
+            {
+                return List.of(retrievedPages.incrementAndGet());
+            }
+        };
+    }
+
+    private void waitFor(AtomicInteger retrievedPages, int count) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (retrievedPages.get() < count && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, retrievedPages.get());
+    }
+}
@@ -32,6 +32,7 @@ import org.xwiki.test.junit5.mockito.MockComponent;
 
 import com.xwiki.azureoauth.user.sync.EntraIDUsersSyncJobRequest;
 import com.xwiki.azureoauth.user.sync.EntraIDUsersSyncJobStatus;
+import com.xwiki.azureoauth.user.sync.EntraIDUsersSyncMode;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
@@ -71,17 +72,20 @@ class EntraIDUsersSyncJobTest
     {
         when(request.shouldDisable()).thenReturn(true);
         when(request.shouldRemove()).thenReturn(true);
+        when(request.getMode()).thenReturn(EntraIDUsersSyncMode.FULL);
         when(request.getId()).thenReturn(List.of("entra", "users", "sync", "true", "true"));
 
         syncJob.initialize(request);
-        doThrow(new RuntimeException("Some error")).when(syncManager).syncUsers(true, true);
+        doThrow(new RuntimeException("Some error")).when(syncManager)
+            .syncUsers(true, true, EntraIDUsersSyncMode.FULL);
         RuntimeException exception = assertThrows(RuntimeException.class, () -> {
             syncJob.runInternal();
         });
         assertEquals("java.lang.RuntimeException: Some error", exception.getMessage());
         assertEquals("Started EntraID user sync job with ID: [[entra, users, sync, true, true]]", logCapture.getMessage(0));
         assertEquals("Failed to synchronize EntraID users.", logCapture.getMessage(1));
-        assertEquals("Finished EntraID user sync job with ID: [[entra, users, sync, true, true]]", logCapture.getMessage(2));
+        assertEquals("Received [0] bytes from Entra ID, [0] bytes once decompressed.", logCapture.getMessage(2));
+        assertEquals("Finished EntraID user sync job with ID: [[entra, users, sync, true, true]]", logCapture.getMessage(3));
     }
 
     @Test
@@ -89,11 +93,13 @@ class EntraIDUsersSyncJobTest
     {
         when(request.shouldDisable()).thenReturn(true);
         when(request.shouldRemove()).thenReturn(false);
+        when(request.getMode()).thenReturn(EntraIDUsersSyncMode.DELTA);
         when(request.getId()).thenReturn(List.of("entra", "users", "sync", "true", "false"));
         syncJob.initialize(request);
         syncJob.runInternal();
-        verify(syncManager, times(1)).syncUsers(true, false);
+        verify(syncManager, times(1)).syncUsers(true, false, EntraIDUsersSyncMode.DELTA);
         assertEquals("Started EntraID user sync job with ID: [[entra, users, sync, true, false]]", logCapture.getMessage(0));
-        assertEquals("Finished EntraID user sync job with ID: [[entra, users, sync, true, false]]", logCapture.getMessage(1));
+        assertEquals("Received [0] bytes from Entra ID, [0] bytes once decompressed.", logCapture.getMessage(1));
+        assertEquals("Finished EntraID user sync job with ID: [[entra, users, sync, true, false]]", logCapture.getMessage(2));
     }
 }
@@ -19,8 +19,14 @@
  */
 package com.xwiki.azureoauth.internal.user.sync;
 
+import java.io.UncheckedIOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.FutureTask;
 
 import javax.inject.Named;
 import javax.inject.Provider;
@@ -30,6 +36,8 @@ import org.junit.jupiter.api.Test;
 import org.mockito.Mock;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.query.QueryException;
+import org.xwiki.test.annotation.ComponentList;
 import org.xwiki.test.junit5.mockito.ComponentTest;
 import org.xwiki.test.junit5.mockito.InjectMockComponents;
 import org.xwiki.test.junit5.mockito.MockComponent;
@@ -37,11 +45,26 @@ import org.xwiki.wiki.descriptor.WikiDescriptorManager;
 
 import com.xpn.xwiki.XWiki;
 import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.XWikiDocument;
 import com.xpn.xwiki.objects.BaseObject;
+import com.xwiki.azureoauth.configuration.EntraIDConfiguration;
+import com.xwiki.azureoauth.internal.EntraIDDeltaLinkExpiredException;
+import com.xwiki.azureoauth.user.EntraIDUsersDelta;
 import com.xwiki.azureoauth.user.EntraIDUsersManager;
 import com.xwiki.azureoauth.user.ExternalUser;
+import com.xwiki.azureoauth.user.XWikiEntraUser;
+import com.xwiki.azureoauth.user.sync.EntraIDUsersSyncMode;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -52,8 +75,13 @@ import static org.mockito.Mockito.when;
  * @version $Id$
  */
 @ComponentTest
+@ComponentList(EntraIDUsersWriter.class)
 class EntraIDUsersSyncManagerTest
 {
+    private static final String ISSUER = "https://login.microsoftonline.com/tenant/v2.0";
+
+    private static final String TOKEN_ENDPOINT = "https://login.microsoftonline.com/tenant/oauth2/v2.0/token";
+
     @InjectMockComponents
     private EntraIDUsersSyncManager syncManager;
 
@@ -66,6 +94,18 @@ class EntraIDUsersSyncManagerTest
     @MockComponent
     private WikiDescriptorManager wikiManager;
 
+    @MockComponent
+    private EntraIDDeltaLinkStore deltaLinkStore;
+
+    @MockComponent
+    private EntraIDConfiguration configuration;
+
+    @MockComponent
+    private EntraIDWikiExecutor wikiExecutor;
+
+    @Mock
+    private EntraIDUsersDelta delta;
+
     @MockComponent
     @Named("current")
     private DocumentReferenceResolver<String> documentReferenceResolver;
@@ -79,6 +119,18 @@ class EntraIDUsersSyncManagerTest
     @Mock
     private DocumentReference userClassDocRef;
 
+    @Mock
+    private DocumentReference userReference1;
+
+    @Mock
+    private DocumentReference userReference2;
+
+    @Mock
+    private DocumentReference userReference3;
+
+    @Mock
+    private DocumentReference userReference4;
+
     @Mock
     private XWikiDocument userDoc1;
 
@@ -88,23 +140,58 @@ class EntraIDUsersSyncManagerTest
     @Mock
     private XWikiDocument userDoc3;
 
+    @Mock
+    private XWikiDocument userDoc4;
+
     @Mock
     private BaseObject objectUserClass2;
 
+    @Mock
+    private BaseObject objectUserClass4;
+
+    private String currentWikiId = "testWiki";
+
     @BeforeEach
     void setUp() throws Exception
     {
         when(wikiContextProvider.get()).thenReturn(wikiContext);
         when(wikiContext.getWiki()).thenReturn(wiki);
-        when(wikiManager.getCurrentWikiId()).thenReturn("testWiki");
-        when(entraIdUsersManager.getXWikiUsersMap()).thenReturn(
-            Map.of("subject1", userDoc1, "subject2", userDoc2, "subject3", userDoc3));
+        when(wikiManager.getCurrentWikiId()).then(invocation -> currentWikiId);
+        when(wikiContext.getWikiId()).then(invocation -> currentWikiId);
+        doAnswer(invocation -> currentWikiId = invocation.getArgument(0)).when(wikiContext).setWikiId(any());
+        when(configuration.getUsersSyncBatchSize()).thenReturn(2);
+        when(configuration.getTokenEndpoint()).thenReturn(TOKEN_ENDPOINT);
+        when(configuration.getClientID()).thenReturn("clientID");
+        when(entraIdUsersManager.getXWikiEntraUsersPages(1000)).thenReturn(List.of(
+            List.of(new XWikiEntraUser(userReference1, "subject1", ISSUER, true, "1.1"),
+                new XWikiEntraUser(userReference2, "subject2", ISSUER, true, "1.1")),
+            List.of(new XWikiEntraUser(userReference3, "subject3", ISSUER, true, "1.1"))).iterator());
+        when(wiki.getDocument(userReference1, wikiContext)).thenReturn(userDoc1);
+        when(wiki.getDocument(userReference2, wikiContext)).thenReturn(userDoc2);
+        when(wiki.getDocument(userReference3, wikiContext)).thenReturn(userDoc3);
         List<ExternalUser> externalUsers =
             List.of(new ExternalUser("subject1", true), new ExternalUser("subject2", false));
-        when(entraIdUsersManager.getEntraServerUsers()).thenReturn(externalUsers);
+        when(entraIdUsersManager.getEntraServerUsersPages()).thenReturn(List.of(externalUsers).iterator());
 
         when(documentReferenceResolver.resolve("XWiki.XWikiUsers")).thenReturn(userClassDocRef);
         when(userDoc2.getXObject(userClassDocRef)).thenReturn(objectUserClass2);
+        when(userDoc2.getVersion()).thenReturn("1.1");
+
+        // Run the wiki tasks one after the other, on the current thread.
+        when(wikiExecutor.execute(anyCollection(), any())).then(invocation -> {
+            Map<String, Object> results = new HashMap<>();
+            for (String wikiId : (Collection<String>) invocation.getArgument(0)) {
+                results.put(wikiId, runInWiki(wikiId, invocation.getArgument(1)));
+            }
+            return results;
+        });
+        // Run the background tasks on their own thread, like the executor does.
+        when(wikiExecutor.submit(any(), any())).then(invocation -> {
+            FutureTask<?> future = new FutureTask<>(
+                () -> ((EntraIDWikiExecutor.WikiTask<?>) invocation.getArgument(1)).run(invocation.getArgument(0)));
+            new Thread(future).start();
+            return future;
+        });
     }
 
     @Test
@@ -130,4 +217,263 @@ class EntraIDUsersSyncManagerTest
         verify(wiki, times(1)).deleteDocument(userDoc3, wikiContext);
         verify(objectUserClass2, times(0)).set("active", 0, wikiContext);
     }
+
+    @Test
+    void syncUsersTestDisableInactive() throws Exception
+    {
+        when(entraIdUsersManager.getXWikiEntraUsersPages(1000)).thenReturn(
+            List.of(List.of(new XWikiEntraUser(userReference2, "subject2", ISSUER, false, "1.1"))).iterator());
+
+        syncManager.syncUsers(true, false);
+        // The users that are already disabled are not changed, so their documents are not even loaded.
+        verify(wiki, never()).getDocument(userReference2, wikiContext);
+        verify(objectUserClass2, never()).set("active", 0, wikiContext);
+    }
+
+    @Test
+    void syncUsersTestDisableChangedUser() throws Exception
+    {
+        // The user was disabled after the snapshot was taken.
+        when(userDoc2.getVersion()).thenReturn("2.1");
+        when(objectUserClass2.getIntValue("active", 1)).thenReturn(0);
+
+        syncManager.syncUsers(true, false);
+        verify(objectUserClass2, never()).set("active", 0, wikiContext);
+        verify(wiki, never()).saveDocument(any(XWikiDocument.class), any(), any(XWikiContext.class));
+    }
+
+    @Test
+    void syncUsersTestServerFailure() throws Exception
+    {
+        Iterator<List<ExternalUser>> pages = mock(Iterator.class);
+        when(pages.hasNext()).thenReturn(true);
+        when(pages.next()).thenReturn(List.of(new ExternalUser("subject2", false)))
+            .thenThrow(new RuntimeException("Graph request failed"));
+        when(entraIdUsersManager.getEntraServerUsersPages()).thenReturn(pages);
+
+        RuntimeException exception = assertThrows(RuntimeException.class, () -> syncManager.syncUsers(true, true));
+        assertEquals("Graph request failed", exception.getMessage());
+        // The pages retrieved before the failure are applied, but the users are not removed as missing.
+        verify(objectUserClass2).set("active", 0, wikiContext);
+        verify(wiki, never()).deleteDocument(any(XWikiDocument.class), any(XWikiContext.class));
+    }
+
+    @Test
+    void syncUsersTestTargeted() throws Exception
+    {
+        when(entraIdUsersManager.getEntraServerUsersCount()).thenReturn(1000L);
+        when(entraIdUsersManager.getEntraServerUsersPages(anyCollection())).thenReturn(List.of(
+            List.of(new ExternalUser("subject1", true), new ExternalUser("subject2", false),
+                new ExternalUser("subject3", false, true))).iterator());
+
+        syncManager.syncUsers(true, true);
+        verify(entraIdUsersManager, never()).getEntraServerUsersPages();
+        verify(wiki).deleteDocument(userDoc3, wikiContext);
+        verify(wiki, never()).deleteDocument(userDoc1, wikiContext);
+        verify(objectUserClass2).set("active", 0, wikiContext);
+    }
+
+    @Test
+    void syncUsersTestFiltered() throws Exception
+    {
+        when(configuration.getUsersFilter()).thenReturn("userType eq 'Member'");
+        when(entraIdUsersManager.getEntraServerUsersPages())
+            .thenReturn(List.of(List.of(new ExternalUser("subject1", true))).iterator());
+        // The users left out by the filter are resolved by ID.
+        when(entraIdUsersManager.getEntraServerUsersPages(anyCollection())).thenReturn(List.of(
+            List.of(new ExternalUser("subject2", false), new ExternalUser("subject3", false, true))).iterator());
+
+        syncManager.syncUsers(true, true);
+        verify(entraIdUsersManager).getEntraServerUsersPages(Set.of("subject2", "subject3"));
+        verify(objectUserClass2).set("active", 0, wikiContext);
+        verify(wiki, never()).deleteDocument(userDoc2, wikiContext);
+        verify(wiki).deleteDocument(userDoc3, wikiContext);
+    }
+
+    @Test
+    void syncUsersTestDelta() throws Exception
+    {
+        when(deltaLinkStore.getDeltaLink("testWiki_true_true")).thenReturn("deltaLink1");
+        when(entraIdUsersManager.getEntraServerUsersDelta("deltaLink1")).thenReturn(delta);
+        when(delta.isFull()).thenReturn(false);
+        when(delta.hasNext()).thenReturn(true, false);
+        when(delta.next()).thenReturn(
+            List.of(new ExternalUser("subject2", false), new ExternalUser("subject1", true, true)));
+        when(delta.getDeltaLink()).thenReturn("deltaLink2");
+
+        syncManager.syncUsers(true, true, EntraIDUsersSyncMode.DELTA);
+        verify(wiki).deleteDocument(userDoc1, wikiContext);
+        // Users that did not change are left untouched by a delta sync.
+        verify(wiki, never()).deleteDocument(userDoc3, wikiContext);
+        verify(objectUserClass2).set("active", 0, wikiContext);
+        verify(deltaLinkStore).setDeltaLink("testWiki_true_true", "deltaLink2");
+    }
+
+    @Test
+    void syncUsersTestDeltaWithFailedWrite() throws Exception
+    {
+        when(deltaLinkStore.getDeltaLink("testWiki_true_true")).thenReturn("deltaLink1");
+        when(entraIdUsersManager.getEntraServerUsersDelta("deltaLink1")).thenReturn(delta);
+        when(delta.hasNext()).thenReturn(true, false);
+        when(delta.next()).thenReturn(
+            List.of(new ExternalUser("subject2", false), new ExternalUser("subject1", true, true)));
+        when(delta.getDeltaLink()).thenReturn("deltaLink2");
+        doThrow(new XWikiException(XWikiException.MODULE_XWIKI_STORE,
+            XWikiException.ERROR_XWIKI_STORE_HIBERNATE_DELETING_DOC, "Failed")).when(wiki)
+            .deleteDocument(userDoc1, wikiContext);
+
+        syncManager.syncUsers(true, true, EntraIDUsersSyncMode.DELTA);
+        // The changes are retrieved again by the next sync, since some of them could not be written.
+        verify(deltaLinkStore, never()).setDeltaLink(any(), any());
+    }
+
+    @Test
+    void syncUsersTestDeltaExpiredOnNextPage() throws Exception
+    {
+        when(deltaLinkStore.getDeltaLink("testWiki_true_true")).thenReturn("deltaLink1");
+        when(entraIdUsersManager.getEntraServerUsersDelta("deltaLink1")).thenReturn(delta);
+        when(delta.hasNext()).thenReturn(true);
+        when(delta.next()).thenReturn(List.of(new ExternalUser("subject2", false)))
+            .thenThrow(new UncheckedIOException(new EntraIDDeltaLinkExpiredException("Expired")));
+        EntraIDUsersDelta fullDelta = mock(EntraIDUsersDelta.class);
+        when(entraIdUsersManager.getEntraServerUsersDelta(null)).thenReturn(fullDelta);
+        when(fullDelta.isFull()).thenReturn(true);
+        when(fullDelta.hasNext()).thenReturn(true, false);
+        when(fullDelta.next())
+            .thenReturn(List.of(new ExternalUser("subject1", true), new ExternalUser("subject2", false)));
+        when(fullDelta.getDeltaLink()).thenReturn("deltaLink2");
+        // The XWiki users are listed again for the full sync.
+        when(entraIdUsersManager.getXWikiEntraUsersPages(1000)).thenReturn(
+            List.of(List.of(new XWikiEntraUser(userReference1, "subject1", ISSUER, true, "1.1"))).iterator(),
+            List.of(List.of(new XWikiEntraUser(userReference3, "subject3", ISSUER, true, "1.1"))).iterator());
+
+        syncManager.syncUsers(true, true, EntraIDUsersSyncMode.DELTA);
+        // The sync starts over with all the users, so the missing users are removed as well.
+        verify(wiki).deleteDocument(userDoc3, wikiContext);
+        verify(deltaLinkStore).setDeltaLink("testWiki_true_true", "deltaLink2");
+    }
+
+    @Test
+    void syncUsersTestDeltaFull() throws Exception
+    {
+        when(entraIdUsersManager.getEntraServerUsersDelta(null)).thenReturn(delta);
+        when(delta.isFull()).thenReturn(true);
+        when(delta.hasNext()).thenReturn(true, false);
+        when(delta.next()).thenReturn(List.of(new ExternalUser("subject1", true), new ExternalUser("subject2", true)));
+        when(delta.getDeltaLink()).thenReturn("deltaLink1");
+
+        syncManager.syncUsers(false, true, EntraIDUsersSyncMode.DELTA);
+        verify(wiki).deleteDocument(userDoc3, wikiContext);
+        verify(wiki, never()).deleteDocument(userDoc1, wikiContext);
+        verify(deltaLinkStore).setDeltaLink("testWiki_false_true", "deltaLink1");
+    }
+
+    @Test
+    void syncAllWikisTest() throws Exception
+    {
+        when(wikiManager.getAllIds()).thenReturn(List.of("wiki1", "wiki2"));
+        when(entraIdUsersManager.getXWikiEntraUsersPages(1000)).thenReturn(
+            List.of(List.of(new XWikiEntraUser(userReference1, "subject1", ISSUER, true, "1.1"),
+                new XWikiEntraUser(userReference2, "subject2", ISSUER, true, "1.1"))).iterator(),
+            List.of(List.of(new XWikiEntraUser(userReference4, "subject4", ISSUER, true, "1.1"))).iterator());
+        when(wiki.getDocument(userReference4, wikiContext)).thenReturn(userDoc4);
+
+        syncManager.syncAllWikis(true, true, EntraIDUsersSyncMode.FULL);
+        // The Entra ID users are retrieved once for all the wikis.
+        verify(entraIdUsersManager).getEntraServerUsersPages();
+        verify(objectUserClass2).set("active", 0, wikiContext);
+        verify(wiki).deleteDocument(userDoc4, wikiContext);
+        verify(wiki, never()).deleteDocument(userDoc1, wikiContext);
+    }
+
+    @Test
+    void syncAllWikisTestDeltaWithFailedWiki() throws Exception
+    {
+        when(wikiManager.getAllIds()).thenReturn(List.of("wiki1", "wiki2"));
+        when(entraIdUsersManager.getXWikiEntraUsersPages(1000)).thenReturn(
+            List.of(List.of(new XWikiEntraUser(userReference1, "subject1", ISSUER, true, "1.1"))).iterator())
+            .thenThrow(new QueryException("Failed", null, null));
+        when(deltaLinkStore.getDeltaLink(startsWith("farm:"))).thenReturn("deltaLink1");
+        when(entraIdUsersManager.getEntraServerUsersDelta("deltaLink1")).thenReturn(delta);
+        when(delta.hasNext()).thenReturn(true, false);
+        when(delta.next()).thenReturn(List.of(new ExternalUser("subject1", true, true)));
+        when(delta.getDeltaLink()).thenReturn("deltaLink2");
+        when(wikiExecutor.execute(anyCollection(), any())).then(invocation -> {
+            Map<String, Object> results = new HashMap<>();
+            for (String wikiId : (Collection<String>) invocation.getArgument(0)) {
+                try {
+                    results.put(wikiId, runInWiki(wikiId, invocation.getArgument(1)));
+                } catch (Exception e) {
+                    // The wiki is left out of the results, like the executor does.
+                }
+            }
+            return results;
+        });
+
+        syncManager.syncAllWikis(true, true, EntraIDUsersSyncMode.DELTA);
+        verify(wiki).deleteDocument(userDoc1, wikiContext);
+        // The changes are retrieved again by the next sync, since a wiki could not apply them.
+        verify(deltaLinkStore, never()).setDeltaLink(any(), any());
+    }
+
+    @Test
+    void syncAllWikisTestWithSeveralTenants() throws Exception
+    {
+        when(wikiManager.getAllIds()).thenReturn(List.of("wiki1", "wiki2"));
+        // Each wiki uses its own tenant, and only knows the users of its tenant.
+        when(configuration.getTokenEndpoint())
+            .then(invocation -> TOKEN_ENDPOINT.replace("tenant", "tenant-" + currentWikiId));
+        when(entraIdUsersManager.getXWikiEntraUsersPages(1000)).then(invocation -> List.of(
+            "wiki1".equals(currentWikiId) ? List.of(new XWikiEntraUser(userReference1, "subject1", ISSUER, true, "1.1"))
+                : List.of(new XWikiEntraUser(userReference4, "subject4", ISSUER, true, "1.1"))).iterator());
+        when(entraIdUsersManager.getEntraServerUsersPages()).then(invocation -> List.of(
+            "wiki1".equals(currentWikiId) ? List.of(new ExternalUser("subject1", true))
+                : List.of(new ExternalUser("subject4", false))).iterator());
+        when(wiki.getDocument(userReference4, wikiContext)).thenReturn(userDoc4);
+        when(userDoc4.getXObject(userClassDocRef)).thenReturn(objectUserClass4);
+        when(userDoc4.getVersion()).thenReturn("1.1");
+
+        syncManager.syncAllWikis(true, true, EntraIDUsersSyncMode.FULL);
+        // The users of each tenant are retrieved once, and matched only against the wikis of that tenant.
+        verify(entraIdUsersManager, times(2)).getEntraServerUsersPages();
+        verify(wiki, never()).deleteDocument(any(XWikiDocument.class), any(XWikiContext.class));
+        verify(objectUserClass4).set("active", 0, wikiContext);
+        // The wiki running the sync is restored.
+        assertEquals("testWiki", currentWikiId);
+    }
+
+    @Test
+    void syncAllWikisTestFiltered() throws Exception
+    {
+        when(wikiManager.getAllIds()).thenReturn(List.of("wiki1", "wiki2"));
+        when(configuration.getUsersFilter()).thenReturn("userType eq 'Member'");
+        when(entraIdUsersManager.getXWikiEntraUsersPages(1000)).thenReturn(
+            List.of(List.of(new XWikiEntraUser(userReference1, "subject1", ISSUER, true, "1.1"),
+                new XWikiEntraUser(userReference2, "subject2", ISSUER, true, "1.1"))).iterator(),
+            List.of(List.of(new XWikiEntraUser(userReference4, "subject4", ISSUER, true, "1.1"))).iterator());
+        when(wiki.getDocument(userReference4, wikiContext)).thenReturn(userDoc4);
+        when(entraIdUsersManager.getEntraServerUsersPages())
+            .thenReturn(List.of(List.of(new ExternalUser("subject1", true))).iterator());
+        when(entraIdUsersManager.getEntraServerUsersPages(anyCollection())).thenReturn(List.of(
+            List.of(new ExternalUser("subject2", false), new ExternalUser("subject4", false, true))).iterator());
+
+        syncManager.syncAllWikis(true, true, EntraIDUsersSyncMode.FULL);
+        // The users left out by the filter are resolved by ID instead of being removed as missing.
+        verify(entraIdUsersManager).getEntraServerUsersPages(Set.of("subject2", "subject4"));
+        verify(objectUserClass2).set("active", 0, wikiContext);
+        verify(wiki, never()).deleteDocument(userDoc2, wikiContext);
+        verify(wiki).deleteDocument(userDoc4, wikiContext);
+    }
+
+    private Object runInWiki(String wikiId, EntraIDWikiExecutor.WikiTask<?> task) throws Exception
+    {
+        // Each task sees the configuration of its own wiki.
+        String previousWikiId = currentWikiId;
+        currentWikiId = wikiId;
+        try {
+            return task.run(wikiId);
+        } finally {
+            currentWikiId = previousWikiId;
+        }
+    }
 }
@@ -0,0 +1,285 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.azureoauth.internal.user.sync;
+
+import java.sql.SQLException;
+import java.util.concurrent.Callable;
+
+import javax.inject.Named;
+import javax.inject.Provider;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.test.LogLevel;
+import org.xwiki.test.junit5.LogCaptureExtension;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+import com.xwiki.azureoauth.configuration.EntraIDConfiguration;
+import com.xwiki.azureoauth.user.XWikiEntraUser;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit test for {@link EntraIDUsersWriter}
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class EntraIDUsersWriterTest
+{
+    private static final String ISSUER = "https://login.microsoftonline.com/tenant/v2.0";
+
+    private static final String SAVE_MESSAGE = "Disable user during EntraID user synchronization";
+
+    @InjectMockComponents
+    private EntraIDUsersWriter usersWriter;
+
+    @MockComponent
+    private Provider<XWikiContext> wikiContextProvider;
+
+    @MockComponent
+    @Named("current")
+    private DocumentReferenceResolver<String> documentReferenceResolver;
+
+    @MockComponent
+    private EntraIDConfiguration configuration;
+
+    @MockComponent
+    private EntraIDWikiExecutor wikiExecutor;
+
+    @Mock
+    private XWikiContext wikiContext;
+
+    @Mock
+    private XWiki wiki;
+
+    @Mock
+    private DocumentReference userClassReference;
+
+    @Mock
+    private DocumentReference userReference1;
+
+    @Mock
+    private DocumentReference userReference2;
+
+    @Mock
+    private DocumentReference userReference3;
+
+    @Mock
+    private XWikiDocument userDoc1;
+
+    @Mock
+    private XWikiDocument userDoc2;
+
+    @Mock
+    private XWikiDocument userDoc3;
+
+    @Mock
+    private BaseObject userObject1;
+
+    @RegisterExtension
+    private LogCaptureExtension logCapture = new LogCaptureExtension(LogLevel.WARN);
+
+    private XWikiEntraUser user1;
+
+    private XWikiEntraUser user2;
+
+    private XWikiEntraUser user3;
+
+    @BeforeEach
+    void setUp() throws Exception
+    {
+        when(wikiContextProvider.get()).thenReturn(wikiContext);
+        when(wikiContext.getWiki()).thenReturn(wiki);
+        when(configuration.getUsersSyncBatchSize()).thenReturn(2);
+        when(documentReferenceResolver.resolve("XWiki.XWikiUsers")).thenReturn(userClassReference);
+        when(wiki.getDocument(userReference1, wikiContext)).thenReturn(userDoc1);
+        when(wiki.getDocument(userReference2, wikiContext)).thenReturn(userDoc2);
+        when(wiki.getDocument(userReference3, wikiContext)).thenReturn(userDoc3);
+        when(userDoc1.getXObject(userClassReference)).thenReturn(userObject1);
+        when(userDoc1.getVersion()).thenReturn("1.1");
+        user1 = new XWikiEntraUser(userReference1, "subject1", ISSUER, true, "1.1");
+        user2 = new XWikiEntraUser(userReference2, "subject2", ISSUER, true, "1.1");
+        user3 = new XWikiEntraUser(userReference3, "subject3", ISSUER, true, "1.1");
+    }
+
+    @Test
+    void changesAreWrittenInBatches() throws Exception
+    {
+        EntraIDUsersWriter.Batch batch = usersWriter.newWriterPool().newBatch();
+        batch.disable(user1);
+        verify(wiki, never()).saveDocument(userDoc1, SAVE_MESSAGE, wikiContext);
+        batch.delete(user2);
+        InOrder order = inOrder(wiki);
+        order.verify(wiki).saveDocument(userDoc1, SAVE_MESSAGE, wikiContext);
+        order.verify(wiki).deleteDocument(userDoc2, wikiContext);
+        verify(wiki, never()).deleteDocument(userDoc3, wikiContext);
+        batch.delete(user3);
+        batch.flush();
+
+        verify(wiki).deleteDocument(userDoc3, wikiContext);
+        verify(userObject1).set("active", 0, wikiContext);
+        assertFalse(batch.hasFailed());
+    }
+
+    @Test
+    void changeIsRetriedOnTransientError() throws Exception
+    {
+        // PostgreSQL reports deadlocks with a generic exception type and the 40P01 SQL state.
+        doThrow(new XWikiException(XWikiException.MODULE_XWIKI_STORE,
+            XWikiException.ERROR_XWIKI_STORE_HIBERNATE_DELETING_DOC, "Failed",
+            new SQLException("deadlock detected", "40P01"))).doNothing().when(wiki)
+            .deleteDocument(userDoc2, wikiContext);
+
+        EntraIDUsersWriter.Batch batch = usersWriter.newWriterPool().newBatch();
+        batch.disable(user1);
+        batch.delete(user2);
+
+        // Only the failed change is written again.
+        verify(wiki).saveDocument(userDoc1, SAVE_MESSAGE, wikiContext);
+        verify(wiki, times(2)).getDocument(userReference2, wikiContext);
+        verify(wiki, times(2)).deleteDocument(userDoc2, wikiContext);
+        assertFalse(batch.hasFailed());
+    }
+
+    @Test
+    void failedChangeDoesNotStopTheNextOnes() throws Exception
+    {
+        doThrow(new XWikiException(XWikiException.MODULE_XWIKI_STORE,
+            XWikiException.ERROR_XWIKI_STORE_HIBERNATE_DELETING_DOC, "Failed",
+            new SQLException("duplicate key value violates unique constraint", "23505"))).when(wiki)
+            .deleteDocument(userDoc2, wikiContext);
+
+        EntraIDUsersWriter.Batch batch = usersWriter.newWriterPool().newBatch();
+        batch.disable(user1);
+        batch.delete(user2);
+        batch.delete(user3);
+        batch.flush();
+
+        // Errors that are not transient are not retried.
+        verify(wiki).saveDocument(userDoc1, SAVE_MESSAGE, wikiContext);
+        verify(wiki).deleteDocument(userDoc2, wikiContext);
+        verify(wiki).deleteDocument(userDoc3, wikiContext);
+        assertTrue(batch.hasFailed());
+        assertTrue(logCapture.getMessage(0).startsWith("Failed to write the changes of the Entra ID user ["));
+    }
+
+    @Test
+    void changesAreWrittenConcurrentlyInDocumentOrder() throws Exception
+    {
+        runTasksInWiki();
+        when(configuration.getUsersSyncThreads()).thenReturn(2);
+        when(configuration.getUsersSyncBatchSize()).thenReturn(1);
+
+        EntraIDUsersWriter.Batch batch;
+        try (EntraIDUsersWriter.WriterPool writers = usersWriter.newWriterPool()) {
+            batch = writers.newBatch();
+            batch.disable(user1);
+            batch.delete(user1);
+            batch.delete(user2);
+            batch.flush();
+        }
+
+        // Each batch is written by a worker, but the changes of a document are still applied in order.
+        verify(wikiExecutor, times(3)).inWiki(eq("wiki"), any());
+        InOrder order = inOrder(wiki);
+        order.verify(wiki).saveDocument(userDoc1, SAVE_MESSAGE, wikiContext);
+        order.verify(wiki).deleteDocument(userDoc1, wikiContext);
+        verify(wiki).deleteDocument(userDoc2, wikiContext);
+        assertFalse(batch.hasFailed());
+    }
+
+    @Test
+    void batchesShareTheWorkersOfTheirPool() throws Exception
+    {
+        runTasksInWiki();
+        when(configuration.getUsersSyncThreads()).thenReturn(2);
+        when(configuration.getUsersSyncBatchSize()).thenReturn(1);
+
+        EntraIDUsersWriter.WriterPool writers = usersWriter.newWriterPool();
+        EntraIDUsersWriter.Batch batch = writers.newBatch();
+        batch.disable(user1);
+        // The workers of the pool are not affected by a configuration change during the sync.
+        when(configuration.getUsersSyncThreads()).thenReturn(3);
+        EntraIDUsersWriter.Batch otherBatch = writers.newBatch();
+        otherBatch.delete(user2);
+        otherBatch.flush();
+        batch.delete(user3);
+        writers.close();
+        // The changes added after the pool is closed are written by the calling thread.
+        batch.delete(user1);
+        batch.flush();
+
+        InOrder order = inOrder(wiki);
+        order.verify(wiki).saveDocument(userDoc1, SAVE_MESSAGE, wikiContext);
+        order.verify(wiki).deleteDocument(userDoc1, wikiContext);
+        verify(wiki).deleteDocument(userDoc2, wikiContext);
+        verify(wiki).deleteDocument(userDoc3, wikiContext);
+        verify(configuration).getUsersSyncThreads();
+        assertFalse(batch.hasFailed());
+        assertFalse(otherBatch.hasFailed());
+    }
+
+    @Test
+    void deletedUsersAreSkipped() throws Exception
+    {
+        when(userDoc2.isNew()).thenReturn(true);
+
+        EntraIDUsersWriter.Batch batch = usersWriter.newWriterPool().newBatch();
+        batch.disable(user1);
+        // The users deleted since the snapshot was taken are skipped.
+        batch.delete(user2);
+
+        verify(wiki).saveDocument(userDoc1, SAVE_MESSAGE, wikiContext);
+        verify(wiki, never()).deleteDocument(userDoc2, wikiContext);
+        assertFalse(batch.hasFailed());
+    }
+
+    private void runTasksInWiki()
+    {
+        when(wikiContext.getWikiId()).thenReturn("wiki");
+        when(wikiExecutor.inWiki(any(), any())).then(invocation -> {
+            EntraIDWikiExecutor.WikiTask<?> task = invocation.getArgument(1);
+            String wikiId = invocation.getArgument(0);
+            return (Callable<Object>) () -> task.run(wikiId);
+        });
+    }
+}
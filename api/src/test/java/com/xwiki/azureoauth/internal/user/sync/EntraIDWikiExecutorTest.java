@@ -0,0 +1,118 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.azureoauth.internal.user.sync;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.inject.Provider;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.mockito.Mock;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.test.LogLevel;
+import org.xwiki.test.junit5.LogCaptureExtension;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.xpn.xwiki.XWikiContext;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit test for {@link EntraIDWikiExecutor}
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class EntraIDWikiExecutorTest
+{
+    @InjectMockComponents
+    private EntraIDWikiExecutor wikiExecutor;
+
+    @MockComponent
+    private Execution execution;
+
+    @MockComponent
+    private ExecutionContextManager executionContextManager;
+
+    @MockComponent
+    private Provider<XWikiContext> wikiContextProvider;
+
+    @Mock
+    private XWikiContext wikiContext;
+
+    @Mock
+    private XWikiContext wikiContextCopy;
+
+    @RegisterExtension
+    private LogCaptureExtension logCapture = new LogCaptureExtension(LogLevel.WARN);
+
+    @BeforeEach
+    void setUp()
+    {
+        when(wikiContextProvider.get()).thenReturn(wikiContext);
+        when(wikiContext.clone()).thenReturn(wikiContextCopy);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception
+    {
+        wikiExecutor.dispose();
+    }
+
+    @Test
+    void execute() throws Exception
+    {
+        Map<String, String> results = wikiExecutor.execute(List.of("wiki1", "wiki2"), wikiId -> wikiId + "_done");
+        assertEquals(Map.of("wiki1", "wiki1_done", "wiki2", "wiki2_done"), results);
+        // Each task runs in its own execution context, with a copy of the XWiki context targeting its wiki.
+        verify(executionContextManager, times(2)).initialize(any(ExecutionContext.class));
+        verify(wikiContextCopy).setWikiId("wiki1");
+        verify(wikiContextCopy).setWikiId("wiki2");
+        verify(wikiContextCopy, times(2)).declareInExecutionContext(any(ExecutionContext.class));
+        verify(execution, times(2)).removeContext();
+    }
+
+    @Test
+    void executeWithFailure() throws Exception
+    {
+        Map<String, String> results = wikiExecutor.execute(List.of("wiki1", "wiki2"), wikiId -> {
+            if ("wiki1".equals(wikiId)) {
+                throw new IllegalStateException("Failure");
+            }
+            return wikiId;
+        });
+        assertEquals(Map.of("wiki2", "wiki2"), results);
+        verify(execution, times(2)).removeContext();
+        assertEquals("Failed to synchronize the Entra ID users of wiki [wiki1]. "
+            + "Root cause is: [IllegalStateException: Failure]", logCapture.getMessage(0));
+    }
+}
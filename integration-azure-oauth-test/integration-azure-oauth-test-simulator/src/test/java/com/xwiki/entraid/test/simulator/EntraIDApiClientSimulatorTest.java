@@ -0,0 +1,197 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.entraid.test.simulator;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import javax.inject.Provider;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.test.annotation.ComponentList;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectComponentManager;
+import org.xwiki.test.junit5.mockito.MockComponent;
+import org.xwiki.test.mockito.MockitoComponentManager;
+import org.xwiki.wiki.descriptor.WikiDescriptorManager;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xwiki.azureoauth.configuration.EntraIDConfiguration;
+import com.xwiki.azureoauth.internal.EntraIDApiClient;
+import com.xwiki.azureoauth.internal.EntraIDCircuitBreaker;
+import com.xwiki.azureoauth.internal.EntraIDDeltaLinkExpiredException;
+import com.xwiki.azureoauth.internal.EntraIDPageIterator;
+import com.xwiki.azureoauth.internal.EntraIDRequestMetrics;
+import com.xwiki.azureoauth.internal.EntraIDRetryPolicy;
+import com.xwiki.azureoauth.internal.EntraIDTokenManager;
+import com.xwiki.azureoauth.internal.EntraIDTransferMetrics;
+import com.xwiki.azureoauth.internal.HttpClientBuilderFactory;
+import com.xwiki.azureoauth.user.ExternalUser;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs the {@link EntraIDApiClient} against the {@link GraphSimulator}, with a share of the requests being throttled.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+@ComponentList({ EntraIDApiClient.class, EntraIDTokenManager.class, EntraIDRetryPolicy.class,
+    EntraIDCircuitBreaker.class, EntraIDTransferMetrics.class, EntraIDRequestMetrics.class,
+    HttpClientBuilderFactory.class })
+class EntraIDApiClientSimulatorTest
+{
+    private static final int USER_COUNT = 2500;
+
+    @InjectComponentManager
+    private MockitoComponentManager componentManager;
+
+    @MockComponent
+    private EntraIDConfiguration configuration;
+
+    @MockComponent
+    private WikiDescriptorManager wikiManager;
+
+    @MockComponent
+    private Provider<XWikiContext> wikiContextProvider;
+
+    @MockComponent
+    private Execution execution;
+
+    @MockComponent
+    private ExecutionContextManager executionContextManager;
+
+    private GraphSimulator simulator;
+
+    private EntraIDApiClient apiClient;
+
+    @BeforeEach
+    void setUp() throws Exception
+    {
+        this.simulator = new GraphSimulator(USER_COUNT).setThrottleEvery(3).setRetryAfter(0).start();
+        GraphSimulatorConfiguration.configure(this.configuration, this.simulator);
+        this.apiClient = this.componentManager.getInstance(EntraIDApiClient.class);
+    }
+
+    @AfterEach
+    void tearDown()
+    {
+        this.simulator.close();
+    }
+
+    @Test
+    void getUsers() throws Exception
+    {
+        Iterator<List<ExternalUser>> pages = this.apiClient.getUsers();
+        List<ExternalUser> users = new ArrayList<>();
+        int pageCount = 0;
+        while (pages.hasNext()) {
+            users.addAll(pages.next());
+            pageCount++;
+        }
+
+        assertEquals(3, pageCount);
+        assertEquals(USER_COUNT, users.stream().map(ExternalUser::getId).distinct().count());
+        assertEquals(USER_COUNT / 10, users.stream().filter(user -> !user.isEnabled()).count());
+        assertTrue(this.simulator.getThrottledCount() > 0);
+    }
+
+    @Test
+    void getUsersDelta() throws Exception
+    {
+        EntraIDPageIterator pages = this.apiClient.getUsersDelta(null);
+        Set<String> ids = new HashSet<>();
+        pages.forEachRemaining(page -> page.forEach(user -> ids.add(user.getId())));
+        assertEquals(USER_COUNT, ids.size());
+
+        this.simulator.changeUsers(1, 10, 10);
+        EntraIDPageIterator changes = this.apiClient.getUsersDelta(pages.getDeltaLink());
+        List<ExternalUser> changedUsers = changes.next();
+        assertFalse(changes.hasNext());
+        assertEquals(List.of(this.simulator.getUserId(1), this.simulator.getUserId(10)),
+            changedUsers.stream().map(ExternalUser::getId).collect(Collectors.toList()));
+        assertFalse(changedUsers.get(0).isEnabled());
+        assertFalse(changedUsers.get(1).isEnabled());
+
+        EntraIDPageIterator noChanges = this.apiClient.getUsersDelta(changes.getDeltaLink());
+        assertTrue(noChanges.next().isEmpty());
+    }
+
+    @Test
+    void getUsersDeltaWithExpiredLink()
+    {
+        String deltaLink = this.simulator.getGraphEndpoint() + "/users/delta?$deltatoken=42";
+        assertThrows(EntraIDDeltaLinkExpiredException.class, () -> this.apiClient.getUsersDelta(deltaLink));
+    }
+
+    @Test
+    void getUsersByIds() throws Exception
+    {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 1500; i++) {
+            ids.add(this.simulator.getUserId(i));
+        }
+        ids.add("00000000-0000-0000-0000-000000000000");
+
+        List<ExternalUser> users = this.apiClient.getUsersByIds(ids);
+
+        assertEquals(1500, users.size());
+        assertEquals(new HashSet<>(ids.subList(0, 1500)),
+            users.stream().map(ExternalUser::getId).collect(Collectors.toSet()));
+        assertEquals(USER_COUNT, this.apiClient.getUsersCount());
+    }
+
+    @Test
+    void batchHonoursSelect() throws Exception
+    {
+        JSONObject getByIds = new JSONObject().put("id", "1").put("method", "POST")
+            .put("url", "/directoryObjects/getByIds?$select=id,accountEnabled")
+            .put("body", new JSONObject().put("ids", new JSONArray().put(this.simulator.getUserId(3))));
+        HttpRequest request = HttpRequest.newBuilder(URI.create(this.simulator.getGraphEndpoint() + "/$batch"))
+            .header("Authorization", "Bearer " + GraphSimulator.ACCESS_TOKEN).header("Content-Type", "application/json")
+            .POST(HttpRequest.BodyPublishers
+                .ofString(new JSONObject().put("requests", new JSONArray().put(getByIds)).toString()))
+            .build();
+
+        HttpResponse<String> response = HttpClient.newHttpClient().send(request, HttpResponse.BodyHandlers.ofString());
+
+        JSONObject getByIdsResponse = new JSONObject(response.body()).getJSONArray("responses").getJSONObject(0);
+        assertEquals(200, getByIdsResponse.getInt("status"));
+        JSONObject user = getByIdsResponse.getJSONObject("body").getJSONArray("value").getJSONObject(0);
+        assertEquals(Set.of("id", "accountEnabled", "@odata.type"), user.keySet());
+    }
+}
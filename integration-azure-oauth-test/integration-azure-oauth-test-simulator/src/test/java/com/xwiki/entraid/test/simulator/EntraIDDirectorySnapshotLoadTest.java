@@ -0,0 +1,126 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.entraid.test.simulator;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.xwiki.azureoauth.internal.user.sync.EntraIDDirectorySnapshot;
+import com.xwiki.azureoauth.user.ExternalUser;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Compares the heap footprint and the lookup time of the {@link EntraIDDirectorySnapshot} with the ones of a map of
+ * {@link ExternalUser}s by ID. Only run when the {@code entraid.loadTest} system property is {@code true}, e.g.
+ * {@code mvn test -Pintegration-tests -Dentraid.loadTest=true -Dentraid.loadTest.sizes=100000,500000}. The heap
+ * footprint is measured from the used memory after a garbage collection, so it is only an estimate.
+ *
+ * @version $Id$
+ */
+@EnabledIfSystemProperty(named = "entraid.loadTest", matches = "true")
+class EntraIDDirectorySnapshotLoadTest
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(EntraIDDirectorySnapshotLoadTest.class);
+
+    private static final int LOOKUP_ROUNDS = 5;
+
+    @Test
+    void compare()
+    {
+        String sizes = System.getProperty("entraid.loadTest.sizes", "100000,500000");
+        for (String size : sizes.split(",")) {
+            run(Integer.parseInt(size.trim()));
+        }
+    }
+
+    private void run(int userCount)
+    {
+        Random random = new Random(userCount);
+        String[] ids = new String[userCount];
+        for (int i = 0; i < userCount; i++) {
+            ids[i] = new UUID(random.nextLong(), random.nextLong()).toString();
+        }
+
+        Map<String, ExternalUser> map = measure("Map", userCount, () -> {
+            Map<String, ExternalUser> users = new HashMap<>();
+            for (int i = 0; i < userCount; i++) {
+                // The IDs are copied, as they would be when parsed from the Graph responses.
+                String id = new String(ids[i]);
+                users.put(id, new ExternalUser(id, i % 10 != 0));
+            }
+            return users;
+        });
+        EntraIDDirectorySnapshot snapshot = measure("Snapshot", userCount, () -> {
+            EntraIDDirectorySnapshot.Builder builder = EntraIDDirectorySnapshot.builder();
+            for (int i = 0; i < userCount; i++) {
+                builder.add(ids[i], i % 10 != 0);
+            }
+            return builder.build();
+        });
+
+        for (int round = 0; round < LOOKUP_ROUNDS; round++) {
+            lookup("Map", ids, id -> map.get(id).isEnabled());
+            lookup("Snapshot", ids, snapshot::isEnabled);
+        }
+        assertEquals(map.size(), snapshot.size());
+    }
+
+    private <T> T measure(String name, int userCount, Supplier<T> supplier)
+    {
+        long before = usedMemory();
+        T result = supplier.get();
+        long after = usedMemory();
+        LOGGER.info("[{}] users: {} takes about [{}] bytes, [{}] bytes per user.", userCount, name, after - before,
+            (after - before) / userCount);
+        return result;
+    }
+
+    private void lookup(String name, String[] ids, Predicate<String> isEnabled)
+    {
+        long start = System.nanoTime();
+        int enabled = 0;
+        for (String id : ids) {
+            if (isEnabled.test(id)) {
+                enabled++;
+            }
+        }
+        Duration duration = Duration.ofNanos(System.nanoTime() - start);
+        LOGGER.info("[{}] users: {} lookups took [{}] ms, [{}] ns per lookup, [{}] enabled users.", ids.length,
+            name, duration.toMillis(), duration.toNanos() / ids.length, enabled);
+    }
+
+    private long usedMemory()
+    {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.entraid.test.simulator;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.inject.Provider;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.test.annotation.ComponentList;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectComponentManager;
+import org.xwiki.test.junit5.mockito.MockComponent;
+import org.xwiki.test.mockito.MockitoComponentManager;
+import org.xwiki.wiki.descriptor.WikiDescriptorManager;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xwiki.azureoauth.configuration.EntraIDConfiguration;
+import com.xwiki.azureoauth.internal.EntraIDApiClient;
+import com.xwiki.azureoauth.internal.EntraIDCircuitBreaker;
+import com.xwiki.azureoauth.internal.EntraIDEndpointMetricsMXBean;
+import com.xwiki.azureoauth.internal.EntraIDPageIterator;
+import com.xwiki.azureoauth.internal.EntraIDRequestMetrics;
+import com.xwiki.azureoauth.internal.EntraIDRetryPolicy;
+import com.xwiki.azureoauth.internal.EntraIDTokenManager;
+import com.xwiki.azureoauth.internal.EntraIDTransferMetrics;
+import com.xwiki.azureoauth.internal.HttpClientBuilderFactory;
+import com.xwiki.azureoauth.user.ExternalUser;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Measures the throughput of the directory side of the users sync against the {@link GraphSimulator}: the full
+ * listing of the users, the delta query and the resolution of known users by ID. Only run when the
+ * {@code entraid.loadTest} system property is {@code true}, e.g.
+ * {@code mvn test -Pintegration-tests -Dentraid.loadTest=true -Dentraid.loadTest.sizes=10000,100000,1000000}.
+ * <p>
+ * Supported system properties:
+ * <ul>
+ * <li>{@code entraid.loadTest.sizes}: comma separated tenant sizes, {@code 10000,100000,1000000} by default</li>
+ * <li>{@code entraid.loadTest.latency}: latency added to each response, in milliseconds, {@code 20} by default</li>
+ * <li>{@code entraid.loadTest.throttleEvery}: throttle every n-th Graph request, {@code 0} (never) by default</li>
+ * </ul>
+ *
+ * @version $Id$
+ */
+@ComponentTest
+@ComponentList({ EntraIDApiClient.class, EntraIDTokenManager.class, EntraIDRetryPolicy.class,
+    EntraIDCircuitBreaker.class, EntraIDTransferMetrics.class, EntraIDRequestMetrics.class,
+    HttpClientBuilderFactory.class })
+@EnabledIfSystemProperty(named = "entraid.loadTest", matches = "true")
+class EntraIDSyncLoadTest
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(EntraIDSyncLoadTest.class);
+
+    @InjectComponentManager
+    private MockitoComponentManager componentManager;
+
+    @MockComponent
+    private EntraIDConfiguration configuration;
+
+    @MockComponent
+    private WikiDescriptorManager wikiManager;
+
+    @MockComponent
+    private Provider<XWikiContext> wikiContextProvider;
+
+    @MockComponent
+    private Execution execution;
+
+    @MockComponent
+    private ExecutionContextManager executionContextManager;
+
+    @Test
+    void sync() throws Exception
+    {
+        String sizes = System.getProperty("entraid.loadTest.sizes", "10000,100000,1000000");
+        Duration latency = Duration.ofMillis(Long.getLong("entraid.loadTest.latency", 20));
+        int throttleEvery = Integer.getInteger("entraid.loadTest.throttleEvery", 0);
+        for (String size : sizes.split(",")) {
+            run(Integer.parseInt(size.trim()), latency, throttleEvery);
+        }
+    }
+
+    private void run(int userCount, Duration latency, int throttleEvery) throws Exception
+    {
+        try (GraphSimulator simulator = new GraphSimulator(userCount).setLatency(latency)
+            .setThrottleEvery(throttleEvery).setRetryAfter(0).start())
+        {
+            GraphSimulatorConfiguration.configure(this.configuration, simulator);
+            EntraIDApiClient apiClient = this.componentManager.getInstance(EntraIDApiClient.class);
+            EntraIDTransferMetrics transferMetrics = this.componentManager.getInstance(EntraIDTransferMetrics.class);
+            long receivedBytes = transferMetrics.getReceivedBytes();
+            long decodedBytes = transferMetrics.getDecodedBytes();
+
+            long start = System.nanoTime();
+            assertEquals(userCount, count(apiClient.getUsers()));
+            report("Full listing", userCount, start, simulator);
+
+            start = System.nanoTime();
+            EntraIDPageIterator delta = apiClient.getUsersDelta(null);
+            assertEquals(userCount, count(delta));
+            report("Initial delta", userCount, start, simulator);
+
+            int changes = Math.max(userCount / 100, 1);
+            int[] changedUsers = new int[changes];
+            Arrays.setAll(changedUsers, i -> i * (userCount / changes));
+            simulator.changeUsers(changedUsers);
+            start = System.nanoTime();
+            assertEquals(changes, count(apiClient.getUsersDelta(delta.getDeltaLink())));
+            report("Incremental delta", changes, start, simulator);
+
+            start = System.nanoTime();
+            int resolved = 0;
+            for (int offset = 0; offset < userCount; offset += EntraIDApiClient.MAX_IDS_PER_BATCH) {
+                List<String> ids = new ArrayList<>();
+                for (int i = offset; i < Math.min(offset + EntraIDApiClient.MAX_IDS_PER_BATCH, userCount); i++) {
+                    ids.add(simulator.getUserId(i));
+                }
+                resolved += apiClient.getUsersByIds(ids).size();
+            }
+            assertEquals(userCount, resolved);
+            report("Resolution by ID", userCount, start, simulator);
+
+            LOGGER.info("[{}] users: received [{}] bytes, [{}] bytes once decompressed.", userCount,
+                transferMetrics.getReceivedBytes() - receivedBytes, transferMetrics.getDecodedBytes() - decodedBytes);
+            EntraIDRequestMetrics requestMetrics = this.componentManager.getInstance(EntraIDRequestMetrics.class);
+            for (String endpoint : List.of(EntraIDRequestMetrics.USERS, EntraIDRequestMetrics.DELTA,
+                EntraIDRequestMetrics.BATCH, EntraIDRequestMetrics.GET_BY_IDS))
+            {
+                EntraIDEndpointMetricsMXBean metrics = requestMetrics.get(endpoint);
+                LOGGER.info("[{}] users: [{}] endpoint latency histogram (ms) {}, average [{}] ms.", userCount,
+                    endpoint, metrics.getLatencyHistogram(), metrics.getAverageLatency());
+                metrics.reset();
+            }
+        }
+    }
+
+    private int count(Iterator<List<ExternalUser>> pages)
+    {
+        int count = 0;
+        while (pages.hasNext()) {
+            count += pages.next().size();
+        }
+        return count;
+    }
+
+    private void report(String step, int userCount, long start, GraphSimulator simulator)
+    {
+        Duration duration = Duration.ofNanos(System.nanoTime() - start);
+        LOGGER.info("[{}] users: {} took [{}] ms, [{}] users/s, [{}] Graph requests and [{}] throttled so far.",
+            userCount, step, duration.toMillis(), userCount * 1000L / Math.max(duration.toMillis(), 1),
+            simulator.getRequestCount(), simulator.getThrottledCount());
+    }
+}
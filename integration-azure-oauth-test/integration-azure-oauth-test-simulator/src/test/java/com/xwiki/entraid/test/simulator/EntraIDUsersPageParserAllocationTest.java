@@ -0,0 +1,134 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.entraid.test.simulator;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.xwiki.azureoauth.internal.EntraIDUsersPageParser;
+import com.xwiki.azureoauth.user.ExternalUser;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Compares the memory allocated to parse a page of Graph users with the {@link EntraIDUsersPageParser} with the memory
+ * allocated by buffering the response body as a string and building an org.json tree from it. Only run when the
+ * {@code entraid.loadTest} system property is {@code true}, e.g.
+ * {@code mvn test -Pintegration-tests -Dentraid.loadTest=true -Dentraid.loadTest.pageSizes=100,999}. The allocations
+ * are measured per thread, which requires a JVM supporting {@code ThreadMXBean#getThreadAllocatedBytes}.
+ *
+ * @version $Id$
+ */
+@EnabledIfSystemProperty(named = "entraid.loadTest", matches = "true")
+class EntraIDUsersPageParserAllocationTest
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(EntraIDUsersPageParserAllocationTest.class);
+
+    private static final int WARMUP_ROUNDS = 200;
+
+    private static final int ROUNDS = 100;
+
+    private static final String VALUE = "value";
+
+    private final com.sun.management.ThreadMXBean threadBean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    @Test
+    void compare() throws Exception
+    {
+        assumeTrue(threadBean.isThreadAllocatedMemorySupported(), "The JVM doesn't measure the thread allocations.");
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+        String pageSizes = System.getProperty("entraid.loadTest.pageSizes", "100,999");
+        for (String pageSize : pageSizes.split(",")) {
+            run(Integer.parseInt(pageSize.trim()));
+        }
+    }
+
+    private void run(int pageSize) throws Exception
+    {
+        byte[] body = getPage(pageSize);
+
+        long tree = measure("org.json tree", pageSize, body.length, () -> parseTree(body));
+        long stream = measure("Streaming parser", pageSize, body.length,
+            () -> EntraIDUsersPageParser.parse(new ByteArrayInputStream(body)).getUsers());
+        LOGGER.info("[{}] users per page: the streaming parser allocates [{}]% of the org.json tree allocations.",
+            pageSize, stream * 100 / tree);
+        assertTrue(stream < tree, "The streaming parser should allocate less than the org.json tree.");
+    }
+
+    private long measure(String name, int pageSize, int bodySize, Callable<List<ExternalUser>> parser)
+        throws Exception
+    {
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+            assertEquals(pageSize, parser.call().size());
+        }
+        long threadId = Thread.currentThread().getId();
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int round = 0; round < ROUNDS; round++) {
+            parser.call();
+        }
+        long allocated = (threadBean.getThreadAllocatedBytes(threadId) - before) / ROUNDS;
+        LOGGER.info("[{}] users per page, [{}] bytes per page: {} allocates [{}] bytes per page, [{}] bytes per user.",
+            pageSize, bodySize, name, allocated, allocated / pageSize);
+        return allocated;
+    }
+
+    private List<ExternalUser> parseTree(byte[] body)
+    {
+        // The way the pages were parsed before the streaming parser.
+        JSONArray values = new JSONObject(new String(body, StandardCharsets.UTF_8)).getJSONArray(VALUE);
+        List<ExternalUser> users = new ArrayList<>(values.length());
+        for (int i = 0; i < values.length(); i++) {
+            users.add(EntraIDUsersPageParser.toExternalUser(values.getJSONObject(i)));
+        }
+        return users;
+    }
+
+    private byte[] getPage(int pageSize)
+    {
+        JSONArray users = new JSONArray();
+        for (int i = 0; i < pageSize; i++) {
+            // The attributes that the sync doesn't need are part of the page, as when more attributes are selected.
+            users.put(new JSONObject().put("id", new UUID(i, i).toString()).put("accountEnabled", i % 10 != 0)
+                .put("displayName", "User " + i).put("mail", "user" + i + "@simulated.example.com")
+                .put("userPrincipalName", "user" + i + "@simulated.example.com")
+                .put("businessPhones", new JSONArray().put("+1 555 0100").put("+1 555 0101"))
+                .put("onPremisesExtensionAttributes", new JSONObject().put("extensionAttribute1", "Department " + i)
+                    .put("extensionAttribute2", JSONObject.NULL)));
+        }
+        return new JSONObject().put(VALUE, users)
+            .put(EntraIDUsersPageParser.NEXT_LINK, "https://graph.microsoft.com/v1.0/users?$skiptoken=" + pageSize)
+            .toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
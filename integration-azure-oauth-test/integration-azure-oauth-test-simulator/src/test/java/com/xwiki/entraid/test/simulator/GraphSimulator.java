@@ -0,0 +1,572 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.entraid.test.simulator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process simulator of the Microsoft Graph users API and of the Microsoft identity platform token endpoint, used to
+ * exercise the Entra ID users sync against large tenants without a real directory. It serves the users collection with
+ * {@code @odata.nextLink} paging, the users delta query, {@code $count}, {@code getByIds} and {@code $batch}, and can
+ * add latency to each response and throttle a share of the Graph requests with {@code 429} responses.
+ * <p>
+ * The tenant holds {@code userCount} generated users, the user at index {@code i} having a deterministic ID. The
+ * {@code $filter} parameter is not supported and is ignored.
+ *
+ * @version $Id$
+ */
+public class GraphSimulator implements AutoCloseable
+{
+    /**
+     * The access token issued by the simulated token endpoint.
+     */
+    public static final String ACCESS_TOKEN = "simulated-access-token";
+
+    private static final String API_VERSION = "/v1.0";
+
+    private static final String TOKEN_PATH = "/simulated-tenant/oauth2/v2.0/token";
+
+    private static final String GET_BY_IDS_PATH = "/directoryObjects/getByIds";
+
+    private static final long ID_PREFIX = 0x5a17e0c4d1a2b3c4L;
+
+    private static final int MAX_PAGE_SIZE = 999;
+
+    private static final int DEFAULT_PAGE_SIZE = 100;
+
+    private static final int MAX_IDS = 1000;
+
+    private static final Pattern MAX_PAGE_SIZE_PREFERENCE = Pattern.compile("odata\\.maxpagesize=(\\d+)");
+
+    private static final List<String> ATTRIBUTES =
+        List.of("id", "accountEnabled", "displayName", "mail", "userPrincipalName");
+
+    private static final String VALUE = "value";
+
+    private static final String SELECT = "$select";
+
+    private static final String SKIP_TOKEN = "$skiptoken";
+
+    private static final String DELTA_TOKEN = "$deltatoken";
+
+    private static final String POST = "POST";
+
+    private static final String APPLICATION_JSON = "application/json";
+
+    private static final String CONTENT_TYPE = "Content-Type";
+
+    private static final String RETRY_AFTER = "Retry-After";
+
+    private final int userCount;
+
+    // The index of each user changed since the tenant was created, in the order of the changes.
+    private final List<Integer> changes = new ArrayList<>();
+
+    private final Set<Integer> toggledUsers = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong requestCount = new AtomicLong();
+
+    private final AtomicLong throttledCount = new AtomicLong();
+
+    private volatile Duration latency = Duration.ZERO;
+
+    private volatile int throttleEvery;
+
+    private volatile int retryAfter = 1;
+
+    private HttpServer server;
+
+    private ExecutorService executor;
+
+    /**
+     * @param userCount the number of users of the simulated tenant
+     */
+    public GraphSimulator(int userCount)
+    {
+        this.userCount = userCount;
+    }
+
+    /**
+     * @param latency the delay added before each response is sent
+     * @return this simulator
+     */
+    public GraphSimulator setLatency(Duration latency)
+    {
+        this.latency = latency;
+        return this;
+    }
+
+    /**
+     * @param throttleEvery throttle every n-th Graph request, including the requests of a batch, or {@code 0} to
+     *     never throttle
+     * @return this simulator
+     */
+    public GraphSimulator setThrottleEvery(int throttleEvery)
+    {
+        this.throttleEvery = throttleEvery;
+        return this;
+    }
+
+    /**
+     * @param retryAfter the value, in seconds, of the {@code Retry-After} header of the throttled responses
+     * @return this simulator
+     */
+    public GraphSimulator setRetryAfter(int retryAfter)
+    {
+        this.retryAfter = retryAfter;
+        return this;
+    }
+
+    /**
+     * Start serving requests on a free local port.
+     *
+     * @return this simulator
+     * @throws IOException if the server could not be started
+     */
+    public GraphSimulator start() throws IOException
+    {
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        // The requests are handled concurrently, so that the latency of a response doesn't delay the others.
+        this.executor = Executors.newCachedThreadPool();
+        this.server.setExecutor(this.executor);
+        this.server.createContext("/", this::handle);
+        this.server.start();
+        return this;
+    }
+
+    @Override
+    public void close()
+    {
+        if (this.server != null) {
+            this.server.stop(0);
+            this.executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the root URL of the simulated Graph API
+     */
+    public String getGraphEndpoint()
+    {
+        return getBaseURL() + API_VERSION;
+    }
+
+    /**
+     * @return the URL of the simulated token endpoint
+     */
+    public String getTokenEndpoint()
+    {
+        return getBaseURL() + TOKEN_PATH;
+    }
+
+    /**
+     * @param index the index of a user, between {@code 0} and the tenant size
+     * @return the ID of the user
+     */
+    public String getUserId(int index)
+    {
+        return new UUID(ID_PREFIX, index).toString();
+    }
+
+    /**
+     * @param index the index of a user
+     * @return {@code true} if the account of the user is enabled
+     */
+    public boolean isEnabled(int index)
+    {
+        // One user out of ten is disabled, until its account status is changed.
+        return (index % 10 != 0) ^ this.toggledUsers.contains(index);
+    }
+
+    /**
+     * Toggle the account status of the given users, so that they are returned by the next delta query.
+     *
+     * @param indexes the indexes of the users to change
+     */
+    public void changeUsers(int... indexes)
+    {
+        synchronized (this.changes) {
+            for (int index : indexes) {
+                if (!this.toggledUsers.remove(index)) {
+                    this.toggledUsers.add(index);
+                }
+                this.changes.add(index);
+            }
+        }
+    }
+
+    /**
+     * @return the number of Graph requests received so far, including the requests of each batch
+     */
+    public long getRequestCount()
+    {
+        return this.requestCount.get();
+    }
+
+    /**
+     * @return the number of Graph requests that were throttled so far
+     */
+    public long getThrottledCount()
+    {
+        return this.throttledCount.get();
+    }
+
+    private String getBaseURL()
+    {
+        InetSocketAddress address = this.server.getAddress();
+        return "http://" + address.getHostString() + ':' + address.getPort();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException
+    {
+        try {
+            sleep(this.latency);
+            String path = exchange.getRequestURI().getPath();
+            if (path.equals(TOKEN_PATH)) {
+                handleToken(exchange);
+            } else if (!path.startsWith(API_VERSION)) {
+                send(exchange, 404, error("Request_ResourceNotFound"));
+            } else if (!("Bearer " + ACCESS_TOKEN).equals(exchange.getRequestHeaders().getFirst("Authorization"))) {
+                send(exchange, 401, error("InvalidAuthenticationToken"));
+            } else if (isThrottled()) {
+                exchange.getResponseHeaders().add(RETRY_AFTER, String.valueOf(this.retryAfter));
+                send(exchange, 429, error("TooManyRequests"));
+            } else {
+                handleGraph(exchange, path.substring(API_VERSION.length()));
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleGraph(HttpExchange exchange, String path) throws IOException
+    {
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        switch (path) {
+            case "/users":
+                send(exchange, 200, getUsersPage(exchange, query, "/users"));
+                break;
+            case "/users/delta":
+                handleDelta(exchange, query);
+                break;
+            case "/users/$count":
+                if (!"eventual".equals(exchange.getRequestHeaders().getFirst("ConsistencyLevel"))) {
+                    send(exchange, 400, error("Request_UnsupportedQuery"));
+                } else {
+                    exchange.getResponseHeaders().add(CONTENT_TYPE, "text/plain");
+                    sendBytes(exchange, 200, String.valueOf(this.userCount));
+                }
+                break;
+            case GET_BY_IDS_PATH:
+                JSONObject users = getByIds(new JSONObject(readBody(exchange)), getSelect(query));
+                send(exchange, users != null ? 200 : 400, users != null ? users : error("Request_BadRequest"));
+                break;
+            case "/$batch":
+                send(exchange, 200, batch(new JSONObject(readBody(exchange))));
+                break;
+            default:
+                send(exchange, 404, error("Request_ResourceNotFound"));
+        }
+    }
+
+    private void handleToken(HttpExchange exchange) throws IOException
+    {
+        Map<String, String> form = parseQuery(readBody(exchange));
+        if (!POST.equals(exchange.getRequestMethod()) || !"client_credentials".equals(form.get("grant_type"))) {
+            send(exchange, 400, new JSONObject().put("error", "unsupported_grant_type"));
+        } else {
+            send(exchange, 200, new JSONObject().put("access_token", ACCESS_TOKEN).put("token_type", "Bearer")
+                .put("expires_in", 3600));
+        }
+    }
+
+    private void handleDelta(HttpExchange exchange, Map<String, String> query) throws IOException
+    {
+        String deltaToken = query.get(DELTA_TOKEN);
+        if (deltaToken == null) {
+            // The first delta query lists the whole tenant, and its last page holds the delta link.
+            send(exchange, 200, getUsersPage(exchange, query, "/users/delta"));
+            return;
+        }
+        Set<Integer> changed = new LinkedHashSet<>();
+        int version;
+        synchronized (this.changes) {
+            version = this.changes.size();
+            int since = deltaToken.matches("\\d{1,9}") ? Integer.parseInt(deltaToken) : -1;
+            if (since < 0 || since > version) {
+                send(exchange, 410, error("syncStateNotFound"));
+                return;
+            }
+            changed.addAll(this.changes.subList(since, version));
+        }
+        Set<String> select = getSelect(query);
+        JSONArray users = new JSONArray();
+        changed.forEach(index -> users.put(getUser(index, select)));
+        send(exchange, 200, new JSONObject().put(VALUE, users).put("@odata.deltaLink",
+            getLink("/users/delta", query, DELTA_TOKEN, version)));
+    }
+
+    private JSONObject getUsersPage(HttpExchange exchange, Map<String, String> query, String path)
+    {
+        int skip = parseInt(query.get(SKIP_TOKEN), 0);
+        int pageSize = Math.min(parseInt(query.get("$top"), getMaxPageSize(exchange)), MAX_PAGE_SIZE);
+        Set<String> select = getSelect(query);
+        int end = Math.min(skip + pageSize, this.userCount);
+        JSONArray users = new JSONArray();
+        for (int index = skip; index < end; index++) {
+            users.put(getUser(index, select));
+        }
+        JSONObject page = new JSONObject().put(VALUE, users);
+        if (end < this.userCount) {
+            page.put("@odata.nextLink", getLink(path, query, SKIP_TOKEN, end));
+        } else if (path.endsWith("/delta")) {
+            int version;
+            synchronized (this.changes) {
+                version = this.changes.size();
+            }
+            page.put("@odata.deltaLink", getLink(path, query, DELTA_TOKEN, version));
+        }
+        return page;
+    }
+
+    private JSONObject getByIds(JSONObject request, Set<String> select)
+    {
+        JSONArray ids = request != null ? request.optJSONArray("ids") : null;
+        if (ids == null || ids.length() > MAX_IDS) {
+            return null;
+        }
+        JSONArray users = new JSONArray();
+        for (int i = 0; i < ids.length(); i++) {
+            int index = getUserIndex(ids.optString(i));
+            if (index >= 0) {
+                users.put(getUser(index, select).put("@odata.type", "#microsoft.graph.user"));
+            }
+        }
+        return new JSONObject().put(VALUE, users);
+    }
+
+    private JSONObject batch(JSONObject batch)
+    {
+        JSONArray requests = batch.getJSONArray("requests");
+        JSONArray responses = new JSONArray();
+        for (int i = 0; i < requests.length(); i++) {
+            JSONObject request = requests.getJSONObject(i);
+            JSONObject response = new JSONObject().put("id", request.getString("id"));
+            // The URL of each request is relative to the API version, and may have a query string.
+            String url = request.optString("url");
+            int queryStart = url.indexOf('?');
+            String path = queryStart < 0 ? url : url.substring(0, queryStart);
+            // Each request of a batch counts against the throttling limits.
+            if (isThrottled()) {
+                response.put("status", 429).put("headers", new JSONObject().put(RETRY_AFTER,
+                    String.valueOf(this.retryAfter)));
+            } else if (POST.equals(request.optString("method")) && GET_BY_IDS_PATH.equals(path)) {
+                Map<String, String> query = parseQuery(queryStart < 0 ? null : url.substring(queryStart + 1));
+                JSONObject body = getByIds(request.optJSONObject("body"), getSelect(query));
+                response.put("status", body != null ? 200 : 400).put("body", body != null ? body
+                    : error("Request_BadRequest"));
+            } else {
+                response.put("status", 404).put("body", error("Request_ResourceNotFound"));
+            }
+            responses.put(response);
+        }
+        return new JSONObject().put("responses", responses);
+    }
+
+    private JSONObject getUser(int index, Set<String> select)
+    {
+        JSONObject user = new JSONObject();
+        for (String attribute : select.isEmpty() ? ATTRIBUTES : select) {
+            switch (attribute) {
+                case "id":
+                    user.put(attribute, getUserId(index));
+                    break;
+                case "accountEnabled":
+                    user.put(attribute, isEnabled(index));
+                    break;
+                case "displayName":
+                    user.put(attribute, "User " + index);
+                    break;
+                case "mail":
+                case "userPrincipalName":
+                    user.put(attribute, "user" + index + "@simulated.example.com");
+                    break;
+                default:
+                    // Unknown attributes are not returned, as Graph does for unset attributes.
+            }
+        }
+        return user;
+    }
+
+    private int getUserIndex(String id)
+    {
+        try {
+            UUID uuid = UUID.fromString(id);
+            long index = uuid.getLeastSignificantBits();
+            return uuid.getMostSignificantBits() == ID_PREFIX && index >= 0 && index < this.userCount ? (int) index
+                : -1;
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    private String getLink(String path, Map<String, String> query, String tokenName, int tokenValue)
+    {
+        StringBuilder link = new StringBuilder(getGraphEndpoint()).append(path).append('?');
+        String select = query.get(SELECT);
+        if (select != null) {
+            link.append(SELECT).append('=').append(select).append('&');
+        }
+        String top = query.get("$top");
+        if (top != null) {
+            link.append("$top=").append(top).append('&');
+        }
+        return link.append(tokenName).append('=').append(tokenValue).toString();
+    }
+
+    private Set<String> getSelect(Map<String, String> query)
+    {
+        String select = query.get(SELECT);
+        return select != null ? new LinkedHashSet<>(Arrays.asList(select.split(","))) : Set.of();
+    }
+
+    private int getMaxPageSize(HttpExchange exchange)
+    {
+        String prefer = exchange.getRequestHeaders().getFirst("Prefer");
+        if (prefer != null) {
+            Matcher matcher = MAX_PAGE_SIZE_PREFERENCE.matcher(prefer);
+            if (matcher.find()) {
+                return parseInt(matcher.group(1), DEFAULT_PAGE_SIZE);
+            }
+        }
+        return DEFAULT_PAGE_SIZE;
+    }
+
+    private boolean isThrottled()
+    {
+        long count = this.requestCount.incrementAndGet();
+        int every = this.throttleEvery;
+        if (every > 0 && count % every == 0) {
+            this.throttledCount.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    private void send(HttpExchange exchange, int status, JSONObject body) throws IOException
+    {
+        exchange.getResponseHeaders().add(CONTENT_TYPE, APPLICATION_JSON);
+        sendBytes(exchange, status, body.toString());
+    }
+
+    private void sendBytes(HttpExchange exchange, int status, String body) throws IOException
+    {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+            // Chunked response, since the compressed length is not known in advance.
+            exchange.sendResponseHeaders(status, 0);
+            try (OutputStream output = new GZIPOutputStream(exchange.getResponseBody())) {
+                output.write(bytes);
+            }
+        } else {
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream output = exchange.getResponseBody()) {
+                output.write(bytes);
+            }
+        }
+    }
+
+    private static JSONObject error(String code)
+    {
+        return new JSONObject().put("error", new JSONObject().put("code", code).put("message", code));
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException
+    {
+        try (InputStream input = exchange.getRequestBody()) {
+            return new String(input.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query)
+    {
+        Map<String, String> parameters = new HashMap<>();
+        if (query != null && !query.isEmpty()) {
+            for (String parameter : query.split("&")) {
+                int separator = parameter.indexOf('=');
+                if (separator > 0) {
+                    parameters.put(URLDecoder.decode(parameter.substring(0, separator), StandardCharsets.UTF_8),
+                        URLDecoder.decode(parameter.substring(separator + 1), StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return parameters;
+    }
+
+    private static int parseInt(String value, int defaultValue)
+    {
+        try {
+            return value != null ? Integer.parseInt(value) : defaultValue;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static void sleep(Duration duration)
+    {
+        if (!duration.isZero()) {
+            try {
+                Thread.sleep(duration.toMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.entraid.test.simulator;
+
+import java.util.List;
+
+import com.xwiki.azureoauth.configuration.EntraIDConfiguration;
+
+import static org.mockito.Mockito.when;
+
+/**
+ * Points a mocked {@link EntraIDConfiguration} to a {@link GraphSimulator}.
+ *
+ * @version $Id$
+ */
+public final class GraphSimulatorConfiguration
+{
+    private GraphSimulatorConfiguration()
+    {
+    }
+
+    /**
+     * Stub the given configuration so that the Entra ID API client calls the given simulator.
+     *
+     * @param configuration a mocked configuration
+     * @param simulator the started simulator
+     */
+    public static void configure(EntraIDConfiguration configuration, GraphSimulator simulator)
+    {
+        when(configuration.getGraphEndpoint()).thenReturn(simulator.getGraphEndpoint());
+        when(configuration.getTokenEndpoint()).thenReturn(simulator.getTokenEndpoint());
+        when(configuration.getClientID()).thenReturn("simulated-client");
+        when(configuration.getSecret()).thenReturn("simulated-secret");
+        when(configuration.getUsersPageSize()).thenReturn(999);
+        when(configuration.getUsersSelectedAttributes()).thenReturn(List.of());
+        when(configuration.getUsersFilter()).thenReturn("");
+        when(configuration.getHttpConnectTimeout()).thenReturn(10);
+        when(configuration.getHttpRequestTimeout()).thenReturn(60);
+        // The simulator only speaks HTTP/1.1.
+        when(configuration.getHttpVersion()).thenReturn("HTTP_1_1");
+        when(configuration.getHttpExecutor()).thenReturn("default");
+        when(configuration.getHttpProxy()).thenReturn("");
+    }
+}